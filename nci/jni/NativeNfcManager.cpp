@@ -88,6 +88,19 @@ extern "C"
 
 #define SAK_VALUE_AT 17
 
+/* Entries of nfcManager_updateAidRouting, keep in sync with DeviceHost */
+#define AID_ENTRY_REMOVE        0x00
+#define AID_ENTRY_ADD           0x01
+#define AID_ENTRY_ADD_PREFIX    0x02
+#define AID_ENTRY_HDR_LENGTH    0x04
+
+/* Entries of nfcManager_updateNfcid2Routing, keep in sync with DeviceHost */
+#define NFCID2_ENTRY_REMOVE     0x00
+#define NFCID2_ENTRY_ADD        0x01
+#define NFCID2_ENTRY_HDR_LENGTH 0x0C
+#define NFCID2_ENTRY_NFCID2_LEN 0x08
+#define NFCID2_ENTRY_SYSCODE_LEN 0x02
+
 extern const UINT8 nfca_version_string [];
 extern const UINT8 nfa_version_string [];
 
@@ -1561,6 +1574,77 @@ static jboolean nfcManager_unrouteAid (JNIEnv* e, jobject, jbyteArray aid)
     return result;
 }
 
+/*******************************************************************************
+**
+** Function:        nfcManager_updateAidRouting
+**
+** Description:     Apply a batch of AID routing changes with a single call.
+**                  Stops at the first entry that fails, so that the caller
+**                  knows the AID routing table is not in the expected state.
+**                  e: JVM environment.
+**                  o: Java object.
+**                  aidEntries: Entries packed as
+**                              [op][route][power][AID length][AID].
+**                  clearTable: Clear the AID routing table first.
+**
+** Returns:         True if the table was cleared as requested and all
+**                  entries were applied.
+**
+*******************************************************************************/
+static jboolean nfcManager_updateAidRouting (JNIEnv* e, jobject, jbyteArray aidEntries, jboolean clearTable)
+{
+    static const char fn [] = "nfcManager_updateAidRouting";
+    ScopedByteArrayRO bytes(e, aidEntries);
+    const uint8_t* buf = reinterpret_cast<const uint8_t*>(&bytes[0]);
+    size_t bufLen = bytes.size();
+    size_t offset = 0;
+    int numEntries = 0;
+
+    if (clearTable && !RoutingManager::getInstance().clearAidTable())
+    {
+        ALOGE ("%s: failed to clear AID table", fn);
+        return JNI_FALSE;
+    }
+    while (offset < bufLen)
+    {
+        if (bufLen - offset < AID_ENTRY_HDR_LENGTH ||
+                bufLen - offset - AID_ENTRY_HDR_LENGTH < buf[offset + 3])
+        {
+            ALOGE ("%s: malformed entry at offset %zu", fn, offset);
+            return JNI_FALSE;
+        }
+        uint8_t op = buf[offset];
+        int route = buf[offset + 1];
+        int power = buf[offset + 2];
+        uint8_t aidLen = buf[offset + 3];
+        uint8_t* aid = const_cast<uint8_t*>(buf + offset + AID_ENTRY_HDR_LENGTH);
+        bool entryResult;
+
+        if (op == AID_ENTRY_REMOVE)
+        {
+            entryResult = RoutingManager::getInstance().removeAidRouting(aid, aidLen);
+        }
+        else
+        {
+#if(NFC_NXP_NOT_OPEN_INCLUDED == TRUE)
+            entryResult = RoutingManager::getInstance().addAidRouting(aid, aidLen, route, power,
+                    op == AID_ENTRY_ADD_PREFIX);
+#else
+            entryResult = RoutingManager::getInstance().addAidRouting(aid, aidLen, route);
+#endif
+        }
+        if (!entryResult)
+        {
+            ALOGE ("%s: failed to apply entry %d (op %d)", fn, numEntries, op);
+            return JNI_FALSE;
+        }
+        offset += AID_ENTRY_HDR_LENGTH + aidLen;
+        numEntries++;
+    }
+    ALOGD ("%s: applied %d entries", fn, numEntries);
+    return JNI_TRUE;
+}
+
 #if(NFC_NXP_NOT_OPEN_INCLUDED == TRUE)
 /*******************************************************************************
 **
@@ -1642,6 +1726,65 @@ static jboolean nfcManager_unrouteNfcid2 (JNIEnv* e, jobject, jbyteArray nfcID2)
     }
     return RoutingManager::getInstance().removeNfcid2Routing(nfcid2buf);
 }
+
+/*******************************************************************************
+**
+** Function:        nfcManager_updateNfcid2Routing
+**
+** Description:     Apply a batch of NFCID2 routing changes with a single call.
+**                  e: JVM environment.
+**                  o: Java object.
+**                  nfcid2Entries: Entries packed as [op][NFCID2][system code]
+**                                 [optional parameters length][optional parameters].
+**
+** Returns:         True if all entries were applied.
+**
+*******************************************************************************/
+static jboolean nfcManager_updateNfcid2Routing (JNIEnv* e, jobject, jbyteArray nfcid2Entries)
+{
+    static const char fn [] = "nfcManager_updateNfcid2Routing";
+    ScopedByteArrayRO bytes(e, nfcid2Entries);
+    const uint8_t* buf = reinterpret_cast<const uint8_t*>(&bytes[0]);
+    size_t bufLen = bytes.size();
+    size_t offset = 0;
+    int numEntries = 0;
+    bool result = true;
+
+    while (offset < bufLen)
+    {
+        if (bufLen - offset < NFCID2_ENTRY_HDR_LENGTH ||
+                bufLen - offset - NFCID2_ENTRY_HDR_LENGTH < buf[offset + NFCID2_ENTRY_HDR_LENGTH - 1])
+        {
+            ALOGE ("%s: malformed entry at offset %zu", fn, offset);
+            return JNI_FALSE;
+        }
+        uint8_t op = buf[offset];
+        uint8_t* nfcid2 = const_cast<uint8_t*>(buf + offset + 1);
+        const uint8_t* syscode = buf + offset + 1 + NFCID2_ENTRY_NFCID2_LEN;
+        uint8_t optparamLen = buf[offset + NFCID2_ENTRY_HDR_LENGTH - 1];
+        bool entryResult;
+
+        if (op == NFCID2_ENTRY_REMOVE)
+        {
+            entryResult = RoutingManager::getInstance().removeNfcid2Routing(nfcid2);
+        }
+        else
+        {
+            /* Optional parameters will be used in NCI1.1 */
+            entryResult = RoutingManager::getInstance().addNfcid2Routing(nfcid2,
+                    NFCID2_ENTRY_NFCID2_LEN, syscode, NFCID2_ENTRY_SYSCODE_LEN, NULL, -1) != 0xFF;
+        }
+        if (!entryResult)
+        {
+            ALOGE ("%s: failed to apply entry %d (op %d)", fn, numEntries, op);
+            result = false;
+        }
+        offset += NFCID2_ENTRY_HDR_LENGTH + optparamLen;
+        numEntries++;
+    }
+    ALOGD ("%s: applied %d entries", fn, numEntries);
+    return result;
+}
 /*******************************************************************************
 **
 ** Function:        nfcManager_clearRoutingEntry
@@ -3942,10 +4085,16 @@ static JNINativeMethod gMethods[] =
     {"doUnRouteNfcid2", "([B)Z",
                     (void*) nfcManager_unrouteNfcid2},
 
+    {"doUpdateNfcid2Routing", "([B)Z",
+                    (void*) nfcManager_updateNfcid2Routing},
+
 
     {"doUnrouteAid", "([B)Z",
             (void*) nfcManager_unrouteAid},
 
+    {"doUpdateAidRouting", "([BZ)Z",
+            (void*) nfcManager_updateAidRouting},
+
     {"doSetRoutingEntry", "(IIII)Z",
             (void*)nfcManager_setRoutingEntry},
 
@@ -252,6 +252,13 @@ public class NativeNfcManager implements DeviceHost {
 
     public native boolean doUnrouteAid(byte[] aid);
 
+    @Override
+    public boolean updateAidRouting(byte[] aidEntries, boolean clearTable) {
+        return doUpdateAidRouting(aidEntries, clearTable);
+    }
+
+    private native boolean doUpdateAidRouting(byte[] aidEntries, boolean clearTable);
+
     @Override
     public boolean routeNfcid2(byte[] nfcid2, byte[] syscode, byte[] optparam) {
         Log.d(TAG,"routeNfcid2 NFCID2 : " + toHexString(nfcid2, 0, nfcid2.length) );
@@ -285,6 +292,13 @@ public class NativeNfcManager implements DeviceHost {
 
     private native boolean doUnRouteNfcid2(byte[] nfcid2);
 
+    @Override
+    public boolean updateNfcid2Routing(byte[] nfcid2Entries) {
+        return doUpdateNfcid2Routing(nfcid2Entries);
+    }
+
+    private native boolean doUpdateNfcid2Routing(byte[] nfcid2Entries);
+
     public native boolean clearAidTable();
 
     @Override
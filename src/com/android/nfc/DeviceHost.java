@@ -289,6 +289,49 @@ public interface DeviceHost {
     public boolean unrouteNfcid2(byte[] nfcid2);
     public boolean unrouteAid(byte[] aid);
 
+    /**
+     * Op codes of the entries passed to {@link #updateAidRouting}.
+     */
+    public static final int AID_ENTRY_REMOVE = 0x00;
+    public static final int AID_ENTRY_ADD = 0x01;
+    public static final int AID_ENTRY_ADD_PREFIX = 0x02;
+
+    // OP + ROUTE + POWER + AID LENGTH
+    public static final int AID_ENTRY_HDR_LENGTH = 0x04;
+
+    /**
+     * Applies a batch of AID routing changes with a single call, in the
+     * order given. Every entry of aidEntries is packed as
+     * [op][route][power state][AID length][AID], where op is one of the
+     * AID_ENTRY_* values and route and power are ignored for removals.
+     * If clearTable is set, the AID routing table is cleared first.
+     * Stops at the first failure and returns false, in which case the
+     * content of the AID routing table is not known. The entries are still
+     * programmed one NCI exchange each; batching only saves the JNI calls.
+     */
+    public boolean updateAidRouting(byte[] aidEntries, boolean clearTable);
+
+    /**
+     * Op codes of the entries passed to {@link #updateNfcid2Routing}.
+     */
+    public static final int NFCID2_ENTRY_REMOVE = 0x00;
+    public static final int NFCID2_ENTRY_ADD = 0x01;
+
+    public static final int NFCID2_LENGTH = 0x08;
+    public static final int NFCID2_SYSCODE_LENGTH = 0x02;
+
+    // OP + NFCID2 + SYSCODE + OPTPARAM LENGTH
+    public static final int NFCID2_ENTRY_HDR_LENGTH = 0x0C;
+
+    /**
+     * Applies a batch of NFCID2 routing changes with a single call, in the
+     * order given. Every entry of nfcid2Entries is packed as
+     * [op][NFCID2][system code][optional parameters length][optional parameters],
+     * where op is one of the NFCID2_ENTRY_* values; system code and optional
+     * parameters are ignored for removals.
+     */
+    public boolean updateNfcid2Routing(byte[] nfcid2Entries);
+
     public boolean clearAidTable();
 
     public int getAidTableSize();
@@ -102,6 +102,7 @@ import java.security.MessageDigest;
 
 import android.widget.Toast;
 
+import com.android.nfc.cardemulation.AidElement;
 import com.android.nfc.cardemulation.AidRoutingManager;
 import com.android.nfc.cardemulation.CardEmulationManager;
 import com.android.nfc.cardemulation.Nfcid2RoutingManager;
@@ -263,6 +264,8 @@ public class NfcService implements DeviceHostListener {
     static final int TASK_EE_WIPE = 4;
     static final int MSG_CHANGE_DEFAULT_ROUTE = 52;
     static final int MSG_SE_DELIVER_INTENT = 53;
+    static final int MSG_UPDATE_AID_ROUTING = 54;
+    static final int MSG_UPDATE_NFCID2_ROUTING = 55;
 
     // Copied from com.android.nfc_extras to avoid library dependency
     // Must keep in sync with com.android.nfc_extras
@@ -3179,20 +3182,13 @@ public class NfcService implements DeviceHostListener {
             Log.i(TAG, "setVzwAidList enter");
             Log.i(TAG, "setVzwAidList  entries length =" + entries.length);
             if (mIsHceCapable) {
-                mAidRoutingManager.ClearVzwCache();
-                for (int i = 0; i < entries.length; i++) {
-                    RouteEntry routeEntry = entries[i];
-                    mAidRoutingManager.UpdateVzwCache(routeEntry.getAid(),
-                            routeEntry.getLocation(), routeEntry.getPowerState(),
-                            routeEntry.isAllowed());
-
-                    Log.i(TAG,
-                            "AID" + routeEntry.getAid() + "Location "
-                                    + routeEntry.getLocation() + "powerstate "
-                                    + routeEntry.getPowerState());
+                // Only the routes of AIDs whose VZW settings changed are
+                // re-programmed, see AidRoutingManager.
+                if (mAidRoutingManager.SetVzwCache(entries)) {
+                    mCardEmulationManager.onRoutingTableChanged();
+                } else {
+                    Log.i(TAG, "setVzwAidList: VZW AIDs unchanged");
                 }
-                mAidRoutingManager.onNfccRoutingTableCleared();
-                mCardEmulationManager.onRoutingTableChanged();
                 return true;
             } else {
                 return false;
@@ -4009,6 +4005,22 @@ public class NfcService implements DeviceHostListener {
     public void commitRouting() {
         mHandler.sendEmptyMessage(MSG_COMMIT_ROUTING);
     }
+
+    /**
+     * Removes and adds the given AID routes, and commits the routing, with a
+     * single message; the entries are packed into one buffer so they cross
+     * JNI with one call instead of one per AID.
+     */
+    public void updateAidRouting(List<AidElement> removedRoutes, List<AidElement> addedRoutes,
+            boolean clearTable) {
+        byte[] aidEntries = AidElement.packEntries(removedRoutes, addedRoutes);
+        Message msg = mHandler.obtainMessage();
+        msg.what = MSG_UPDATE_AID_ROUTING;
+        msg.arg1 = clearTable ? 1 : 0;
+        msg.obj = aidEntries;
+        mHandler.sendMessage(msg);
+    }
+
     /**
      * get default Aid route entry in case application does not configure this route entry
      */
@@ -4086,6 +4098,17 @@ public class NfcService implements DeviceHostListener {
         mHandler.sendMessage(msg);
     }
 
+    /**
+     * Removes and adds NFCID2 routes with a single message; nfcid2Entries is
+     * packed as described in {@link DeviceHost#updateNfcid2Routing}.
+     */
+    public void updateNfcid2Routing(byte[] nfcid2Entries) {
+        Message msg = mHandler.obtainMessage();
+        msg.what = MSG_UPDATE_NFCID2_ROUTING;
+        msg.obj = nfcid2Entries;
+        mHandler.sendMessage(msg);
+    }
+
     public void clearRouting() {
         mHandler.sendEmptyMessage(MSG_CLEAR_ROUTING);
     }
@@ -4221,6 +4244,9 @@ public class NfcService implements DeviceHostListener {
                 }
                 case MSG_UNROUTE_AID: {
                     String aid = (String) msg.obj;
+                    if (aid.endsWith("*")) {
+                        aid = aid.substring(0, aid.length() - 1);
+                    }
                     mDeviceHost.unrouteAid(hexStringToBytes(aid));
                     break;
                 }
@@ -4243,6 +4269,16 @@ public class NfcService implements DeviceHostListener {
                     break;
                 }
 
+                case MSG_UPDATE_NFCID2_ROUTING: {
+                    if (!mDeviceHost.updateNfcid2Routing((byte[]) msg.obj)) {
+                        Log.e(TAG, "Failed to update NFCID2 routing table");
+                        if (mIsHceCapable) {
+                            mNfcid2RoutingManager.onNfcid2RoutingUpdateFailed();
+                        }
+                    }
+                    break;
+                }
+
                 case MSG_COMMITINF_FELICA_ROUTING: {
                     Log.e(TAG, "applyRouting -10");
                     mIsFelicaOnHostConfiguring = true;
@@ -4280,6 +4316,30 @@ public class NfcService implements DeviceHostListener {
                     mDeviceHost.clearAidTable();
                     break;
                 }
+                case MSG_UPDATE_AID_ROUTING: {
+                    // Applied and committed within one message, so nothing else
+                    // handled here can see a half-updated routing table.
+                    if (!mDeviceHost.updateAidRouting((byte[]) msg.obj, msg.arg1 == 1)) {
+                        Log.e(TAG, "Failed to update AID routing table");
+                        // The next update must rewrite the whole table
+                        if (mIsHceCapable) {
+                            mAidRoutingManager.onAidRoutingUpdateFailed();
+                        }
+                    }
+                    boolean commit = false;
+                    synchronized (NfcService.this) {
+                        if (mCurrentDiscoveryParameters.shouldEnableDiscovery()) {
+                            commit = true;
+                        } else {
+                            Log.d(TAG, "Not committing routing because discovery is disabled.");
+                        }
+                    }
+                    if (commit) {
+                        mIsRoutingTableDirty = true;
+                        applyRouting(false);
+                    }
+                    break;
+                }
 
                 case MSG_CHANGE_DEFAULT_ROUTE:
                     Log.d(TAG, "Handler: Change default route");
@@ -4992,6 +5052,9 @@ public class NfcService implements DeviceHostListener {
                         return;
                     }
                 } else if (action.equals(Intent.ACTION_USER_PRESENT)) {
+                    if (mCardEmulationManager != null) {
+                        mCardEmulationManager.onScreenUnlocked();
+                    }
                     if (mScreenState != ScreenStateHelper.SCREEN_STATE_ON_UNLOCKED) {
                         screenState = ScreenStateHelper.SCREEN_STATE_ON_UNLOCKED;
                         //mDeviceHost.doSetScreenOrPowerState(ScreenStateHelper.SCREEN_STATE_ON_UNLOCKED);
@@ -17,29 +17,49 @@ package com.android.nfc.cardemulation;
 
 import android.util.Log;
 
+import com.android.nfc.DeviceHost;
+
 import java.util.Collections;
 import java.util.Hashtable;
 import java.util.List;
 import java.util.Iterator;
 
 public class AidElement implements Comparable {
+    static final String TAG = "AidElement";
 
     static final int ROUTE_WIEGHT_FOREGROUND = 4;
     static final int ROUTE_WIEGHT_PAYMENT = 2;
     static final int ROUTE_WIEGHT_OTHER = 1;
 
-    private String mAid;
+    private static final AidKey INVALID_AID = new AidKey(new byte[0], 0, 0);
+
+    // The AID is kept in binary, so that it is not converted again when
+    // it is compared or sent to the controller.
+    private AidKey mAidKey;
     private int mWeight;
     private int mRouteLocation;
     private int mPowerState;
 
     public AidElement(String aid, int weight, int route, int power) {
-        mAid = aid;
+        this(parseAid(aid), weight, route, power);
+    }
+
+    AidElement(AidKey aid, int weight, int route, int power) {
+        mAidKey = aid;
         mWeight = weight;
         mRouteLocation = route;
         mPowerState = power;
     }
 
+    private static AidKey parseAid(String aid) {
+        AidKey aidKey = AidKey.parse(aid);
+        if (aidKey == null) {
+            Log.e(TAG, "AID " + aid + " is not valid.");
+            return INVALID_AID;
+        }
+        return aidKey;
+    }
+
     public int getWeight() {
         return mWeight;
     }
@@ -49,7 +69,7 @@ public class AidElement implements Comparable {
     }
 
     public void setAid(String aid) {
-        mAid = aid;
+        mAidKey = parseAid(aid);
     }
 
     public void setPowerState(int powerState) {
@@ -57,7 +77,11 @@ public class AidElement implements Comparable {
     }
 
     public String getAid() {
-        return mAid;
+        return mAidKey.toString();
+    }
+
+    AidKey getAidKey() {
+        return mAidKey;
     }
 
     public int getRouteLocation() {
@@ -68,6 +92,24 @@ public class AidElement implements Comparable {
         return mPowerState;
     }
 
+    /**
+     * Returns whether elem results in the same routing table entry.
+     */
+    public boolean isSameRoute(AidElement elem) {
+        return mAidKey.equals(elem.getAidKey()) && mWeight == elem.getWeight() &&
+                mRouteLocation == elem.getRouteLocation() &&
+                mPowerState == elem.getPowerState();
+    }
+
+    /**
+     * Returns whether a SELECT could match both this entry and elem, i.e.
+     * whether one AID is a prefix of the other.
+     */
+    public boolean overlaps(AidElement elem) {
+        AidKey otherAid = elem.getAidKey();
+        return mAidKey.startsWith(otherAid) || otherAid.startsWith(mAidKey);
+    }
+
     @Override
     public int compareTo(Object o) {
 
@@ -79,12 +121,54 @@ public class AidElement implements Comparable {
         else if (mWeight < elem.getWeight()) {
             return 1;
         }
-        return elem.getAid().length() - mAid.length();
+        // Longer AIDs first, as their hex Strings would be
+        return getHexLength(elem.getAidKey()) - getHexLength(mAidKey);
+    }
+
+    private static int getHexLength(AidKey aid) {
+        return 2 * aid.length() + (aid.isPrefix() ? 1 : 0);
+    }
+
+    /**
+     * Packs the given removals and additions, in that order, as the entries
+     * taken by {@link DeviceHost#updateAidRouting(byte[], boolean)}.
+     */
+    public static byte[] packEntries(List<AidElement> removedRoutes,
+            List<AidElement> addedRoutes) {
+        int length = 0;
+        for (AidElement element : removedRoutes) {
+            length += DeviceHost.AID_ENTRY_HDR_LENGTH + element.getAidKey().length();
+        }
+        for (AidElement element : addedRoutes) {
+            length += DeviceHost.AID_ENTRY_HDR_LENGTH + element.getAidKey().length();
+        }
+        byte[] aidEntries = new byte[length];
+        int offset = 0;
+        for (AidElement element : removedRoutes) {
+            aidEntries[offset] = DeviceHost.AID_ENTRY_REMOVE;
+            offset = packAid(aidEntries, offset, element.getAidKey());
+        }
+        for (AidElement element : addedRoutes) {
+            AidKey aid = element.getAidKey();
+            aidEntries[offset] = (byte) (aid.isPrefix() ?
+                    DeviceHost.AID_ENTRY_ADD_PREFIX : DeviceHost.AID_ENTRY_ADD);
+            aidEntries[offset + 1] = (byte) element.getRouteLocation();
+            aidEntries[offset + 2] = (byte) element.getPowerState();
+            offset = packAid(aidEntries, offset, aid);
+        }
+        return aidEntries;
+    }
+
+    // Packs the AID of the entry at offset, and returns the offset of the next entry
+    private static int packAid(byte[] aidEntries, int offset, AidKey aid) {
+        aidEntries[offset + 3] = (byte) aid.length();
+        aid.copyTo(aidEntries, offset + DeviceHost.AID_ENTRY_HDR_LENGTH);
+        return offset + DeviceHost.AID_ENTRY_HDR_LENGTH + aid.length();
     }
 
     @Override
     public String toString() {
-        return "aid: " + mAid + ", location: " + mRouteLocation
+        return "aid: " + mAidKey + ", location: " + mRouteLocation
                     + ", power: " + mPowerState + ",weight: " + mWeight;
     }
 }
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2015 NXP Semiconductors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.nfc.cardemulation;
+
+/**
+ * Immutable binary AID, used as a lookup key on the APDU path instead
+ * of a hex String. The hash is computed once, and the hex String form
+ * is only built when it is actually needed, e.g. for logging.
+ *
+ * A key can also stand for a registered prefix AID, such as "A000000003*",
+ * from the AID registrations of services down to the routing table entries
+ * sent to the controller. Keys are ordered like their hex Strings, see
+ * {@link #compareTo(AidKey)}.
+ */
+final class AidKey implements Comparable<AidKey> {
+    private static final char[] HEX_CHARS = {'0', '1', '2', '3', '4', '5', '6', '7',
+            '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'};
+
+    private final byte[] mBytes;
+    private final boolean mIsPrefix;
+    private final int mHash;
+    private String mString;
+
+    AidKey(byte[] bytes, int offset, int length) {
+        this(bytes, offset, length, false);
+    }
+
+    AidKey(byte[] bytes, int offset, int length, boolean isPrefix) {
+        mBytes = new byte[length];
+        System.arraycopy(bytes, offset, mBytes, 0, length);
+        mIsPrefix = isPrefix;
+        mHash = hash(mBytes, 0, length);
+    }
+
+    /**
+     * Parses a hex AID, optionally followed by '*' for a prefix AID. Returns
+     * null if aid holds anything but hex digits, or an odd number of them.
+     */
+    static AidKey parse(String aid) {
+        boolean isPrefix = aid.endsWith("*");
+        int length = isPrefix ? aid.length() - 1 : aid.length();
+        if (length % 2 != 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length / 2];
+        for (int i = 0; i < length; i++) {
+            int value = Character.digit(aid.charAt(i), 16);
+            if (value < 0) {
+                return null;
+            }
+            bytes[i / 2] |= (i % 2 == 0) ? value << 4 : value;
+        }
+        return new AidKey(bytes, 0, bytes.length, isPrefix);
+    }
+
+    static int hash(byte[] bytes, int offset, int length) {
+        int result = 1;
+        for (int i = offset; i < offset + length; i++) {
+            result = 31 * result + bytes[i];
+        }
+        return result;
+    }
+
+    /**
+     * Returns whether bytes[offset, offset + length) holds the same AID
+     * as this key, without allocating.
+     */
+    boolean matches(byte[] bytes, int offset, int length) {
+        if (length != mBytes.length || offset + length > bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (mBytes[i] != bytes[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    int length() {
+        return mBytes.length;
+    }
+
+    boolean isPrefix() {
+        return mIsPrefix;
+    }
+
+    /**
+     * Returns the same AID, registered as exact AID.
+     */
+    AidKey toExact() {
+        return mIsPrefix ? new AidKey(mBytes, 0, mBytes.length, false) : this;
+    }
+
+    /**
+     * Returns whether the bytes of this AID start with those of other,
+     * regardless of whether either is a prefix AID.
+     */
+    boolean startsWith(AidKey other) {
+        if (other.mBytes.length > mBytes.length) {
+            return false;
+        }
+        for (int i = 0; i < other.mBytes.length; i++) {
+            if (mBytes[i] != other.mBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void copyTo(byte[] dest, int offset) {
+        System.arraycopy(mBytes, 0, dest, offset, mBytes.length);
+    }
+
+    byte byteAt(int index) {
+        return mBytes[index];
+    }
+
+    byte[] getBytes() {
+        return mBytes.clone();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof AidKey)) return false;
+        AidKey that = (AidKey) o;
+        return mHash == that.mHash && mIsPrefix == that.mIsPrefix &&
+                matches(that.mBytes, 0, that.mBytes.length);
+    }
+
+    @Override
+    public int hashCode() {
+        return mHash;
+    }
+
+    /**
+     * Orders keys like their hex Strings: by unsigned bytes, an AID before
+     * the longer AIDs that start with it, and an exact AID right before the
+     * prefix AID with the same bytes.
+     */
+    @Override
+    public int compareTo(AidKey other) {
+        int length = Math.min(mBytes.length, other.mBytes.length);
+        for (int i = 0; i < length; i++) {
+            int result = (mBytes[i] & 0xFF) - (other.mBytes[i] & 0xFF);
+            if (result != 0) {
+                return result;
+            }
+        }
+        if (mBytes.length != other.mBytes.length) {
+            return mBytes.length - other.mBytes.length;
+        }
+        return (mIsPrefix ? 1 : 0) - (other.mIsPrefix ? 1 : 0);
+    }
+
+    /**
+     * Returns the AID as an upper-case hex String, followed by '*' for a
+     * prefix AID.
+     */
+    @Override
+    public String toString() {
+        String string = mString;
+        if (string == null) {
+            string = toHexString(mBytes, 0, mBytes.length);
+            if (mIsPrefix) {
+                string += "*";
+            }
+            mString = string;
+        }
+        return string;
+    }
+
+    static String toHexString(byte[] bytes, int offset, int length) {
+        char[] chars = new char[length * 2];
+        for (int j = 0; j < length; j++) {
+            int byteValue = bytes[offset + j] & 0xFF;
+            chars[j * 2] = HEX_CHARS[byteValue >>> 4];
+            chars[j * 2 + 1] = HEX_CHARS[byteValue & 0x0F];
+        }
+        return new String(chars);
+    }
+}
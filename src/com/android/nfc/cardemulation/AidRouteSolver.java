@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2015 NXP Semiconductors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.nfc.cardemulation;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+/**
+ * Decides which AIDs go into the AID routing table of the controller, and
+ * which route becomes the default route, given the size of that table.
+ *
+ * AIDs on the default route need no entry, so every candidate default route
+ * is planned separately. If not all entries fit, entries are kept in order
+ * of their weight, and the smallest first within the same weight, which
+ * keeps the most high-weight AIDs. The plan that drops the fewest AIDs of
+ * the highest weight wins; the current default route wins ties.
+ *
+ * The solver does not modify the AidElements it is given, so it can also
+ * be used for a dry run.
+ */
+final class AidRouteSolver {
+    static final String TAG = "AidRouteSolver";
+
+    static final boolean DBG = true;
+    // Logs every AID that does not fit; the plan logs the dropped AIDs
+    static final boolean VDBG = false;
+
+    static final int AID_HDR_LENGTH = 0x04; // TAG + ROUTE + LENGTH_BYTE + POWER
+    static final int MAX_AID_ENTRIES = 50;
+    // Routes that can be the default route: host, eSE and UICC
+    static final int MAX_DEFAULT_ROUTES = 0x03;
+
+    /**
+     * The result of planning the routing table for one default route.
+     */
+    static final class Plan {
+        final int defaultRoute;
+        // Entries for the routing table, not yet sorted
+        final ArrayList<AidElement> entries = new ArrayList<AidElement>();
+        // AIDs that would have needed an entry, but did not fit
+        final ArrayList<AidKey> droppedAids = new ArrayList<AidKey>();
+        // Weights of the dropped AIDs, highest first
+        final ArrayList<Integer> droppedWeights = new ArrayList<Integer>();
+        int tableSize;
+
+        Plan(int defaultRoute) {
+            this.defaultRoute = defaultRoute;
+        }
+
+        boolean fits() {
+            return droppedAids.isEmpty();
+        }
+
+        /**
+         * Returns whether this plan drops fewer AIDs of the highest weight
+         * than the other plan.
+         */
+        boolean isBetterThan(Plan other) {
+            int count = Math.min(droppedWeights.size(), other.droppedWeights.size());
+            for (int i = 0; i < count; i++) {
+                int weight = droppedWeights.get(i);
+                int otherWeight = other.droppedWeights.get(i);
+                if (weight != otherWeight) {
+                    return weight < otherWeight;
+                }
+            }
+            if (droppedWeights.size() != other.droppedWeights.size()) {
+                return droppedWeights.size() < other.droppedWeights.size();
+            }
+            return tableSize < other.tableSize;
+        }
+
+        @Override
+        public String toString() {
+            return "Plan{defaultRoute=" + defaultRoute + ", entries=" + entries.size() +
+                    ", tableSize=" + tableSize + ", droppedAids=" + droppedAids + '}';
+        }
+    }
+
+    // An entry for a non-default route, together with the entries for
+    // default route AIDs that it would shadow on prefix matching controllers.
+    static final class Candidate {
+        final AidKey aid;
+        final AidElement entry;
+        final int size;
+        final ArrayList<AidElement> shadowEntries = new ArrayList<AidElement>();
+        int groupSize;
+
+        Candidate(AidKey aid, AidElement entry) {
+            this.aid = aid;
+            this.entry = entry;
+            this.size = getEntrySize(entry.getAidKey());
+            this.groupSize = size;
+        }
+    }
+
+    static final Comparator<Candidate> CANDIDATE_ORDER = new Comparator<Candidate>() {
+        @Override
+        public int compare(Candidate c1, Candidate c2) {
+            if (c1.entry.getWeight() != c2.entry.getWeight()) {
+                return c2.entry.getWeight() - c1.entry.getWeight();
+            }
+            if (c1.groupSize != c2.groupSize) {
+                return c1.groupSize - c2.groupSize;
+            }
+            return c1.aid.compareTo(c2.aid);
+        }
+    };
+
+    final int mAidMatchingSupport;
+    final int mAidMatchingPlatform;
+    final int mDefaultOffHostRoute;
+    final int mTableSize;
+
+    AidRouteSolver(int aidMatchingSupport, int aidMatchingPlatform, int defaultOffHostRoute,
+            int tableSize) {
+        mAidMatchingSupport = aidMatchingSupport;
+        mAidMatchingPlatform = aidMatchingPlatform;
+        mDefaultOffHostRoute = defaultOffHostRoute;
+        mTableSize = tableSize;
+    }
+
+    /**
+     * Returns the number of bytes the entry for aid takes in the routing table.
+     */
+    static int getEntrySize(AidKey aid) {
+        return aid.length() + AID_HDR_LENGTH;
+    }
+
+    /**
+     * Plans the routing table for every candidate default route and returns
+     * the best plan.
+     */
+    Plan solve(Map<AidKey, AidElement> aidMap, int currentDefaultRoute) {
+        HashMap<AidKey, Integer> routeForAid = new HashMap<AidKey, Integer>(aidMap.size());
+        for (Map.Entry<AidKey, AidElement> aidEntry : aidMap.entrySet()) {
+            routeForAid.put(aidEntry.getKey(), getRoute(aidEntry.getValue()));
+        }
+        AidKey[] sortedAids = routeForAid.keySet().toArray(new AidKey[routeForAid.size()]);
+        Arrays.sort(sortedAids);
+
+        Plan bestPlan = plan(aidMap, routeForAid, sortedAids, currentDefaultRoute);
+        if (bestPlan.fits()) {
+            return bestPlan;
+        }
+        for (int route = 0; route < MAX_DEFAULT_ROUTES; route++) {
+            if (route == currentDefaultRoute) {
+                continue;
+            }
+            Plan plan = plan(aidMap, routeForAid, sortedAids, route);
+            if (plan.isBetterThan(bestPlan)) {
+                bestPlan = plan;
+            }
+        }
+        if (DBG) Log.d(TAG, "solve: " + bestPlan);
+        return bestPlan;
+    }
+
+    Plan plan(Map<AidKey, AidElement> aidMap, Map<AidKey, Integer> routeForAid,
+            AidKey[] sortedAids, int defaultRoute) {
+        Plan plan = new Plan(defaultRoute);
+        HashMap<AidKey, Candidate> candidates = new HashMap<AidKey, Candidate>();
+        // Lengths of the exact AIDs that got a candidate entry
+        BitSet exactLengths = new BitSet();
+        for (Map.Entry<AidKey, AidElement> aidEntry : aidMap.entrySet()) {
+            AidKey aid = aidEntry.getKey();
+            AidElement elem = aidEntry.getValue();
+            int route = routeForAid.get(aid);
+            if (route == defaultRoute) {
+                continue;
+            }
+            AidKey entryAid = elem.getAidKey();
+            if (aid.isPrefix()) {
+                if (mAidMatchingSupport == AidRoutingManager.AID_MATCHING_EXACT_ONLY) {
+                    Log.e(TAG, "This device does not support prefix AIDs.");
+                    continue;
+                } else if (mAidMatchingSupport == AidRoutingManager.AID_MATCHING_PREFIX_ONLY) {
+                    // Cut off '*' since controller anyway treats all AIDs as a prefix
+                    entryAid = entryAid.toExact();
+                } else if (mAidMatchingSupport != AidRoutingManager.AID_MATCHING_EXACT_OR_PREFIX) {
+                    continue;
+                }
+            }
+            candidates.put(aid, new Candidate(aid, new AidElement(entryAid, elem.getWeight(),
+                    route, elem.getPowerState())));
+            if (!aid.isPrefix()) {
+                exactLengths.set(aid.length());
+            }
+        }
+
+        if (mAidMatchingSupport == AidRoutingManager.AID_MATCHING_PREFIX_ONLY ||
+                mAidMatchingPlatform == AidRoutingManager.AID_MATCHING_K) {
+            // Longer AIDs of the default route that a shorter AID on another route
+            // would shadow need an entry of their own, as long as that AID is routed.
+            for (AidKey shadowedAid :
+                    AidRoutingManager.findShadowedAids(sortedAids, routeForAid, defaultRoute)) {
+                AidElement elem = aidMap.get(shadowedAid);
+                AidElement shadowEntry = new AidElement(elem.getAidKey(), elem.getWeight(),
+                        defaultRoute, elem.getPowerState());
+                byte[] shadowedBytes = shadowedAid.getBytes();
+                int maxLength = shadowedAid.isPrefix() ?
+                        shadowedBytes.length : shadowedBytes.length - 1;
+                for (int length = exactLengths.nextSetBit(1); length >= 1 && length <= maxLength;
+                        length = exactLengths.nextSetBit(length + 1)) {
+                    Candidate candidate = candidates.get(new AidKey(shadowedBytes, 0, length));
+                    if (candidate != null) {
+                        candidate.shadowEntries.add(shadowEntry);
+                        candidate.groupSize += getEntrySize(shadowEntry.getAidKey());
+                    }
+                }
+            }
+        }
+
+        ArrayList<Candidate> orderedCandidates = new ArrayList<Candidate>(candidates.values());
+        Collections.sort(orderedCandidates, CANDIDATE_ORDER);
+        HashSet<AidElement> addedShadowEntries = new HashSet<AidElement>();
+        for (Candidate candidate : orderedCandidates) {
+            int size = candidate.size;
+            int count = 1;
+            for (AidElement shadowEntry : candidate.shadowEntries) {
+                if (!addedShadowEntries.contains(shadowEntry)) {
+                    size += getEntrySize(shadowEntry.getAidKey());
+                    count++;
+                }
+            }
+            if (plan.tableSize + size <= mTableSize &&
+                    plan.entries.size() + count <= MAX_AID_ENTRIES) {
+                plan.entries.add(candidate.entry);
+                for (AidElement shadowEntry : candidate.shadowEntries) {
+                    if (addedShadowEntries.add(shadowEntry)) {
+                        plan.entries.add(shadowEntry);
+                    }
+                }
+                plan.tableSize += size;
+            } else {
+                if (VDBG) Log.d(TAG, "Default route " + defaultRoute + ": no room for AID " +
+                        candidate.aid);
+                plan.droppedAids.add(candidate.aid);
+                plan.droppedWeights.add(candidate.entry.getWeight());
+            }
+        }
+        // droppedWeights is in descending order, as candidates were visited by weight
+        return plan;
+    }
+
+    int getRoute(AidElement elem) {
+        int route = elem.getRouteLocation();
+        return route == -1 ? mDefaultOffHostRoute : route;
+    }
+}
@@ -39,14 +39,13 @@ import android.util.Log;
 import android.util.SparseArray;
 
 import com.android.nfc.NfcService;
+import com.vzw.nfc.RouteEntry;
 
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Hashtable;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -93,14 +92,24 @@ public class AidRoutingManager {
 
     // mAidRoutingTable contains the current routing table. The index is the route ID.
     // The route can include routes to a eSE/UICC.
-    SparseArray<Set<String>> mAidRoutingTable =
-            new SparseArray<Set<String>>();
+    SparseArray<Set<AidKey>> mAidRoutingTable =
+            new SparseArray<Set<AidKey>>();
 
     // Easy look-up what the route is for a certain AID
-    HashMap<String, Integer> mRouteForAid = new HashMap<String, Integer>();
+    HashMap<AidKey, Integer> mRouteForAid = new HashMap<AidKey, Integer>();
 
     // Easy look-up what the power state is for a certain AID
-    HashMap<String, Integer> mPowerForAid = new HashMap<String, Integer>();
+    HashMap<AidKey, Integer> mPowerForAid = new HashMap<AidKey, Integer>();
+
+    // The entries in the AID routing table of the controller, in the order
+    // they were added to it; null if the content of that table is not known.
+    ArrayList<AidElement> mCommittedRoutes = null;
+
+    // The default route that was in effect when routing was last committed
+    int mCommittedDefaultRoute = -1;
+
+    // AIDs that did not fit in the routing table when it was last configured
+    ArrayList<AidKey> mDroppedAids = new ArrayList<AidKey>();
 
 
     private native int doGetDefaultRouteDestination();
@@ -124,28 +133,33 @@ public class AidRoutingManager {
         mVzwRoutingCache = new VzwRoutingCache();
     }
 
+    /**
+     * Creates a routing manager with the given controller properties, that
+     * does not query the controller; for tests.
+     */
+    AidRoutingManager(int defaultRoute, int defaultOffHostRoute, int aidMatchingSupport,
+            int aidMatchingPlatform, int aidRoutingTableSize) {
+        mDefaultRoute = defaultRoute;
+        mDefaultOffHostRoute = defaultOffHostRoute;
+        mAidMatchingSupport = aidMatchingSupport;
+        mAidMatchingPlatform = aidMatchingPlatform;
+        mAidRoutingTableSize = aidRoutingTableSize;
+        mVzwRoutingCache = new VzwRoutingCache();
+    }
+
     public boolean supportsAidPrefixRouting() {
         return mAidMatchingSupport == AID_MATCHING_EXACT_OR_PREFIX ||
                 mAidMatchingSupport == AID_MATCHING_PREFIX_ONLY;
     }
-    void clearNfcRoutingTableLocked() {
-        NfcService.getInstance().clearRouting();
-        mRouteForAid.clear();
-        mAidRoutingTable.clear();
-    }
 
-    public boolean configureRouting(HashMap<String, AidElement> aidMap) {
+    public boolean configureRouting(HashMap<AidKey, AidElement> aidMap) {
         mDefaultRoute = NfcService.getInstance().GetDefaultRouteLoc();
-        boolean aidRouteResolved = false;
         if (DBG) Log.d(TAG, "mDefaultRoute=0x" + Integer.toHexString(mDefaultRoute));
-        Hashtable<String, AidElement> routeCache = new Hashtable<String, AidElement>(50);
-        SparseArray<Set<String>> aidRoutingTable = new SparseArray<Set<String>>(aidMap.size());
-        HashMap<String, Integer> routeForAid = new HashMap<String, Integer>(aidMap.size());
-        HashMap<String, Integer> powerForAid = new HashMap<String, Integer>(aidMap.size());
+        SparseArray<Set<AidKey>> aidRoutingTable = new SparseArray<Set<AidKey>>(aidMap.size());
+        HashMap<AidKey, Integer> routeForAid = new HashMap<AidKey, Integer>(aidMap.size());
+        HashMap<AidKey, Integer> powerForAid = new HashMap<AidKey, Integer>(aidMap.size());
         // Then, populate internal data structures first
-        DefaultAidRouteResolveCache defaultRouteCache = new DefaultAidRouteResolveCache();
-
-        for (Map.Entry<String, AidElement> aidEntry : aidMap.entrySet())  {
+        for (Map.Entry<AidKey, AidElement> aidEntry : aidMap.entrySet())  {
             AidElement elem = aidEntry.getValue();
             int route = elem.getRouteLocation();
             int power = elem.getPowerState();
@@ -153,8 +167,8 @@ public class AidRoutingManager {
                 route = mDefaultOffHostRoute;
                 elem.setRouteLocation(route);
             }
-            String aid = aidEntry.getKey();
-            Set<String> entries = aidRoutingTable.get(route, new HashSet<String>());
+            AidKey aid = aidEntry.getKey();
+            Set<AidKey> entries = aidRoutingTable.get(route, new HashSet<AidKey>());
             entries.add(aid);
             aidRoutingTable.put(route, entries);
             routeForAid.put(aid, route);
@@ -163,151 +177,182 @@ public class AidRoutingManager {
                         + Integer.toString(route) + " with power "+ power);
         }
 
+        AidRouteSolver.Plan plan;
         synchronized (mLock) {
-            if (routeForAid.equals(mRouteForAid)) {
+            // If everything fit last time, the same routes and power states
+            // give the same plan for the same default route.
+            if (mCommittedRoutes != null && mDroppedAids.isEmpty() &&
+                    mDefaultRoute == mCommittedDefaultRoute &&
+                    routeForAid.equals(mRouteForAid) && powerForAid.equals(mPowerForAid)) {
                 if (DBG) Log.d(TAG, "Routing table unchanged, not updating");
                 return false;
             }
 
-            // Otherwise, update internal structures and commit new routing
-            clearNfcRoutingTableLocked();
+            // Otherwise, update internal structures and commit new routing; commit()
+            // only sends what changed to the controller.
             mRouteForAid = routeForAid;
             mPowerForAid = powerForAid;
             mAidRoutingTable = aidRoutingTable;
-            for(int routeIndex=0; routeIndex < 0x03; routeIndex++) {
-                routeCache.clear();
-                if (mAidMatchingSupport == AID_MATCHING_PREFIX_ONLY ||
-                    mAidMatchingPlatform == AID_MATCHING_K) {
-                /* If a non-default route registers an exact AID which is shorter
-                 * than this exact AID, this will create a problem with controllers
-                 * that treat every AID in the routing table as a prefix.
-                 * For example, if App A registers F0000000041010 as an exact AID,
-                 * and App B registers F000000004 as an exact AID, and App B is not
-                 * the default route, the following would be added to the routing table:
-                 * F000000004 -> non-default destination
-                 * However, because in this mode, the controller treats every routing table
-                 * entry as a prefix, it means F0000000041010 would suddenly go to the non-default
-                 * destination too, whereas it should have gone to the default.
-                 *
-                 * The only way to prevent this is to add the longer AIDs of the
-                 * default route at the top of the table, so they will be matched first.
-                 */
-                Set<String> defaultRouteAids = mAidRoutingTable.get(mDefaultRoute);
-               if (defaultRouteAids != null) {
-                    for (String defaultRouteAid : defaultRouteAids) {
-                        // Check whether there are any shorted AIDs routed to non-default
-                        // TODO this is O(N^2) run-time complexity...
-                        for (Map.Entry<String, Integer> aidEntry : mRouteForAid.entrySet()) {
-                            String aid = aidEntry.getKey();
-                            int route = aidEntry.getValue();
-                            if (defaultRouteAid.startsWith(aid) && route != mDefaultRoute) {
-                                if (DBG) Log.d(TAG, "Adding AID " + defaultRouteAid + " for default " +
-                                        "route, because a conflicting shorter AID will be added" +
-                                        "to the routing table");
-                                AidElement elem = aidMap.get(defaultRouteAid);
-                                elem.setRouteLocation(mDefaultRoute);
-                                routeCache.put(defaultRouteAid, elem);
-//                                NfcService.getInstance().routeAids(defaultRouteAid, mDefaultRoute, mPowerForAid.get(defaultRouteAid));
-                            }
-                        }
-                    }
-                }
-            }
+            plan = createRouteSolver().solve(aidMap, mDefaultRoute);
+            mDroppedAids = plan.droppedAids;
+        }
+        if (plan.defaultRoute != mDefaultRoute) {
+            mDefaultRoute = plan.defaultRoute;
+            //update preferences if different
+            NfcService.getInstance().setDefaultAidRouteLoc(mDefaultRoute);
+        }
+        if (!plan.fits()) {
+            Log.e(TAG, "AIDs not fitting in the routing table: " + plan.droppedAids);
+            NfcService.getInstance().notifyRoutingTableFull();
+        }
+        // And finally commit the routing
+        return commit(plan.entries);
+    }
 
-            // Add AID entries for all non-default routes
-            for (int i = 0; i < mAidRoutingTable.size(); i++) {
-                int route = mAidRoutingTable.keyAt(i);
-                if (route != mDefaultRoute) {
-                    Set<String> aidsForRoute = mAidRoutingTable.get(route);
-                    for (String aid : aidsForRoute) {
-                        if (aid.endsWith("*")) {
-                            if (mAidMatchingSupport == AID_MATCHING_EXACT_ONLY) {
-                                Log.e(TAG, "This device does not support prefix AIDs.");
-                            } else if (mAidMatchingSupport == AID_MATCHING_PREFIX_ONLY) {
-                                if (DBG) Log.d(TAG, "Routing prefix AID " + aid + " to route "
-                                        + Integer.toString(route));
-                                // Cut off '*' since controller anyway treats all AIDs as a prefix
-                                AidElement elem = aidMap.get(aid);
-                                elem.setAid(aid.substring(0,aid.length() - 1));
-                                routeCache.put(aid, elem);
-//                                NfcService.getInstance().routeAids(aid.substring(0,
-//                                                aid.length() - 1), route, mPowerForAid.get(aid));
-                            } else if (mAidMatchingSupport == AID_MATCHING_EXACT_OR_PREFIX) {
-                                Log.d(TAG, "Routing AID in AID_MATCHING_EXACT_OR_PREFIX");
-                                if (DBG) Log.d(TAG, "Routing prefix AID " + aid + " to route "
-                                        + Integer.toString(route));
-                                AidElement elem = aidMap.get(aid);
-                                routeCache.put(aid, elem);
-//                                NfcService.getInstance().routeAids(aid, route, (mPowerForAid.get(aid)));
-                            }
-                        } else {
-                            if (DBG) Log.d(TAG, "Routing exact AID " + aid + " to route "
-                                    + Integer.toString(route));
-                            AidElement elem = aidMap.get(aid);
-                            routeCache.put(aid, elem);
-//                            NfcService.getInstance().routeAids(aid, route, mPowerForAid.get(aid));
-                        }
-                    }
+    /**
+     * Works out how the AIDs in aidMap would be routed, without changing any
+     * state or the routing table of the controller; the returned plan tells
+     * which default route would be used, and which AIDs would not fit.
+     */
+    public AidRouteSolver.Plan dryRunRouting(HashMap<AidKey, AidElement> aidMap) {
+        return createRouteSolver().solve(aidMap, NfcService.getInstance().GetDefaultRouteLoc());
+    }
+
+    AidRouteSolver createRouteSolver() {
+        return new AidRouteSolver(mAidMatchingSupport, mAidMatchingPlatform,
+                mDefaultOffHostRoute, mAidRoutingTableSize);
+    }
+
+    /**
+     * Returns the AIDs routed to defaultRoute that start with a shorter AID
+     * routed elsewhere, in a single pass over the sorted AIDs.
+     *
+     * In sorted order, all AIDs starting with an AID directly follow it, so the
+     * AIDs that the current AID starts with always form a chain on the stack.
+     * As for their hex Strings, a prefix AID only starts with exact AIDs.
+     */
+    static ArrayList<AidKey> findShadowedAids(AidKey[] sortedAids,
+            Map<AidKey, Integer> routeForAid, int defaultRoute) {
+        ArrayList<AidKey> shadowedAids = new ArrayList<AidKey>();
+        AidKey[] stack = new AidKey[sortedAids.length];
+        boolean[] stackNonDefault = new boolean[sortedAids.length];
+        int stackSize = 0;
+        int nonDefaultCount = 0;
+        for (AidKey aid : sortedAids) {
+            while (stackSize > 0 && (stack[stackSize - 1].isPrefix() ||
+                    !aid.startsWith(stack[stackSize - 1]))) {
+                stackSize--;
+                if (stackNonDefault[stackSize]) {
+                    nonDefaultCount--;
                 }
             }
+            boolean isNonDefault = routeForAid.get(aid) != defaultRoute;
+            if (!isNonDefault && nonDefaultCount > 0) {
+                shadowedAids.add(aid);
+            }
+            stack[stackSize] = aid;
+            stackNonDefault[stackSize] = isNonDefault;
+            stackSize++;
+            if (isNonDefault) {
+                nonDefaultCount++;
+            }
+        }
+        return shadowedAids;
+    }
 
-            if((routeIndex == 0x00) && (defaultRouteCache.calculateAidRouteSize(routeCache) <= mAidRoutingTableSize)) {
-                // maximum aid table size is less than  AID route table size
-                aidRouteResolved = true;
-                break;
-            } else {
-                defaultRouteCache.updateDefaultAidRouteCache(routeCache , mDefaultRoute);
-                mDefaultRoute = defaultRouteCache.getNextRouteLoc();
-                if(mDefaultRoute == 0xFF)
-                {
-                    break;
+    private boolean commit(List<AidElement> routes) {
+
+        List<AidElement> list = new ArrayList<AidElement>(routes);
+        Collections.sort(list);
+        int defaultRoute = NfcService.getInstance().GetDefaultRouteLoc();
+        synchronized (mLock) {
+            ArrayList<AidElement> removedRoutes = new ArrayList<AidElement>();
+            ArrayList<AidElement> addedRoutes = new ArrayList<AidElement>();
+            boolean clearTable = false;
+            if (findRoutingDeltaLocked(list, removedRoutes, addedRoutes)) {
+                if (removedRoutes.isEmpty() && addedRoutes.isEmpty() &&
+                        defaultRoute == mCommittedDefaultRoute) {
+                    if (DBG) Log.d(TAG, "Routing table unchanged, not updating");
+                    return false;
                 }
+                if (DBG) Log.d(TAG, "Updating routing: removing " + removedRoutes.size() +
+                        ", adding " + addedRoutes.size() + " entries");
+                for (AidElement element : removedRoutes) {
+                    if (DBG) Log.d(TAG, "Unrouting " + element.toString());
+                    mCommittedRoutes.remove(element);
+                }
+            } else {
+                if (DBG) Log.d(TAG, "Rewriting routing table with " + list.size() + " entries");
+                clearTable = true;
+                mCommittedRoutes = new ArrayList<AidElement>();
+                removedRoutes.clear();
+                addedRoutes.clear();
+                addedRoutes.addAll(list);
             }
+            for (AidElement element : addedRoutes) {
+                if (DBG) Log.d (TAG, element.toString());
+                mCommittedRoutes.add(element);
+            }
+            mCommittedDefaultRoute = defaultRoute;
+            // Program and commit the whole update with a single message
+            NfcService.getInstance().updateAidRouting(removedRoutes, addedRoutes, clearTable);
+        }
+        return true;
+    }
 
+    /**
+     * Works out which entries must be removed from and added to the routing
+     * table in the controller to get to routes, which must be sorted.
+     *
+     * New entries end up behind the entries that are kept, so the table in
+     * the controller is only in sorted order if the order of the entries
+     * does not matter. Since controllers do not guarantee how they match
+     * overlapping entries, this returns false if an added entry overlaps a
+     * kept one, i.e. one AID is a prefix of the other; then the whole table
+     * has to be rewritten in sorted order.
+     */
+    boolean findRoutingDeltaLocked(List<AidElement> routes, List<AidElement> removedRoutes,
+            List<AidElement> addedRoutes) {
+        if (mCommittedRoutes == null) {
+            return false;
         }
+        HashMap<AidKey, AidElement> routeForAid = new HashMap<AidKey, AidElement>();
+        for (AidElement element : routes) {
+            if (routeForAid.put(element.getAidKey(), element) != null) {
+                // Two entries for the same AID; only a full rewrite keeps their order
+                return false;
+            }
         }
-        if(aidRouteResolved == false) {
-            if(mAidRoutingTable.size() == 0x00) {
-                aidRouteResolved = true;
-                //update the cache , no applications present.
+        HashMap<AidKey, AidElement> committedRouteForAid = new HashMap<AidKey, AidElement>();
+        ArrayList<AidElement> keptRoutes = new ArrayList<AidElement>();
+        for (AidElement element : mCommittedRoutes) {
+            if (committedRouteForAid.put(element.getAidKey(), element) != null) {
+                // Can't tell which of the entries for this AID would be removed
+                return false;
             }
-            else if(defaultRouteCache.resolveDefaultAidRoute() == true) {
-                aidRouteResolved = true;
-                routeCache = defaultRouteCache.getResolvedAidRouteCache();
-                //update preferences if different
-                NfcService.getInstance().setDefaultAidRouteLoc(defaultRouteCache.getResolvedAidRoute());
+            AidElement newElement = routeForAid.get(element.getAidKey());
+            if (newElement != null && newElement.isSameRoute(element)) {
+                keptRoutes.add(element);
             } else {
-                NfcService.getInstance().notifyRoutingTableFull();
+                removedRoutes.add(element);
             }
         }
-        // And finally commit the routing
-        if(aidRouteResolved == true) {
-            commit(routeCache);
+        for (AidElement element : routes) {
+            AidElement committedElement = committedRouteForAid.get(element.getAidKey());
+            if (committedElement == null || !committedElement.isSameRoute(element)) {
+                addedRoutes.add(element);
+            }
         }
-//        NfcService.getInstance().commitRouting();
-
-        return true;
-    }
-
-    private void commit(Hashtable<String, AidElement> routeCache ) {
-
-        if(routeCache != null) {
-            List<AidElement> list = Collections.list(routeCache.elements());
-            Collections.sort(list);
-            Iterator<AidElement> it = list.iterator();
-            NfcService.getInstance().clearRouting();
-            while(it.hasNext()){
-                AidElement element =it.next();
-                if (DBG) Log.d (TAG, element.toString());
-                NfcService.getInstance().routeAids(
-                    element.getAid(),
-                    element.getRouteLocation(),
-                    element.getPowerState()
-                    );
+        for (AidElement addedElement : addedRoutes) {
+            for (AidElement keptElement : keptRoutes) {
+                if (addedElement.overlaps(keptElement)) {
+                    if (DBG) Log.d(TAG, "Entry " + addedElement.getAid() + " overlaps " +
+                            keptElement.getAid() + ", rewriting routing table");
+                    return false;
+                }
             }
         }
-        // And finally commit the routing
-        NfcService.getInstance().commitRouting();
+        return true;
     }
 
     /**
@@ -320,22 +365,32 @@ public class AidRoutingManager {
         synchronized (mLock) {
             mAidRoutingTable.clear();
             mRouteForAid.clear();
+            mCommittedRoutes = null;
+        }
+    }
+
+    /**
+     * This notifies that applying the last routing update failed part of
+     * the way, so the content of the AID routing table in the controller is
+     * not known; the next update rewrites the whole table.
+     */
+    public void onAidRoutingUpdateFailed() {
+        synchronized (mLock) {
+            mCommittedRoutes = null;
         }
     }
 
-    public boolean UpdateVzwCache(byte[] aid,int route,int power,boolean isAllowed){
-       mVzwRoutingCache.addAid(aid,route,power,isAllowed);
-       return true;
+    /**
+     * Replaces the VZW AIDs, returns whether any of them changed.
+     */
+    public boolean SetVzwCache(RouteEntry[] entries) {
+        return mVzwRoutingCache.setAids(entries);
     }
 
     public VzwRoutingCache GetVzwCache(){
        return mVzwRoutingCache;
     }
 
-    public void ClearVzwCache() {
-        mVzwRoutingCache.clear();
-    }
-
     public int getAidMatchMode() {
         return mAidMatchingSupport;
     }
@@ -349,128 +404,18 @@ public class AidRoutingManager {
         pw.println("    Default route: " + ((mDefaultRoute == 0x00) ? "host" : "secure element"));
         synchronized (mLock) {
             for (int i = 0; i < mAidRoutingTable.size(); i++) {
-                Set<String> aids = mAidRoutingTable.valueAt(i);
+                Set<AidKey> aids = mAidRoutingTable.valueAt(i);
                 pw.println("    Routed to 0x" + Integer.toHexString(mAidRoutingTable.keyAt(i)) + ":");
-                for (String aid : aids) {
+                for (AidKey aid : aids) {
                     pw.println("        \"" + aid + "\"");
                 }
             }
-        }
-    }
-    final class DefaultAidRouteResolveCache {
-        static final int AID_HDR_LENGTH = 0x04; // TAG + ROUTE + LENGTH_BYTE + POWER
-        static final int MAX_AID_ENTRIES = 50;
-        //AidCacheTable contains the current aid routing table for particular route.
-        //The index is the route ID.
-        private SparseArray<Hashtable<String, AidElement>> aidCacheTable;
-        private HashMap <Integer , Integer> aidCacheSize;
-        //HashMap containing aid routing size .
-        //The index is route ID.
-        private Hashtable<String, AidElement> resolvedAidCache;//HashTable containing resolved default aid routeCache
-        private int mCurrDefaultAidRoute; // current default route in preferences
-        private int mResolvedAidRoute;    //resolved aid route location
-        private boolean mAidRouteResolvedStatus; // boolean value
-        private ArrayList<Integer> aidRoutes;//non-default route location
-
-        DefaultAidRouteResolveCache () {
-            aidCacheTable = new SparseArray<Hashtable<String, AidElement>>(0x03);
-            resolvedAidCache = new Hashtable<String, AidElement>();
-            aidCacheSize= new HashMap <Integer , Integer>(0x03);
-            aidRoutes = new ArrayList<Integer>();
-            mCurrDefaultAidRoute = NfcService.getInstance().GetDefaultRouteLoc();
-            mAidRouteResolvedStatus = false;
-        }
-
-        private Hashtable<String, AidElement> extractResolvedCache()
-        {
-            if(mAidRouteResolvedStatus == false) {
-                return null;
-            }
-            for(int i=0;i< aidCacheTable.size() ;i++) {
-                int route = aidCacheTable.keyAt(i);
-                if(route == mResolvedAidRoute) {
-                    return aidCacheTable.get(route);
-                }
-            }
-            return null;
-        }
-
-
-        public int calculateAidRouteSize(Hashtable<String, AidElement> routeCache) {
-            int routeTableSize = 0x00;
-            int routeAidCount = 0x00;
-            for(Map.Entry<String, AidElement> aidEntry : routeCache.entrySet()) {
-                String aid = aidEntry.getKey();
-                if(aid.endsWith("*")) {
-                    routeTableSize += ((aid.length() - 0x01) / 0x02) + AID_HDR_LENGTH; // removing prefix length
-                } else {
-                    routeTableSize += (aid.length() / 0x02)+ AID_HDR_LENGTH;
+            if (!mDroppedAids.isEmpty()) {
+                pw.println("    Not fitting in the routing table:");
+                for (AidKey aid : mDroppedAids) {
+                    pw.println("        \"" + aid + "\"");
                 }
-                routeAidCount++;
-            }
-            Log.d(TAG, "calculateAidRouteSize final Routing table size" +routeTableSize);
-            if(routeTableSize <= mAidRoutingTableSize && routeAidCount > MAX_AID_ENTRIES) {
-                routeTableSize = mAidRoutingTableSize + 0x01;
             }
-                return routeTableSize;
         }
-
-       public int updateDefaultAidRouteCache(Hashtable<String, AidElement> routeCache , int route) {
-           int routesize = 0x00;
-           Hashtable<String, AidElement> tempRouteCache = new Hashtable<String, AidElement>(0x50);
-           tempRouteCache.putAll(routeCache);
-           routesize = calculateAidRouteSize(tempRouteCache);
-           aidCacheTable.put(route, tempRouteCache);
-           aidCacheSize.put(route, routesize);
-           Log.d(TAG, "updateDefaultAidRouteCache Routing table size" +routesize);
-           return routesize;
-       }
-
-       public boolean resolveDefaultAidRoute () {
-
-           int minRoute = 0xFF;
-           int minAidRouteSize = mAidRoutingTableSize;
-           int tempRoute = 0x00;
-           int tempCacheSize = 0x00;
-           Hashtable<String, AidElement> aidRouteCache = new Hashtable<String, AidElement>();
-           Set<Integer> keys = aidCacheSize.keySet();
-           for (Integer key : keys) {
-               tempRoute = key;
-               tempCacheSize = aidCacheSize.get(key);
-               if (tempCacheSize <= minAidRouteSize) {
-                   minAidRouteSize = tempCacheSize;
-                   minRoute = tempRoute;
-               }
-           }
-           if(minRoute != 0xFF) {
-               mAidRouteResolvedStatus = true;
-               mResolvedAidRoute = minRoute;
-               Log.d(TAG, "min route found "+mResolvedAidRoute);
-           }
-
-           return mAidRouteResolvedStatus;
-       }
-
-       public int getResolvedAidRoute () {
-           return mResolvedAidRoute;
-       }
-
-       public Hashtable<String, AidElement>  getResolvedAidRouteCache() {
-
-           return extractResolvedCache();
-       }
-
-       public int getNextRouteLoc() {
-
-           for (int i = 0; i < 0x03; i++) {
-               if((i != mCurrDefaultAidRoute) && (!aidRoutes.contains(i)))
-               {
-                   aidRoutes.add(i);
-                   return i;
-               }
-           }
-           return 0xFF;
-       }
-
     }
 }
@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2015 NXP Semiconductors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.nfc.cardemulation;
+
+import android.nfc.cardemulation.ApduServiceInfo;
+import android.nfc.cardemulation.CardEmulation;
+import android.util.Log;
+
+import com.android.nfc.cardemulation.RegisteredAidCache.AidResolveInfo;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Byte-keyed trie over the resolved AID cache of {@link RegisteredAidCache}.
+ *
+ * Every node corresponds to a sequence of AID bytes and may carry the
+ * resolve info of an exact AID and/or of a prefix AID ending at that node.
+ * When the trie is built, every node also gets the resolve info that a
+ * SELECT ending at (or passing through) that node resolves to, already merged
+ * with the resolve infos of all shorter prefix AIDs on its path. Resolving a
+ * SELECT is therefore a single walk over the AID bytes, without any String
+ * allocation or merging on the APDU path.
+ *
+ * A trie is immutable once built; a new one is built whenever the AID cache
+ * is regenerated.
+ */
+final class AidTrie {
+    static final String TAG = "AidTrie";
+
+    static final class Node {
+        // Sorted child keys and the matching child nodes
+        byte[] keys = new byte[0];
+        Node[] children = new Node[0];
+
+        // Resolve infos as stored in the AID cache
+        AidResolveInfo exactInfo;
+        AidResolveInfo prefixInfo;
+
+        // Merged result for a SELECT that continues past this node, or stops
+        // in a part of the tree below it that has no nodes
+        AidResolveInfo prefixResult;
+        // Merged result for a SELECT that ends exactly at this node
+        AidResolveInfo exactResult;
+
+        Node child(byte key) {
+            int low = 0;
+            int high = keys.length - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int cmp = (keys[mid] & 0xFF) - (key & 0xFF);
+                if (cmp < 0) {
+                    low = mid + 1;
+                } else if (cmp > 0) {
+                    high = mid - 1;
+                } else {
+                    return children[mid];
+                }
+            }
+            return null;
+        }
+
+        Node getOrCreateChild(byte key) {
+            int index = 0;
+            while (index < keys.length && (keys[index] & 0xFF) < (key & 0xFF)) {
+                index++;
+            }
+            if (index < keys.length && keys[index] == key) {
+                return children[index];
+            }
+            byte[] newKeys = new byte[keys.length + 1];
+            Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(keys, 0, newKeys, 0, index);
+            System.arraycopy(children, 0, newChildren, 0, index);
+            System.arraycopy(keys, index, newKeys, index + 1, keys.length - index);
+            System.arraycopy(children, index, newChildren, index + 1, children.length - index);
+            Node child = new Node();
+            newKeys[index] = key;
+            newChildren[index] = child;
+            keys = newKeys;
+            children = newChildren;
+            return child;
+        }
+    }
+
+    // Returned when a SELECT matches nothing on a controller supporting
+    // prefixes; handed out to every caller, so its services can't be changed
+    static final AidResolveInfo EMPTY_RESULT = createEmptyResult();
+
+    final Node mRoot = new Node();
+    final boolean mMergePrefixes;
+
+    private AidTrie(boolean mergePrefixes) {
+        mMergePrefixes = mergePrefixes;
+    }
+
+    private static AidResolveInfo createEmptyResult() {
+        AidResolveInfo resolveInfo = new AidResolveInfo();
+        resolveInfo.services = Collections.<ApduServiceInfo>emptyList();
+        resolveInfo.category = CardEmulation.CATEGORY_OTHER;
+        return resolveInfo;
+    }
+
+    /**
+     * Builds a trie from the AID cache. Keys are upper-case hex AIDs,
+     * optionally followed by '*' for prefix AIDs; entries that carry their
+     * AID in binary are inserted without parsing the key.
+     */
+    static AidTrie build(Map<String, AidResolveInfo> aidCache, boolean mergePrefixes) {
+        AidTrie trie = new AidTrie(mergePrefixes);
+        for (Map.Entry<String, AidResolveInfo> entry : aidCache.entrySet()) {
+            AidKey aid = entry.getValue().aid;
+            if (aid != null) {
+                trie.insert(aid, entry.getValue());
+            } else {
+                trie.insert(entry.getKey(), entry.getValue());
+            }
+        }
+        trie.computeResults(trie.mRoot, null);
+        return trie;
+    }
+
+    // Inserts an AID that was parsed when it was registered
+    private void insert(AidKey aid, AidResolveInfo resolveInfo) {
+        Node node = mRoot;
+        for (int i = 0; i < aid.length(); i++) {
+            node = node.getOrCreateChild(aid.byteAt(i));
+        }
+        if (aid.isPrefix()) {
+            node.prefixInfo = resolveInfo;
+        } else {
+            node.exactInfo = resolveInfo;
+        }
+    }
+
+    private void insert(String aid, AidResolveInfo resolveInfo) {
+        boolean isPrefix = RegisteredAidCache.isPrefix(aid);
+        byte[] bytes = hexToBytes(aid, isPrefix ? aid.length() - 1 : aid.length());
+        if (bytes == null) {
+            Log.e(TAG, "Ignoring invalid AID " + aid);
+            return;
+        }
+        Node node = mRoot;
+        for (byte b : bytes) {
+            node = node.getOrCreateChild(b);
+        }
+        if (isPrefix) {
+            node.prefixInfo = resolveInfo;
+        } else {
+            node.exactInfo = resolveInfo;
+        }
+    }
+
+    private void computeResults(Node node, AidResolveInfo parentPrefixResult) {
+        if (mMergePrefixes) {
+            // Same order in which the matching AIDs were merged from the sorted cache:
+            // shorter prefixes first, then the exact AID, then the prefix of the same length.
+            AidResolveInfo exactResult = merge(parentPrefixResult, node.exactInfo);
+            node.exactResult = merge(exactResult, node.prefixInfo);
+            node.prefixResult = merge(parentPrefixResult, node.prefixInfo);
+        } else {
+            node.exactResult = node.exactInfo;
+        }
+        for (Node child : node.children) {
+            computeResults(child, node.prefixResult);
+        }
+    }
+
+    private AidResolveInfo merge(AidResolveInfo merged, AidResolveInfo entry) {
+        if (entry == null) {
+            return merged;
+        }
+        AidResolveInfo result = new AidResolveInfo();
+        result.category = CardEmulation.CATEGORY_OTHER;
+        if (merged != null) {
+            result.services.addAll(merged.services);
+            result.defaultService = merged.defaultService;
+            result.category = merged.category;
+        }
+        if (entry.defaultService != null) {
+            if (result.defaultService != null) {
+                // This shouldn't happen; for every prefix we have only one
+                // default service.
+                Log.e(TAG, "Different defaults for conflicting AIDs!");
+            }
+            result.defaultService = entry.defaultService;
+            result.category = entry.category;
+        }
+        for (ApduServiceInfo serviceInfo : entry.services) {
+            if (!result.services.contains(serviceInfo)) {
+                result.services.add(serviceInfo);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Resolves the AID in aid[offset, offset + length).
+     *
+     * @param isPrefix whether the AID is itself a prefix, in which case only
+     *                 shorter or equal prefix registrations match
+     * @return the merged resolve info; null if the controller doesn't support
+     *         prefixes and the AID is not registered
+     */
+    AidResolveInfo resolve(byte[] aid, int offset, int length, boolean isPrefix) {
+        Node node = mRoot;
+        AidResolveInfo lastPrefixResult = null;
+        for (int i = 0; i < length; i++) {
+            node = node.child(aid[offset + i]);
+            if (node == null) {
+                return mMergePrefixes ? resultOrEmpty(lastPrefixResult) : null;
+            }
+            lastPrefixResult = node.prefixResult;
+        }
+        if (!mMergePrefixes) {
+            return isPrefix ? null : node.exactResult;
+        }
+        return resultOrEmpty(isPrefix ? node.prefixResult : node.exactResult);
+    }
+
+    private AidResolveInfo resultOrEmpty(AidResolveInfo resolveInfo) {
+        return resolveInfo != null ? resolveInfo : EMPTY_RESULT;
+    }
+
+    /**
+     * Converts a hex AID, optionally followed by '*', to its bytes.
+     * Returns null if the AID is not valid hex. Lower-case digits are
+     * accepted, so AIDs resolved through the trie match regardless of case.
+     */
+    static byte[] hexToBytes(String aid, int hexLength) {
+        if ((hexLength & 0x01) != 0) {
+            return null;
+        }
+        byte[] bytes = new byte[hexLength / 2];
+        for (int i = 0; i < hexLength; i += 2) {
+            int high = Character.digit(aid.charAt(i), 16);
+            int low = Character.digit(aid.charAt(i + 1), 16);
+            if (high < 0 || low < 0) {
+                return null;
+            }
+            bytes[i / 2] = (byte) ((high << 4) | low);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2015 NXP Semiconductors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.nfc.cardemulation;
+
+import android.os.Bundle;
+import android.os.MemoryFile;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+/**
+ * Opt-in channel that carries APDUs between the NFC service and a
+ * HostApduService through shared memory, instead of a Bundle per APDU.
+ *
+ * Only services that declare the {@link #META_DATA_SHARED_CHANNEL}
+ * meta-data as true are asked. When such a service is bound,
+ * MSG_OPEN_CHANNEL asks it whether it wants the channel, and a service
+ * that does replies with MSG_CHANNEL_OPENED. Only then is the shared
+ * memory file allocated and handed to the service with
+ * MSG_CHANNEL_MEMORY. The first half of that file holds command APDUs,
+ * and the second half holds response APDUs. From then on,
+ * MSG_COMMAND_APDU and MSG_RESPONSE_APDU only carry the offset (arg1)
+ * and length (arg2) of an APDU within its half. APDUs that do not fit in
+ * a half are sent the regular way.
+ *
+ * The command half is written as a ring: an APDU goes after the previous
+ * one, or at the start of the half if it does not fit there. The
+ * response to a command, sent either way, acknowledges that the service
+ * read it. A command is never written over one that was not acknowledged
+ * yet; if it would be, it is sent the regular way instead.
+ */
+final class ApduSharedChannel {
+    static final String TAG = "ApduSharedChannel";
+
+    static final String META_DATA_SHARED_CHANNEL = "com.android.nfc.shared_apdu_channel";
+
+    static final int MSG_OPEN_CHANNEL = 0x100;
+    static final int MSG_CHANNEL_OPENED = 0x101;
+    static final int MSG_COMMAND_APDU = 0x102;
+    static final int MSG_RESPONSE_APDU = 0x103;
+    static final int MSG_CHANNEL_MEMORY = 0x104;
+
+    static final String KEY_MEMORY = "memory";
+    static final String KEY_REGION_SIZE = "regionSize";
+
+    // Size of each half; fits short APDUs and most extended ones
+    static final int REGION_SIZE = 0x8000;
+
+    // Command location of an APDU that was sent the regular way
+    static final int[] NO_REGION = new int[] {0, 0};
+
+    final Messenger mService;
+    MemoryFile mMemory;
+    int mWriteOffset;
+
+    // Offset and length of the commands the service did not respond to yet
+    final ArrayDeque<int[]> mUnacknowledged = new ArrayDeque<int[]>();
+
+    ApduSharedChannel(Messenger service) {
+        mService = service;
+    }
+
+    /**
+     * Returns whether the meta-data of a service declares that it supports
+     * the channel.
+     */
+    static boolean isSupported(Bundle metaData) {
+        return metaData != null && metaData.getBoolean(META_DATA_SHARED_CHANNEL, false);
+    }
+
+    /**
+     * Asks the service whether it wants the channel; returns null if that
+     * failed.
+     */
+    static ApduSharedChannel offer(Messenger service, Messenger replyTo) {
+        Message msg = Message.obtain(null, MSG_OPEN_CHANNEL);
+        msg.replyTo = replyTo;
+        try {
+            service.send(msg);
+        } catch (RemoteException e) {
+            Log.e(TAG, "Remote service has died, not offering shared APDU channel");
+            return null;
+        }
+        return new ApduSharedChannel(service);
+    }
+
+    /**
+     * Allocates the shared memory once the service accepted the channel,
+     * and hands it to the service. Returns false if that failed.
+     */
+    boolean onOpened(Messenger replyTo) {
+        if (mMemory != null) {
+            return true;
+        }
+        MemoryFile memory = null;
+        try {
+            memory = new MemoryFile("hce_apdu", 2 * REGION_SIZE);
+            ParcelFileDescriptor fd = ParcelFileDescriptor.dup(memory.getFileDescriptor());
+            Bundle bundle = new Bundle();
+            bundle.putParcelable(KEY_MEMORY, fd);
+            bundle.putInt(KEY_REGION_SIZE, REGION_SIZE);
+            Message msg = Message.obtain(null, MSG_CHANNEL_MEMORY);
+            msg.setData(bundle);
+            msg.replyTo = replyTo;
+            try {
+                mService.send(msg);
+            } finally {
+                // The service got its own copy of the descriptor
+                fd.close();
+            }
+            mMemory = memory;
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not create shared APDU channel", e);
+        } catch (RemoteException e) {
+            Log.e(TAG, "Remote service has died, not opening shared APDU channel");
+        }
+        if (memory != null) {
+            memory.close();
+        }
+        return false;
+    }
+
+    /**
+     * Sends a command APDU through the channel. Returns false if the APDU
+     * must be sent the regular way instead.
+     */
+    boolean sendCommand(byte[] data, Messenger replyTo) throws RemoteException {
+        if (mMemory == null) {
+            return false;
+        }
+        int offset = (mWriteOffset + data.length > REGION_SIZE) ? 0 : mWriteOffset;
+        if (data.length > REGION_SIZE || overlapsUnacknowledged(offset, data.length)) {
+            mUnacknowledged.addLast(NO_REGION);
+            return false;
+        }
+        try {
+            mMemory.writeBytes(data, 0, offset, data.length);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write command APDU", e);
+            mUnacknowledged.addLast(NO_REGION);
+            return false;
+        }
+        mWriteOffset = offset + data.length;
+        mUnacknowledged.addLast(new int[] {offset, data.length});
+        Message msg = Message.obtain(null, MSG_COMMAND_APDU, offset, data.length);
+        msg.replyTo = replyTo;
+        mService.send(msg);
+        return true;
+    }
+
+    boolean overlapsUnacknowledged(int offset, int length) {
+        for (int[] command : mUnacknowledged) {
+            if (offset < command[0] + command[1] && command[0] < offset + length) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Called for each response of the service, sent either way; the
+     * oldest outstanding command may now be overwritten.
+     */
+    void onResponse() {
+        mUnacknowledged.pollFirst();
+    }
+
+    /**
+     * Reads a response APDU the service wrote, or returns null if offset
+     * and length do not point within the response half.
+     */
+    byte[] readResponse(int offset, int length) {
+        if (mMemory == null) {
+            return null;
+        }
+        if (offset < 0 || length <= 0 || length > REGION_SIZE - offset) {
+            Log.e(TAG, "Invalid response APDU location " + offset + "/" + length);
+            return null;
+        }
+        byte[] data = new byte[length];
+        try {
+            mMemory.readBytes(data, REGION_SIZE + offset, 0, length);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read response APDU", e);
+            return null;
+        }
+        return data;
+    }
+
+    void close() {
+        if (mMemory != null) {
+            mMemory.close();
+        }
+    }
+}
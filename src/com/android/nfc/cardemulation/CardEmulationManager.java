@@ -76,6 +76,7 @@ public class CardEmulationManager implements RegisteredServicesCache.Callback,
     final RegisteredAidCache mAidCache;
     final RegisteredNfcid2Cache mNfcid2Cache;
     final RegisteredServicesCache mServiceCache;
+    final ServicesUpdateScheduler mUpdateScheduler;
     final HostEmulationManager mHostEmulationManager;
     final PreferredServices mPreferredServices;
     final Context mContext;
@@ -86,7 +87,13 @@ public class CardEmulationManager implements RegisteredServicesCache.Callback,
         mContext = context;
         mCardEmulationInterface = new CardEmulationInterface();
         mAidCache = new RegisteredAidCache(context, aidRoutingManager);
-        mServiceCache = new RegisteredServicesCache(context, this);
+        // Bursts of service updates caused by package broadcasts are passed
+        // on to this as one; all other updates right away.
+        mUpdateScheduler = new ServicesUpdateScheduler(this,
+                ServicesUpdateScheduler.DEFAULT_WINDOW_MS,
+                ServicesUpdateScheduler.DEFAULT_MAX_DELAY_MS);
+        mServiceCache = new RegisteredServicesCache(context,
+                mUpdateScheduler.mImmediateCallback, mUpdateScheduler);
         mNfcid2Cache = new RegisteredNfcid2Cache(context, nfcid2RoutingManager, mServiceCache);
         mHostEmulationManager = new HostEmulationManager(context, mAidCache, mNfcid2Cache);
         mPreferredServices = new PreferredServices(context, mServiceCache, mAidCache, this);
@@ -127,8 +134,12 @@ public class CardEmulationManager implements RegisteredServicesCache.Callback,
     }
 
     public void onUserSwitched(int userId) {
+        // Swap in the AID state of the user, if it was retained, before its
+        // services are loaded; loading them then only applies what changed.
+        mAidCache.onUserSwitched(userId);
         mServiceCache.invalidateCache(userId);
         mPreferredServices.onUserSwitched(userId);
+        mHostEmulationManager.onUserSwitched();
     }
 
     public void onNfcEnabled() {
@@ -143,6 +154,7 @@ public class CardEmulationManager implements RegisteredServicesCache.Callback,
 
     public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
         mServiceCache.dump(fd, pw, args);
+        mUpdateScheduler.dump(pw);
         mPreferredServices.dump(fd, pw, args);
         mAidCache.dump(fd, pw, args);
         mHostEmulationManager.dump(fd, pw, args);
@@ -158,6 +170,19 @@ public class CardEmulationManager implements RegisteredServicesCache.Callback,
         mPreferredServices.onServicesUpdated();
 
         mNfcid2Cache.onServicesUpdated(userId, services);
+        mHostEmulationManager.onServicesUpdated(services);
+    }
+
+    @Override
+    public void onPackageServicesUpdated(int userId, List<ApduServiceInfo> services,
+            List<ApduServiceInfo> updated, List<ComponentName> removed) {
+        verifyDefaults(userId, services);
+        // Only the services of the package need to be looked at again
+        mAidCache.onPackageServicesUpdated(userId, services, updated, removed);
+        mPreferredServices.onServicesUpdated();
+
+        mNfcid2Cache.onServicesUpdated(userId, services);
+        mHostEmulationManager.onPackageServicesUpdated(services, updated, removed);
     }
 
     void verifyDefaults(int userId, List<ApduServiceInfo> services) {
@@ -437,6 +462,10 @@ public class CardEmulationManager implements RegisteredServicesCache.Callback,
         mHostEmulationManager.setScreenState(state);
     }
 
+    public void onScreenUnlocked() {
+        mHostEmulationManager.onScreenUnlocked();
+    }
+
     public void onRoutingTableChanged() {
         mAidCache.onRoutingTableChanged();
     }
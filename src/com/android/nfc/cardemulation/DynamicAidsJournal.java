@@ -0,0 +1,358 @@
+/*
+ * Copyright (C) 2015 NXP Semiconductors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.nfc.cardemulation;
+
+import android.content.ComponentName;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only store of dynamic AID registrations.
+ *
+ * Every (un)registration is appended as one record, so it costs a small
+ * write instead of a rewrite of all registrations. Each record carries a
+ * CRC32 of its payload; when reading, the records after a torn or corrupt
+ * one, as left by a crash during an append, are cut off. Once the journal
+ * holds many more records than there are live registrations, the owner
+ * rewrites it from its current state with {@link #compact(List)}, which
+ * replaces the file atomically.
+ *
+ * Not thread-safe; the caller synchronizes.
+ */
+final class DynamicAidsJournal {
+    static final String TAG = "DynamicAidsJournal";
+
+    static final int MAGIC = 0x44414a4e; // "DAJN"
+    static final int VERSION = 1;
+    static final int HEADER_LENGTH = 8;
+
+    static final int OP_PUT_GROUP = 1;
+    static final int OP_REMOVE_GROUP = 2;
+    static final int OP_REMOVE_SERVICE = 3;
+
+    // Records larger than this are considered corrupt
+    static final int MAX_RECORD_LENGTH = 0x10000;
+
+    // Compact when there are more records than this, and more than
+    // COMPACT_RATIO times the number of live registrations.
+    static final int COMPACT_MIN_RECORDS = 64;
+    static final int COMPACT_RATIO = 2;
+
+    static final class Record {
+        final int op;
+        final int uid;
+        final ComponentName component;
+        // Null for OP_REMOVE_SERVICE
+        final String category;
+        // Only for OP_PUT_GROUP
+        final List<String> aids;
+
+        Record(int op, int uid, ComponentName component, String category, List<String> aids) {
+            this.op = op;
+            this.uid = uid;
+            this.component = component;
+            this.category = category;
+            this.aids = aids;
+        }
+
+        static Record putGroup(int uid, ComponentName component, String category,
+                List<String> aids) {
+            return new Record(OP_PUT_GROUP, uid, component, category, aids);
+        }
+
+        static Record removeGroup(int uid, ComponentName component, String category) {
+            return new Record(OP_REMOVE_GROUP, uid, component, category, null);
+        }
+
+        static Record removeService(int uid, ComponentName component) {
+            return new Record(OP_REMOVE_SERVICE, uid, component, null, null);
+        }
+    }
+
+    final AtomicFile mFile;
+    // Where AtomicFile keeps the previous journal while compacting
+    final File mBackupFile;
+    int mRecordCount;
+
+    DynamicAidsJournal(File file) {
+        mFile = new AtomicFile(file);
+        mBackupFile = new File(file.getPath() + ".bak");
+    }
+
+    /**
+     * Returns whether there is a journal, including one that only survived
+     * as backup of a compaction that did not finish.
+     */
+    boolean exists() {
+        return mFile.getBaseFile().exists() || mBackupFile.exists();
+    }
+
+    /**
+     * Puts back the journal from the backup of a compaction that did not
+     * finish; AtomicFile does so when the file is opened for reading.
+     */
+    boolean restoreBackup() {
+        if (!mBackupFile.exists()) {
+            return true;
+        }
+        Log.e(TAG, "Restoring dynamic AIDs journal from backup");
+        try {
+            mFile.openRead().close();
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not restore dynamic AIDs journal", e);
+            return false;
+        }
+    }
+
+    /**
+     * Reads all intact records, in the order in which they were appended.
+     * Returns null if the journal could not be read at all.
+     */
+    List<Record> read() {
+        final ArrayList<Record> records = new ArrayList<Record>();
+        mRecordCount = 0;
+        if (!exists()) {
+            return records;
+        }
+        DataInputStream in = null;
+        long validLength = 0;
+        boolean truncated = false;
+        try {
+            in = new DataInputStream(new BufferedInputStream(mFile.openRead()));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                Log.e(TAG, "Invalid dynamic AIDs journal, trashing.");
+                in.close();
+                in = null;
+                mFile.delete();
+                return records;
+            }
+            validLength = HEADER_LENGTH;
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (length <= 0 || length > MAX_RECORD_LENGTH) {
+                    truncated = true;
+                    break;
+                }
+                long crc = in.readInt() & 0xffffffffL;
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                CRC32 checksum = new CRC32();
+                checksum.update(payload, 0, length);
+                if (checksum.getValue() != crc) {
+                    truncated = true;
+                    break;
+                }
+                Record record = decode(payload);
+                if (record == null) {
+                    truncated = true;
+                    break;
+                }
+                records.add(record);
+                validLength += 8 + length;
+            }
+        } catch (EOFException e) {
+            // Torn last record
+            truncated = true;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read dynamic AIDs journal", e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        if (truncated) {
+            Log.e(TAG, "Dropping incomplete records at the end of the dynamic AIDs journal");
+            if (validLength < HEADER_LENGTH) {
+                mFile.delete();
+            } else {
+                truncate(validLength);
+            }
+        }
+        mRecordCount = records.size();
+        return records;
+    }
+
+    void truncate(long length) {
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(mFile.getBaseFile(), "rw");
+            file.setLength(length);
+            file.getFD().sync();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not truncate dynamic AIDs journal", e);
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Appends a record and syncs it to disk. Returns false if that failed,
+     * in which case the record must be considered not written.
+     */
+    boolean append(Record record) {
+        // Appending to a base file next to a backup would lose the backup
+        if (!restoreBackup()) {
+            return false;
+        }
+        if (!exists()) {
+            // Start with an empty journal
+            if (!compact(new ArrayList<Record>())) {
+                return false;
+            }
+        }
+        FileOutputStream fos = null;
+        long length = mFile.getBaseFile().length();
+        try {
+            byte[] encoded = encodeWithHeader(record);
+            fos = new FileOutputStream(mFile.getBaseFile(), true);
+            fos.write(encoded);
+            fos.getFD().sync();
+            mRecordCount++;
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Error appending to dynamic AIDs journal", e);
+            // Don't leave a partial record in front of the next one
+            truncate(length);
+            return false;
+        } finally {
+            if (fos != null) {
+                try {
+                    fos.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    boolean needsCompaction(int liveRecords) {
+        return mRecordCount > COMPACT_MIN_RECORDS && mRecordCount > COMPACT_RATIO * liveRecords;
+    }
+
+    /**
+     * Atomically replaces the journal with the given records.
+     */
+    boolean compact(List<Record> records) {
+        FileOutputStream fos = null;
+        try {
+            fos = mFile.startWrite();
+            DataOutputStream out = new DataOutputStream(fos);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            for (Record record : records) {
+                out.write(encodeWithHeader(record));
+            }
+            out.flush();
+            mFile.finishWrite(fos);
+            mRecordCount = records.size();
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Error compacting dynamic AIDs journal", e);
+            if (fos != null) {
+                mFile.failWrite(fos);
+            }
+            return false;
+        }
+    }
+
+    static byte[] encodeWithHeader(Record record) throws IOException {
+        ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream();
+        DataOutputStream payload = new DataOutputStream(payloadBytes);
+        payload.writeByte(record.op);
+        payload.writeInt(record.uid);
+        payload.writeUTF(record.component.flattenToString());
+        if (record.op != OP_REMOVE_SERVICE) {
+            payload.writeUTF(record.category);
+        }
+        if (record.op == OP_PUT_GROUP) {
+            payload.writeShort(record.aids.size());
+            for (String aid : record.aids) {
+                payload.writeUTF(aid);
+            }
+        }
+        payload.flush();
+        byte[] data = payloadBytes.toByteArray();
+        CRC32 checksum = new CRC32();
+        checksum.update(data, 0, data.length);
+
+        ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(8 + data.length);
+        DataOutputStream out = new DataOutputStream(recordBytes);
+        out.writeInt(data.length);
+        out.writeInt((int) checksum.getValue());
+        out.write(data);
+        out.flush();
+        return recordBytes.toByteArray();
+    }
+
+    static Record decode(byte[] payload) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+            int op = in.readByte();
+            int uid = in.readInt();
+            ComponentName component = ComponentName.unflattenFromString(in.readUTF());
+            if (component == null) {
+                return null;
+            }
+            switch (op) {
+                case OP_PUT_GROUP: {
+                    String category = in.readUTF();
+                    int count = in.readUnsignedShort();
+                    ArrayList<String> aids = new ArrayList<String>(count);
+                    for (int i = 0; i < count; i++) {
+                        aids.add(in.readUTF());
+                    }
+                    return Record.putGroup(uid, component, category, aids);
+                }
+                case OP_REMOVE_GROUP:
+                    return Record.removeGroup(uid, component, in.readUTF());
+                case OP_REMOVE_SERVICE:
+                    return Record.removeService(uid, component);
+                default:
+                    return null;
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
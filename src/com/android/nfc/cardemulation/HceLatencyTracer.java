@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2015 NXP Semiconductors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.nfc.cardemulation;
+
+import android.content.ComponentName;
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Records when each phase of an HCE transaction happens, to find out
+ * which phase makes a transaction slow.
+ *
+ * The most recent events are kept in a preallocated ring buffer, so
+ * recording an event does not allocate. Per service, the latencies of the
+ * phases are collected in histograms, from which dump() reports the
+ * 50th, 95th and 99th percentile.
+ */
+final class HceLatencyTracer {
+    static final int EVENT_ACTIVATED = 0;
+    static final int EVENT_COMMAND = 1;
+    static final int EVENT_BIND_STARTED = 2;
+    static final int EVENT_BOUND = 3;
+    static final int EVENT_RESPONSE = 4;
+    static final int EVENT_DEACTIVATED = 5;
+    static final String[] EVENT_NAMES = {"activated", "command", "bind started", "bound",
+            "response", "deactivated"};
+
+    // Latencies collected per service
+    static final int LATENCY_BIND = 0;           // bind started to bound
+    static final int LATENCY_RESPONSE = 1;       // command received to response sent
+    static final int LATENCY_FIRST_RESPONSE = 2; // activated to first response sent
+    static final int LATENCY_TRANSACTION = 3;    // activated to deactivated
+    static final String[] LATENCY_NAMES = {"bind", "response", "first response",
+            "transaction"};
+
+    static final int RING_SIZE = 256;
+
+    /**
+     * Histogram over log-scaled buckets: one per microsecond below 4 us, and
+     * from there on every power of two split in four, up to 2^26 us (about
+     * 67 s).
+     */
+    static final class Histogram {
+        static final int SUB_BUCKETS = 4;
+        static final int BUCKETS = SUB_BUCKETS + 24 * SUB_BUCKETS;
+
+        final int[] mCounts = new int[BUCKETS];
+        int mTotal;
+
+        void add(long micros) {
+            mCounts[bucketOf(micros)]++;
+            mTotal++;
+        }
+
+        static int bucketOf(long micros) {
+            if (micros < SUB_BUCKETS) {
+                return (int) Math.max(0, micros);
+            }
+            int log = 63 - Long.numberOfLeadingZeros(micros);
+            // The two bits after the leading one select the sub bucket
+            int sub = (int) ((micros >> (log - 2)) & 0x3);
+            return Math.min(BUCKETS - 1, (log - 1) * SUB_BUCKETS + sub);
+        }
+
+        /**
+         * Returns the upper bound, in microseconds, of the bucket that holds
+         * the given percentile.
+         */
+        long getPercentile(int percentile) {
+            long rank = ((long) mTotal * percentile + 99) / 100;
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += mCounts[i];
+                if (seen >= rank && seen > 0) {
+                    return upperBoundOf(i);
+                }
+            }
+            return 0;
+        }
+
+        static long upperBoundOf(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket + 1;
+            }
+            int log = bucket / SUB_BUCKETS + 1;
+            int sub = bucket % SUB_BUCKETS;
+            return (1L << log) + (sub + 1) * (1L << (log - 2));
+        }
+    }
+
+    // Ring buffer of the most recent events
+    final long[] mEventTimes = new long[RING_SIZE];
+    final int[] mEventTypes = new int[RING_SIZE];
+    final int[] mEventTransactions = new int[RING_SIZE];
+    final ComponentName[] mEventServices = new ComponentName[RING_SIZE];
+    int mEventCount;
+
+    final HashMap<ComponentName, Histogram[]> mHistograms =
+            new HashMap<ComponentName, Histogram[]>();
+
+    // State of the current transaction
+    int mTransaction;
+    long mActivatedTime;
+    long mCommandTime;
+    long mBindStartedTime;
+    boolean mResponded;
+    ComponentName mLastService;
+
+    synchronized void onActivated() {
+        mTransaction++;
+        mActivatedTime = record(EVENT_ACTIVATED, null);
+        mResponded = false;
+        mLastService = null;
+    }
+
+    synchronized void onCommand() {
+        mCommandTime = record(EVENT_COMMAND, null);
+    }
+
+    synchronized void onBindStarted(ComponentName service) {
+        mBindStartedTime = record(EVENT_BIND_STARTED, service);
+    }
+
+    synchronized void onBound(ComponentName service) {
+        long time = record(EVENT_BOUND, service);
+        if (mBindStartedTime != 0) {
+            addLatency(service, LATENCY_BIND, time - mBindStartedTime);
+            mBindStartedTime = 0;
+        }
+    }
+
+    synchronized void onResponse(ComponentName service) {
+        long time = record(EVENT_RESPONSE, service);
+        if (service == null) {
+            return;
+        }
+        mLastService = service;
+        addLatency(service, LATENCY_RESPONSE, time - mCommandTime);
+        if (!mResponded) {
+            mResponded = true;
+            addLatency(service, LATENCY_FIRST_RESPONSE, time - mActivatedTime);
+        }
+    }
+
+    synchronized void onDeactivated() {
+        long time = record(EVENT_DEACTIVATED, null);
+        if (mLastService != null) {
+            addLatency(mLastService, LATENCY_TRANSACTION, time - mActivatedTime);
+        }
+        mBindStartedTime = 0;
+    }
+
+    long record(int type, ComponentName service) {
+        long time = SystemClock.elapsedRealtimeNanos();
+        int index = mEventCount % RING_SIZE;
+        mEventTimes[index] = time;
+        mEventTypes[index] = type;
+        mEventTransactions[index] = mTransaction;
+        mEventServices[index] = service;
+        mEventCount++;
+        return time;
+    }
+
+    void addLatency(ComponentName service, int latency, long nanos) {
+        Histogram[] histograms = mHistograms.get(service);
+        if (histograms == null) {
+            histograms = new Histogram[LATENCY_NAMES.length];
+            for (int i = 0; i < histograms.length; i++) {
+                histograms[i] = new Histogram();
+            }
+            mHistograms.put(service, histograms);
+        }
+        histograms[latency].add(nanos / 1000);
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("HCE latencies (p50/p95/p99 in ms):");
+        for (Map.Entry<ComponentName, Histogram[]> entry : mHistograms.entrySet()) {
+            pw.println("    " + entry.getKey() + ":");
+            Histogram[] histograms = entry.getValue();
+            for (int i = 0; i < histograms.length; i++) {
+                Histogram histogram = histograms[i];
+                if (histogram.mTotal == 0) {
+                    continue;
+                }
+                pw.println("        " + LATENCY_NAMES[i] + ": " +
+                        formatMillis(histogram.getPercentile(50)) + "/" +
+                        formatMillis(histogram.getPercentile(95)) + "/" +
+                        formatMillis(histogram.getPercentile(99)) +
+                        " (" + histogram.mTotal + " samples)");
+            }
+        }
+        pw.println("Recent HCE events:");
+        int first = Math.max(0, mEventCount - RING_SIZE);
+        long previousTime = 0;
+        for (int i = first; i < mEventCount; i++) {
+            int index = i % RING_SIZE;
+            long time = mEventTimes[index];
+            pw.println("    #" + mEventTransactions[index] + " " +
+                    EVENT_NAMES[mEventTypes[index]] +
+                    (mEventServices[index] != null ? " " + mEventServices[index] : "") +
+                    (previousTime != 0 ? " +" + formatMillis((time - previousTime) / 1000) +
+                    " ms" : ""));
+            previousTime = time;
+        }
+    }
+
+    static String formatMillis(long micros) {
+        return (micros / 1000) + "." + String.format("%03d", micros % 1000);
+    }
+}
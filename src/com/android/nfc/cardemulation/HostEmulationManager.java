@@ -58,10 +58,13 @@ import com.android.nfc.cardemulation.RegisteredAidCache.AidResolveInfo;
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 
 import com.android.nfc.cardemulation.RegisteredNfcid2Cache.Nfcid2ResolveInfo;
 
-public class HostEmulationManager {
+public class HostEmulationManager implements ServicePrebinder.Callback {
     static final String TAG = "HostEmulationManager";
     static final boolean DBG = true;
 
@@ -77,25 +80,14 @@ public class HostEmulationManager {
 
     /** Minimum AID lenth as per ISO7816 */
     static final int MINIMUM_AID_LENGTH = 5;
-    static final int NFCID2_LENGTH = 8;
 
     /** Length of Select APDU header including length byte */
     static final int SELECT_APDU_HDR_LENGTH = 5;
-    static final int T3T_CMD_HDR_LENGTH = 1;
 
     static final byte INSTR_SELECT = (byte)0xA4;
 
-    /** NFC Forum / Felica commands */
-    static final byte T3T_MSG_OPC_CHECK_CMD = 0x06;
-    static final byte T3T_MSG_OPC_UPDATE_CMD = 0x08;
-
-    /** Felica commands (not specified in NFC-Forum Type 3 tag specifications) */
-    static final byte T3T_MSG_OPC_POLL_CMD = 0x00;
-    static final byte T3T_MSG_OPC_REQ_SERVICE_CMD = 0x02;
-    static final byte T3T_MSG_OPC_REQ_RESPONSE_CMD = 0x04;
-    static final byte T3T_MSG_OPC_REQ_SYSTEMCODE_CMD = 0x0C;
-
-    static final String ANDROID_HCE_AID = "A000000476416E64726F6964484345";
+    static final AidKey ANDROID_HCE_AID = new AidKey(new byte[] {(byte)0xA0, 0x00, 0x00, 0x04,
+            0x76, 0x41, 0x6E, 0x64, 0x72, 0x6F, 0x69, 0x64, 0x48, 0x43, 0x45}, 0, 15);
     static final byte[] ANDROID_HCE_RESPONSE = {0x14, (byte)0x81, 0x00, 0x00, (byte)0x90, 0x00};
 
     static final byte[] AID_NOT_FOUND = {0x6A, (byte)0x82};
@@ -108,6 +100,7 @@ public class HostEmulationManager {
     final Messenger mMessenger = new Messenger (new MessageHandler());
     final KeyguardManager mKeyguard;
     final Object mLock;
+    final ServicePrebinder mPrebinder;
 
     // All variables below protected by mLock
 
@@ -131,7 +124,20 @@ public class HostEmulationManager {
     Messenger mActiveService;
     ComponentName mActiveServiceName;
 
-    String mLastSelectedAid;
+    // Services that are likely to be selected are bound ahead of a tap;
+    // this is the one the pending SELECT APDU waits for, if any.
+    ComponentName mAwaitedPrebindService;
+    ComponentName mForegroundServiceName;
+
+    final StaticResponseCache mStaticResponses = new StaticResponseCache();
+    final ServiceMetaDataCache mServiceMetaData;
+    final HceLatencyTracer mTracer = new HceLatencyTracer();
+
+    // Shared memory APDU channels offered to bound services, by binder
+    final HashMap<IBinder, ApduSharedChannel> mSharedChannels =
+            new HashMap<IBinder, ApduSharedChannel>();
+
+    AidKey mLastSelectedAid;
     String mLastSelectedNfcid2;
 
     int mState;
@@ -147,6 +153,8 @@ public class HostEmulationManager {
         mState = STATE_IDLE;
         mScreenState = SCREEN_STATE_ON_UNLOCKED;
         mKeyguard = (KeyguardManager) context.getSystemService(Context.KEYGUARD_SERVICE);
+        mPrebinder = new ServicePrebinder(context, mLock, this);
+        mServiceMetaData = new ServiceMetaDataCache(context);
     }
 
     public void onPreferredPaymentServiceChanged(ComponentName service) {
@@ -161,8 +169,10 @@ public class HostEmulationManager {
 
      public void onPreferredForegroundServiceChanged(ComponentName service) {
          synchronized (mLock) {
+            mForegroundServiceName = service;
             if (service != null) {
-               bindServiceIfNeededLocked(service);
+               // No SELECT waits for it
+               bindServiceIfNeededLocked(service, false);
             } else {
                unbindServiceIfNeededLocked();
             }
@@ -173,8 +183,38 @@ public class HostEmulationManager {
         mScreenState = state;
     }
 
+    public void onScreenUnlocked() {
+        synchronized (mLock) {
+            prebindServicesLocked();
+        }
+    }
+
+    public void onUserSwitched() {
+        synchronized (mLock) {
+            mPrebinder.unbindAllLocked();
+            mPrebinder.clearHistoryLocked();
+            mStaticResponses.clearAll();
+        }
+    }
+
+    public void onServicesUpdated(List<ApduServiceInfo> services) {
+        mServiceMetaData.onServicesUpdated(services);
+        synchronized (mLock) {
+            mStaticResponses.onServicesUpdated(services);
+        }
+    }
+
+    public void onPackageServicesUpdated(List<ApduServiceInfo> services,
+            List<ApduServiceInfo> updated, List<ComponentName> removed) {
+        mServiceMetaData.onServicesUpdated(services);
+        synchronized (mLock) {
+            mStaticResponses.onPackageServicesUpdated(services, updated, removed);
+        }
+    }
+
     public void onHostEmulationActivated() {
         Log.d(TAG, "notifyHostEmulationActivated");
+        mTracer.onActivated();
         synchronized (mLock) {
             // Regardless of what happens, if we're having a tap again
             // activity up, close it
@@ -185,16 +225,34 @@ public class HostEmulationManager {
                 Log.e(TAG, "Got activation event in non-idle state");
             }
             mState = STATE_W4_SELECT;
+            prebindServicesLocked();
         }
     }
 
     public void onHostEmulationData(byte[] data) {
+        mTracer.onCommand();
         Log.d(TAG, "notifyHostEmulationData"+data.length);
         // Handle and route the NFCID2 based routing here.
-        String nfcid2 = null;
-        String selectAid = findSelectAid(data);
-        if(selectAid == null && data.length !=5) {
-            nfcid2 = findSelectNfcid2(data);
+        // The SELECT AID and the NFCID2 are decoded in place; the AID stays
+        // in data at SELECT_APDU_HDR_LENGTH, and is only copied once it resolved.
+        int selectAidLength = findSelectAidLength(data);
+        boolean isSelectAid = selectAidLength >= 0;
+        boolean isNfcid2 = false;
+        long nfcid2 = 0;
+        if(!isSelectAid && data.length !=5) {
+            int nfcid2Offset = T3tFrame.findNfcid2Offset(data);
+            if (nfcid2Offset >= 0) {
+                isNfcid2 = true;
+                nfcid2 = T3tFrame.getNfcid2(data, nfcid2Offset);
+            }
+        }
+        // Resolve the AID before taking mLock; the AID cache serves
+        // lookups from its published snapshot without locking.
+        boolean isAndroidHceAid = isSelectAid &&
+                ANDROID_HCE_AID.matches(data, SELECT_APDU_HDR_LENGTH, selectAidLength);
+        AidResolveInfo aidResolveInfo = null;
+        if (isSelectAid && !isAndroidHceAid) {
+            aidResolveInfo = mAidCache.resolveAid(data, SELECT_APDU_HDR_LENGTH, selectAidLength);
         }
         ComponentName resolvedService = null;
         synchronized (mLock) {
@@ -209,27 +267,29 @@ public class HostEmulationManager {
                 NfcService.getInstance().sendData(AID_NOT_FOUND);
                 return;
             }
-            if (selectAid != null) {
-                if (selectAid.equals(ANDROID_HCE_AID)) {
+            if (isSelectAid) {
+                if (isAndroidHceAid) {
                     NfcService.getInstance().sendData(ANDROID_HCE_RESPONSE);
                     return;
                 }
-                AidResolveInfo resolveInfo = mAidCache.resolveAid(selectAid);
-                if (resolveInfo == null || resolveInfo.services.size() == 0) {
+                if (aidResolveInfo == null || aidResolveInfo.services.size() == 0) {
                     // Tell the remote we don't handle this AID
                     NfcService.getInstance().sendData(AID_NOT_FOUND);
                     return;
                 }
-                mLastSelectedAid = selectAid;
-                if (resolveInfo.defaultService != null) {
+                if (mLastSelectedAid == null || !mLastSelectedAid.matches(data,
+                        SELECT_APDU_HDR_LENGTH, selectAidLength)) {
+                    mLastSelectedAid = new AidKey(data, SELECT_APDU_HDR_LENGTH, selectAidLength);
+                }
+                if (aidResolveInfo.defaultService != null) {
                     // Resolve to default
                     // Check if resolvedService requires unlock
-                    ApduServiceInfo defaultServiceInfo = resolveInfo.defaultService;
+                    ApduServiceInfo defaultServiceInfo = aidResolveInfo.defaultService;
                     if (defaultServiceInfo.requiresUnlock() &&
                             mKeyguard.isKeyguardLocked() && mKeyguard.isKeyguardSecure()) {
                         // Just ignore all future APDUs until next tap
                         mState = STATE_W4_DEACTIVATE;
-                        launchTapAgain(resolveInfo.defaultService, resolveInfo.category);
+                        launchTapAgain(aidResolveInfo.defaultService, aidResolveInfo.category);
                         return;
                     }
                     // In no circumstance should this be an OffHostService -
@@ -242,7 +302,7 @@ public class HostEmulationManager {
                     }
                     resolvedService = defaultServiceInfo.getComponent();
                 } else if (mActiveServiceName != null) {
-                    for (ApduServiceInfo serviceInfo : resolveInfo.services) {
+                    for (ApduServiceInfo serviceInfo : aidResolveInfo.services) {
                         if (mActiveServiceName.equals(serviceInfo.getComponent())) {
                             resolvedService = mActiveServiceName;
                             break;
@@ -254,13 +314,13 @@ public class HostEmulationManager {
                     // Ask the user to confirm.
                     // Just ignore all future APDUs until we resolve to only one
                     mState = STATE_W4_DEACTIVATE;
-                    launchResolver((ArrayList<ApduServiceInfo>)resolveInfo.services, null,
-                            resolveInfo.category);
+                    launchResolver((ArrayList<ApduServiceInfo>)aidResolveInfo.services, null,
+                            aidResolveInfo.category);
                     return;
                 }
-            }   else if(nfcid2 != null) {
+            }   else if(isNfcid2) {
 
-                Nfcid2ResolveInfo resolveInfo = mNfcid2Cache.resolveNfcid2Prefix(nfcid2);
+                Nfcid2ResolveInfo resolveInfo = mNfcid2Cache.resolveNfcid2(nfcid2);
                 if (resolveInfo == null || resolveInfo.services.size() == 0) {
                     // Tell the remote we don't handle this AID
                     //TODO: How to handle an NFCID2, which does not supported by DH.
@@ -314,14 +374,17 @@ public class HostEmulationManager {
                 }
             }
 
+            if (resolvedService != null) {
+                mPrebinder.onServiceSelectedLocked(resolvedService);
+            }
             switch (mState) {
             case STATE_W4_SELECT:
-                if (selectAid != null) {
+                if (isSelectAid) {
                     Messenger existingService = bindServiceIfNeededLocked(resolvedService);
                     if (existingService != null) {
                         Log.d(TAG, "Binding to existing service");
                         mState = STATE_XFER;
-                        sendDataToServiceLocked(existingService, data);
+                        sendSelectToServiceLocked(existingService, resolvedService, data);
                     } else {
                         // Waiting for service to be bound
                         Log.d(TAG, "Waiting for new service.");
@@ -329,7 +392,7 @@ public class HostEmulationManager {
                         mSelectApdu = data;
                         mState = STATE_W4_SERVICE;
                     }
-                } else if(nfcid2 != null) {
+                } else if(isNfcid2) {
                     Messenger existingService = bindServiceIfNeededLocked(resolvedService);
                     if (existingService != null) {
                         Log.d(TAG, "Binding to existing service");
@@ -351,17 +414,17 @@ public class HostEmulationManager {
                 Log.d(TAG, "Unexpected APDU in STATE_W4_SERVICE");
                 break;
             case STATE_XFER:
-                if (selectAid != null) {
+                if (isSelectAid) {
                     Messenger existingService = bindServiceIfNeededLocked(resolvedService);
                     if (existingService != null) {
-                        sendDataToServiceLocked(existingService, data);
+                        sendSelectToServiceLocked(existingService, resolvedService, data);
                         mState = STATE_XFER;
                     } else {
                         // Waiting for service to be bound
                         mSelectApdu = data;
                         mState = STATE_W4_SERVICE;
                     }
-                } else if(nfcid2 != null) {
+                } else if(isNfcid2) {
                     Messenger existingService = bindServiceIfNeededLocked(resolvedService);
                     if (existingService != null) {
                         sendDataToServiceLocked(existingService, data);
@@ -386,6 +449,7 @@ public class HostEmulationManager {
 
     public void onHostEmulationDeactivated() {
         Log.d(TAG, "notifyHostEmulationDeactivated");
+        mTracer.onDeactivated();
         synchronized (mLock) {
             if (mState == STATE_IDLE) {
                 Log.e(TAG, "Got deactivation event while in idle state");
@@ -393,6 +457,7 @@ public class HostEmulationManager {
             sendDeactivateToActiveServiceLocked(HostApduService.DEACTIVATION_LINK_LOSS);
             mActiveService = null;
             mActiveServiceName = null;
+            mAwaitedPrebindService = null;
             unbindServiceIfNeededLocked();
             mState = STATE_IDLE;
         }
@@ -419,14 +484,39 @@ public class HostEmulationManager {
     }
 
     Messenger bindServiceIfNeededLocked(ComponentName service) {
+        return bindServiceIfNeededLocked(service, true);
+    }
+
+    /**
+     * Returns the messenger of the service if it is bound, or starts binding
+     * it and returns null. Only if forSelect, a pending SELECT APDU waits
+     * for the service; the caller is then in a transaction.
+     */
+    Messenger bindServiceIfNeededLocked(ComponentName service, boolean forSelect) {
         if (mPaymentServiceBound && mPaymentServiceName.equals(service)) {
             Log.d(TAG, "Service already bound as payment service.");
             return mPaymentService;
         } else if (mServiceBound && mServiceName.equals(service)) {
             Log.d(TAG, "Service already bound as regular service.");
             return mService;
+        }
+        Messenger prebound = mPrebinder.getServiceLocked(service);
+        if (prebound != null) {
+            Log.d(TAG, "Service already bound ahead of the tap.");
+            return prebound;
+        } else if (mPrebinder.isBindingLocked(service)) {
+            if (forSelect) {
+                Log.d(TAG, "Waiting for service that is being bound ahead of the tap.");
+                mAwaitedPrebindService = service;
+                mTracer.onBindStarted(service);
+            }
+            return null;
         } else {
             Log.d(TAG, "Binding to service " + service);
+            if (forSelect) {
+                mAwaitedPrebindService = null;
+                mTracer.onBindStarted(service);
+            }
             unbindServiceIfNeededLocked();
             Intent aidIntent = new Intent(HostApduService.SERVICE_INTERFACE);
             aidIntent.setComponent(service);
@@ -439,26 +529,52 @@ public class HostEmulationManager {
         }
     }
 
+    /**
+     * Sends a SELECT APDU to the service, or answers it directly if the
+     * service registered a static response for it. Either way the service
+     * becomes the active one for the APDUs that follow.
+     */
+    void sendSelectToServiceLocked(Messenger service, ComponentName name, byte[] data) {
+        byte[] staticResponse = mStaticResponses.getResponse(name, data);
+        if (staticResponse == null) {
+            sendDataToServiceLocked(service, data);
+            return;
+        }
+        Log.d(TAG, "Sending static response of " + name);
+        setActiveServiceLocked(service);
+        NfcService.getInstance().sendData(staticResponse);
+        mTracer.onResponse(name);
+    }
+
     void sendDataToServiceLocked(Messenger service, byte[] data) {
+        setActiveServiceLocked(service);
+        ApduSharedChannel channel = mSharedChannels.get(mActiveService.getBinder());
+        try {
+            if (channel != null && channel.sendCommand(data, mMessenger)) {
+                return;
+            }
+            Message msg = Message.obtain(null, HostApduService.MSG_COMMAND_APDU);
+            Bundle dataBundle = new Bundle();
+            dataBundle.putByteArray("data", data);
+            msg.setData(dataBundle);
+            msg.replyTo = mMessenger;
+            mActiveService.send(msg);
+        } catch (RemoteException e) {
+            Log.e(TAG, "Remote service has died, dropping APDU");
+        }
+    }
+
+    void setActiveServiceLocked(Messenger service) {
         if (service != mActiveService) {
             sendDeactivateToActiveServiceLocked(HostApduService.DEACTIVATION_DESELECTED);
             mActiveService = service;
             if (service.equals(mPaymentService)) {
                 mActiveServiceName = mPaymentServiceName;
             } else {
-                mActiveServiceName = mServiceName;
+                ComponentName prebound = mPrebinder.getServiceNameLocked(service);
+                mActiveServiceName = (prebound != null) ? prebound : mServiceName;
             }
         }
-        Message msg = Message.obtain(null, HostApduService.MSG_COMMAND_APDU);
-        Bundle dataBundle = new Bundle();
-        dataBundle.putByteArray("data", data);
-        msg.setData(dataBundle);
-        msg.replyTo = mMessenger;
-        try {
-            mActiveService.send(msg);
-        } catch (RemoteException e) {
-            Log.e(TAG, "Remote service has died, dropping APDU");
-        }
     }
 
     void sendDeactivateToActiveServiceLocked(int reason) {
@@ -474,6 +590,7 @@ public class HostEmulationManager {
 
     void unbindPaymentServiceLocked() {
         if (mPaymentServiceBound) {
+            closeSharedChannelLocked(mPaymentService);
             mContext.unbindService(mPaymentConnection);
             mPaymentServiceBound = false;
             mPaymentService = null;
@@ -495,6 +612,7 @@ public class HostEmulationManager {
     void unbindServiceIfNeededLocked() {
         if (mServiceBound) {
             Log.d(TAG, "Unbinding from service " + mServiceName);
+            closeSharedChannelLocked(mService);
             mContext.unbindService(mConnection);
             mServiceBound = false;
             mService = null;
@@ -502,6 +620,99 @@ public class HostEmulationManager {
         }
     }
 
+    /**
+     * Binds the services that are likely to be selected on the next tap: the
+     * foreground service, and the services most often selected recently.
+     * The payment service is bound persistently already.
+     */
+    void prebindServicesLocked() {
+        ArrayList<ComponentName> likelyServices = new ArrayList<ComponentName>();
+        likelyServices.add(mForegroundServiceName);
+        likelyServices.addAll(mPrebinder.getRecentServicesLocked());
+        HashSet<ComponentName> boundServices = new HashSet<ComponentName>();
+        if (mPaymentServiceBound) {
+            boundServices.add(mPaymentServiceName);
+        }
+        if (mServiceBound) {
+            boundServices.add(mServiceName);
+        }
+        mPrebinder.prebindLocked(likelyServices, boundServices);
+    }
+
+    @Override
+    public void onPrebindConnectedLocked(ComponentName name, Messenger service) {
+        offerSharedChannelLocked(name, service);
+        if (name.equals(mAwaitedPrebindService)) {
+            mAwaitedPrebindService = null;
+            mTracer.onBound(name);
+            if (mState == STATE_W4_SERVICE) {
+                Log.d(TAG, "Service bound ahead of the tap connected");
+                mState = STATE_XFER;
+                // Send pending select APDU
+                if (mSelectApdu != null) {
+                    sendDataToServiceLocked(service, mSelectApdu);
+                    mSelectApdu = null;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void onPrebindFailedLocked(ComponentName name) {
+        if (name.equals(mAwaitedPrebindService) && mState == STATE_W4_SERVICE) {
+            // The pending SELECT waits for a regular binding instead
+            Log.d(TAG, "Binding service that could not be bound ahead of the tap");
+            bindServiceIfNeededLocked(name);
+        }
+    }
+
+    @Override
+    public void onPrebindUnboundLocked(ComponentName name, Messenger service, boolean died) {
+        closeSharedChannelLocked(service);
+        if (died) {
+            mStaticResponses.clear(name);
+        }
+    }
+
+    /**
+     * Returns the name of the bound service behind the messenger, or null.
+     */
+    ComponentName getBoundServiceNameLocked(Messenger service) {
+        if (service == null) {
+            return null;
+        } else if (mPaymentServiceBound && service.equals(mPaymentService)) {
+            return mPaymentServiceName;
+        } else if (mServiceBound && service.equals(mService)) {
+            return mServiceName;
+        }
+        return mPrebinder.getServiceNameLocked(service);
+    }
+
+    @Override
+    public boolean isServiceInUseLocked(ComponentName name) {
+        // The foreground service stays bound for as long as it is preferred
+        return name.equals(mActiveServiceName) || name.equals(mAwaitedPrebindService) ||
+                name.equals(mForegroundServiceName);
+    }
+
+    void offerSharedChannelLocked(ComponentName name, Messenger service) {
+        if (!ApduSharedChannel.isSupported(mServiceMetaData.get(name))) {
+            return;
+        }
+        ApduSharedChannel channel = ApduSharedChannel.offer(service, mMessenger);
+        if (channel != null) {
+            mSharedChannels.put(service.getBinder(), channel);
+        }
+    }
+
+    void closeSharedChannelLocked(Messenger service) {
+        if (service == null) return;
+        ApduSharedChannel channel = mSharedChannels.remove(service.getBinder());
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
     void launchTapAgain(ApduServiceInfo service, String category) {
         Intent dialogIntent = new Intent(mContext, TapAgainDialog.class);
         dialogIntent.putExtra(TapAgainDialog.EXTRA_CATEGORY, category);
@@ -522,10 +733,15 @@ public class HostEmulationManager {
         mContext.startActivityAsUser(intent, UserHandle.CURRENT);
     }
 
-    String findSelectAid(byte[] data) {
+    /**
+     * Decodes the header of a command APDU in place, and returns the length of
+     * the AID if it is a SELECT by AID command, or -1 otherwise. The AID itself
+     * starts at SELECT_APDU_HDR_LENGTH. Does not allocate.
+     */
+    static int findSelectAidLength(byte[] data) {
         if (data == null || data.length < SELECT_APDU_HDR_LENGTH + MINIMUM_AID_LENGTH) {
             if (DBG) Log.d(TAG, "Data size too small for SELECT APDU");
-            return null;
+            return -1;
         }
         // To accept a SELECT AID for dispatch, we require the following:
         // Class byte must be 0x00: logical channel set to zero, no secure messaging, no chaining
@@ -537,40 +753,13 @@ public class HostEmulationManager {
             if (data[3] != 0x00) {
                 Log.d(TAG, "Selecting next, last or previous AID occurrence is not supported");
             }
-            int aidLength = data[4];
+            int aidLength = data[4] & 0xFF;
             if (data.length < SELECT_APDU_HDR_LENGTH + aidLength) {
-                return null;
+                return -1;
             }
-            return bytesToString(data, SELECT_APDU_HDR_LENGTH, aidLength);
+            return aidLength;
         }
-        return null;
-    }
-
-//FelicaOnHost
-    String findSelectNfcid2(byte[] data) {
-
-    /*
-        if (data == null || data.length < T3T_CMD_HDR_LENGTH + NFCID2_LENGTH) {
-            if (DBG) Log.d(TAG, "Data size too small for NFCID2");
-            return null;
-        }*/
-        int payloadLength = data[0];
-        int FelicaCmdOpcodeByte0 = data[1];
-        int FelicaCmdOpcodeLength=1;
-        if(data.length != data[0] ||
-                (!isValidT3TOpcode(data[1])) ) {
-            return null;
-        }
-        if(FelicaCmdOpcodeByte0 >= 0xC0 && FelicaCmdOpcodeByte0 <= 0xDF)
-            FelicaCmdOpcodeLength =2;
-
-        if (DBG) Log.d(TAG, "payloadLength = " + payloadLength);
-        if (DBG) Log.d(TAG, "FelicaCmdOpcodeLength = " + FelicaCmdOpcodeLength );
-        if (DBG) Log.d(TAG, "FelicaCmdOpcodeByte0 = " + FelicaCmdOpcodeByte0 );
-        //if (data.length < T3T_CMD_HDR_LENGTH + payloadLength) {
-            //return null;
-        //}
-        return bytesToString(data, FelicaCmdOpcodeLength + 1 , NFCID2_LENGTH);
+        return -1;
     }
 
     private ServiceConnection mPaymentConnection = new ServiceConnection() {
@@ -580,12 +769,15 @@ public class HostEmulationManager {
                 mPaymentServiceName = name;
                 mPaymentService = new Messenger(service);
                 mPaymentServiceBound = true;
+                offerSharedChannelLocked(name, mPaymentService);
             }
         }
 
         @Override
         public void onServiceDisconnected(ComponentName name) {
             synchronized (mLock) {
+                closeSharedChannelLocked(mPaymentService);
+                mStaticResponses.clear(name);
                 mPaymentService = null;
                 mPaymentServiceBound = false;
                 mPaymentServiceName = null;
@@ -601,6 +793,8 @@ public class HostEmulationManager {
                 mServiceBound = true;
                 mServiceName = name;
                 Log.d(TAG, "Service bound");
+                mTracer.onBound(name);
+                offerSharedChannelLocked(name, mService);
                 mState = STATE_XFER;
                 // Send pending select APDU
                 if (mSelectApdu != null) {
@@ -614,6 +808,8 @@ public class HostEmulationManager {
         public void onServiceDisconnected(ComponentName name) {
             synchronized (mLock) {
                 Log.d(TAG, "Service unbound");
+                closeSharedChannelLocked(mService);
+                mStaticResponses.clear(name);
                 mService = null;
                 mServiceBound = false;
             }
@@ -623,6 +819,43 @@ public class HostEmulationManager {
     class MessageHandler extends Handler {
         @Override
         public void handleMessage(Message msg) {
+            if (msg.what == ApduSharedChannel.MSG_CHANNEL_OPENED) {
+                synchronized (mLock) {
+                    if (getBoundServiceNameLocked(msg.replyTo) == null) {
+                        Log.d(TAG, "Dropping shared channel message; service not bound.");
+                        return;
+                    }
+                    ApduSharedChannel channel = mSharedChannels.get(msg.replyTo.getBinder());
+                    if (channel != null) {
+                        Log.d(TAG, "Service opened shared APDU channel");
+                        if (!channel.onOpened(mMessenger)) {
+                            closeSharedChannelLocked(msg.replyTo);
+                        }
+                    }
+                }
+                return;
+            } else if (msg.what == StaticResponseCache.MSG_SET_STATIC_RESPONSE ||
+                    msg.what == StaticResponseCache.MSG_CLEAR_STATIC_RESPONSES) {
+                synchronized (mLock) {
+                    ComponentName service = getBoundServiceNameLocked(msg.replyTo);
+                    if (service == null) {
+                        Log.d(TAG, "Dropping static response message; service not bound.");
+                    } else if (msg.what == StaticResponseCache.MSG_CLEAR_STATIC_RESPONSES) {
+                        mStaticResponses.clear(service);
+                    } else if (!StaticResponseCache.isSupported(mServiceMetaData.get(service))) {
+                        Log.e(TAG, "Service " + service + " did not opt in to static responses");
+                    } else {
+                        Bundle dataBundle = msg.getData();
+                        if (dataBundle != null) {
+                            mStaticResponses.setResponse(service,
+                                    dataBundle.getByteArray(StaticResponseCache.KEY_COMMAND),
+                                    dataBundle.getByteArray(StaticResponseCache.KEY_RESPONSE));
+                        }
+                    }
+                }
+                return;
+            }
+            ApduSharedChannel channel;
             synchronized(mLock) {
                 if (mActiveService == null) {
                     Log.d(TAG, "Dropping service response message; service no longer active.");
@@ -631,30 +864,49 @@ public class HostEmulationManager {
                     Log.d(TAG, "Dropping service response message; service no longer bound.");
                     return;
                 }
+                channel = mSharedChannels.get(mActiveService.getBinder());
+                if (channel != null && (msg.what == HostApduService.MSG_RESPONSE_APDU ||
+                        msg.what == ApduSharedChannel.MSG_RESPONSE_APDU ||
+                        msg.what == HostApduService.MSG_UNHANDLED)) {
+                    channel.onResponse();
+                }
             }
-            if (msg.what == HostApduService.MSG_RESPONSE_APDU) {
-                Bundle dataBundle = msg.getData();
-                if (dataBundle == null) {
-                    return;
+            if (msg.what == HostApduService.MSG_RESPONSE_APDU ||
+                    msg.what == ApduSharedChannel.MSG_RESPONSE_APDU) {
+                byte[] data;
+                if (msg.what == ApduSharedChannel.MSG_RESPONSE_APDU) {
+                    data = (channel != null) ? channel.readResponse(msg.arg1, msg.arg2) : null;
+                } else {
+                    Bundle dataBundle = msg.getData();
+                    if (dataBundle == null) {
+                        return;
+                    }
+                    data = dataBundle.getByteArray("data");
                 }
-                byte[] data = dataBundle.getByteArray("data");
                 if (data == null || data.length == 0) {
                     Log.e(TAG, "Dropping empty R-APDU");
                     return;
                 }
                 int state;
+                ComponentName activeServiceName;
                 synchronized(mLock) {
                     state = mState;
+                    activeServiceName = mActiveServiceName;
                 }
                 if (state == STATE_XFER) {
                     Log.d(TAG, "Sending data");
                     NfcService.getInstance().sendData(data);
+                    mTracer.onResponse(activeServiceName);
                 } else {
                     Log.d(TAG, "Dropping data, wrong state " + Integer.toString(state));
                 }
             } else if (msg.what == HostApduService.MSG_UNHANDLED) {
+                AidKey lastSelectedAid;
+                synchronized (mLock) {
+                    lastSelectedAid = mLastSelectedAid;
+                }
+                AidResolveInfo resolveInfo = mAidCache.resolveAid(lastSelectedAid);
                 synchronized (mLock) {
-                    AidResolveInfo resolveInfo = mAidCache.resolveAid(mLastSelectedAid);
                     boolean isPayment = false;
                     if (resolveInfo.services.size() > 0) {
                         launchResolver((ArrayList<ApduServiceInfo>)resolveInfo.services,
@@ -665,18 +917,6 @@ public class HostEmulationManager {
         }
     }
 
-    static String bytesToString(byte[] bytes, int offset, int length) {
-        final char[] hexChars = {'0','1','2','3','4','5','6','7','8','9','A','B','C','D','E','F'};
-        char[] chars = new char[length * 2];
-        int byteValue;
-        for (int j = 0; j < length; j++) {
-            byteValue = bytes[offset + j] & 0xFF;
-            chars[j * 2] = hexChars[byteValue >>> 4];
-            chars[j * 2 + 1] = hexChars[byteValue & 0x0F];
-        }
-        return new String(chars);
-    }
-
     public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
         pw.println("Bound services: ");
         if (mPaymentServiceBound) {
@@ -685,22 +925,10 @@ public class HostEmulationManager {
         if (mServiceBound) {
             pw.println("    other: " + mServiceName);
         }
-    }
-
-    private boolean isValidT3TOpcode (byte opcode) {
-        boolean result = false;
-        if (  (opcode == T3T_MSG_OPC_CHECK_CMD)
-                ||(opcode == T3T_MSG_OPC_UPDATE_CMD)
-                ||(opcode == T3T_MSG_OPC_POLL_CMD)
-                ||(opcode == T3T_MSG_OPC_REQ_SERVICE_CMD)
-                ||(opcode == T3T_MSG_OPC_REQ_RESPONSE_CMD)
-                ||(opcode == T3T_MSG_OPC_REQ_SYSTEMCODE_CMD)
-                ||( opcode >= 0xC0 && opcode <= 0xDF)
-                )
-            {
-                result = true;
-            }
-
-        return result;
+        mPrebinder.dump(pw);
+        synchronized (mLock) {
+            mStaticResponses.dump(pw);
+        }
+        mTracer.dump(pw);
     }
 }
@@ -36,10 +36,15 @@ package com.android.nfc.cardemulation;
 
 import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.List;
 import java.util.Iterator;
+import java.util.Map;
+import com.android.nfc.DeviceHost;
 import com.android.nfc.NfcService;
 
 public class Nfcid2RoutingCache {
@@ -55,11 +60,19 @@ public class Nfcid2RoutingCache {
     // Cached routing table
     private static final Hashtable<String, Nfcid2Element> mRouteCache = new Hashtable<String, Nfcid2Element>(CAPACITY);
 
+    // The routes as last programmed into the controller
+    private final HashMap<String, Nfcid2Element> mCommittedRoutes =
+            new HashMap<String, Nfcid2Element>(CAPACITY);
+
     Nfcid2RoutingCache() {
     }
 
     boolean addNfcid2(String nfcid2, String syscode, String optparam, boolean isDefault, boolean isConflicting) {
         Nfcid2Element elem = new Nfcid2Element(nfcid2, syscode, optparam, isDefault, isConflicting);
+        if (!elem.isValid()) {
+            Log.e(TAG, "Not routing invalid " + elem);
+            return false;
+        }
         if (mRouteCache.size() >= CAPACITY) {
             return false;
         }
@@ -84,41 +97,120 @@ public class Nfcid2RoutingCache {
         return elem!= null && elem.isDefault();
     }
 
+    /**
+     * Forgets the routing table, as well as what was programmed into the
+     * controller, since the controller table was cleared as well.
+     */
     void clear() {
         mRouteCache.clear();
+        mCommittedRoutes.clear();
+    }
+
+    /**
+     * Forgets what was programmed into the controller, after applying the
+     * last commit failed part of the way, so the next commit sends every
+     * route again.
+     */
+    void onCommitFailed() {
+        mCommittedRoutes.clear();
     }
 
-    void commit() {
+    /**
+     * Programs the routes that changed since the last commit into the
+     * controller, with a single call. Returns false if no route changed,
+     * in which case the controller is left alone.
+     */
+    boolean commit() {
         List<Nfcid2Element> list = Collections.list(mRouteCache.elements());
         Collections.sort(list);
         Iterator<Nfcid2Element> it = list.iterator();
+        ArrayList<Nfcid2Element> removedRoutes = new ArrayList<Nfcid2Element>();
+        ArrayList<Nfcid2Element> addedRoutes = new ArrayList<Nfcid2Element>();
 
 //        NfcService.getInstance().clearRouting();
 
         while(it.hasNext()){
             Nfcid2Element element =it.next();
-            if (DBG) Log.d (TAG, element.toString());
+            String key = element.getNfcid2().toUpperCase();
+            Nfcid2Element committed = mCommittedRoutes.get(key);
 
-            if(element.isConflicting())
+            if(element.getDirty())
             {
-                NfcService.getInstance().unrouteNfcid2(element.getNfcid2());
-                element.resolveConflict();
+                mRouteCache.remove(key);
+                if (committed != null) {
+                    removedRoutes.add(committed);
+                    mCommittedRoutes.remove(key);
+                }
             }
-
-            if(!element.getDirty())
+            else if (committed == null)
             {
-                NfcService.getInstance().routeNfcid2(
-                        element.getNfcid2(),
-                        element.getSyscode(),
-                        element.getOptparam()
-                        );
+                addedRoutes.add(element);
+                mCommittedRoutes.put(key, element);
             }
-            else
+            else if (element.isConflicting() || !element.routesLike(committed))
             {
-                NfcService.getInstance().unrouteNfcid2(element.getNfcid2());
-                mRouteCache.remove(element.getNfcid2());
+                // Re-program the route, so the controller picks up the change
+                removedRoutes.add(committed);
+                addedRoutes.add(element);
+                mCommittedRoutes.put(key, element);
             }
+            element.resolveConflict();
+        }
+        for (Iterator<Map.Entry<String, Nfcid2Element>> committedIt =
+                mCommittedRoutes.entrySet().iterator(); committedIt.hasNext(); ) {
+            Map.Entry<String, Nfcid2Element> entry = committedIt.next();
+            if (!mRouteCache.containsKey(entry.getKey())) {
+                removedRoutes.add(entry.getValue());
+                committedIt.remove();
+            }
+        }
+
+        if (removedRoutes.isEmpty() && addedRoutes.isEmpty()) {
+            return false;
+        }
+        if (DBG) Log.d(TAG, "commit(): removing " + removedRoutes.size() + ", adding " +
+                addedRoutes.size() + " NFCID2 route(s)");
+        NfcService.getInstance().updateNfcid2Routing(packEntries(removedRoutes, addedRoutes));
+        return true;
+    }
+
+    static byte[] packEntries(List<Nfcid2Element> removedRoutes,
+            List<Nfcid2Element> addedRoutes) {
+        int length = removedRoutes.size() * DeviceHost.NFCID2_ENTRY_HDR_LENGTH;
+        for (Nfcid2Element element : addedRoutes) {
+            length += DeviceHost.NFCID2_ENTRY_HDR_LENGTH + element.getOptparamBytes().length;
+        }
+        byte[] entries = new byte[length];
+        int offset = 0;
+        for (Nfcid2Element element : removedRoutes) {
+            offset = packEntry(entries, offset, DeviceHost.NFCID2_ENTRY_REMOVE, element);
         }
+        for (Nfcid2Element element : addedRoutes) {
+            if (DBG) Log.d (TAG, element.toString());
+            offset = packEntry(entries, offset, DeviceHost.NFCID2_ENTRY_ADD, element);
+        }
+        return entries;
+    }
+
+    static int packEntry(byte[] entries, int offset, int op, Nfcid2Element element) {
+        entries[offset++] = (byte) op;
+        long nfcid2 = element.getNfcid2Value();
+        for (int i = DeviceHost.NFCID2_LENGTH - 1; i >= 0; i--) {
+            entries[offset + i] = (byte) nfcid2;
+            nfcid2 >>>= 8;
+        }
+        offset += DeviceHost.NFCID2_LENGTH;
+        if (op == DeviceHost.NFCID2_ENTRY_REMOVE) {
+            // System code and optional parameters are left out
+            return offset + DeviceHost.NFCID2_SYSCODE_LENGTH + 1;
+        }
+        System.arraycopy(element.getSyscodeBytes(), 0, entries, offset,
+                DeviceHost.NFCID2_SYSCODE_LENGTH);
+        offset += DeviceHost.NFCID2_SYSCODE_LENGTH;
+        byte[] optparam = element.getOptparamBytes();
+        entries[offset++] = (byte) optparam.length;
+        System.arraycopy(optparam, 0, entries, offset, optparam.length);
+        return offset + optparam.length;
     }
 }
 
@@ -127,6 +219,10 @@ class Nfcid2Element implements Comparable {
     private String mNfcid2;
     private String mSyscode;
     private String mOptparam;
+    // Decoded once, so that commits need not convert them again
+    private long mNfcid2Value;
+    private byte[] mSyscodeBytes;
+    private byte[] mOptparamBytes;
     private boolean mIsDefault;
     private boolean mIsDirty;
     private boolean mIsConflicting;
@@ -138,6 +234,42 @@ class Nfcid2Element implements Comparable {
         mIsDefault = isDefault;
         mIsDirty = false;
         mIsConflicting = isConflicting;
+        if (T3tFrame.isValidNfcid2(nfcid2)) {
+            mNfcid2Value = T3tFrame.parseNfcid2(nfcid2);
+        }
+        mSyscodeBytes = hexToBytes(syscode);
+        mOptparamBytes = (optparam != null) ? hexToBytes(optparam) : new byte[0];
+    }
+
+    static byte[] hexToBytes(String hex) {
+        if (hex == null || hex.length() % 2 != 0) {
+            return null;
+        }
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(hex.charAt(2 * i), 16);
+            int low = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0) {
+                return null;
+            }
+            bytes[i] = (byte) ((high << 4) | low);
+        }
+        return bytes;
+    }
+
+    public boolean isValid() {
+        return T3tFrame.isValidNfcid2(mNfcid2) && mSyscodeBytes != null &&
+                mSyscodeBytes.length == DeviceHost.NFCID2_SYSCODE_LENGTH &&
+                mOptparamBytes != null && mOptparamBytes.length <= 0xFF;
+    }
+
+    /**
+     * Whether the controller would route this the same as the given element.
+     */
+    public boolean routesLike(Nfcid2Element elem) {
+        return mNfcid2Value == elem.getNfcid2Value() &&
+                Arrays.equals(mSyscodeBytes, elem.getSyscodeBytes()) &&
+                Arrays.equals(mOptparamBytes, elem.getOptparamBytes());
     }
 
     public void setDirty() {
@@ -177,6 +309,18 @@ class Nfcid2Element implements Comparable {
         return mOptparam;
     }
 
+    public long getNfcid2Value() {
+        return mNfcid2Value;
+    }
+
+    public byte[] getSyscodeBytes() {
+        return mSyscodeBytes;
+    }
+
+    public byte[] getOptparamBytes() {
+        return mOptparamBytes;
+    }
+
     public boolean isIsDefault() {
         return mIsDefault;
     }
@@ -114,6 +114,18 @@ public class Nfcid2RoutingManager {
         }
     }
 
+    /**
+     * This notifies that applying the last routing update failed part of
+     * the way, so the content of the NFCID2 routing table in the controller
+     * is not known; the next update rewrites every route.
+     */
+    public void onNfcid2RoutingUpdateFailed() {
+        synchronized (mLock) {
+            mRoutnigCache.onCommitFailed();
+            mDirty = true;
+        }
+    }
+
     public void commitRouting() {
         synchronized (mLock) {
             if (mDirty) {
@@ -121,7 +133,11 @@ public class Nfcid2RoutingManager {
                 if (DBG) Log.d(TAG, "commitRouting-----");
                 //NfcService.getInstance().commitingFelicaRouting();
 
-                mRoutnigCache.commit();
+                // Only the routes that changed are sent, so the controller
+                // and Felica discovery are not touched if none did.
+                if (!mRoutnigCache.commit()) {
+                    if (DBG) Log.d(TAG, "Not committing routing because no route changed.");
+                }
                 //No Need for this here.
                 //NfcService.getInstance().commitedFelicaRouting();
                 mDirty = false;
@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) 2015 NXP Semiconductors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.nfc.cardemulation;
+
+import android.content.ComponentName;
+import android.nfc.cardemulation.ApduServiceInfo;
+import android.os.Build;
+import android.os.Parcel;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * On-disk index of parsed ApduServiceInfo objects, so that the apdu-service
+ * meta-data of a service is only parsed again when its package changed.
+ *
+ * An entry is valid as long as the versionCode and lastUpdateTime of the
+ * package are the ones it was parsed for. Services are stored in their
+ * parceled form, which is only stable within one build, so the whole index
+ * is dropped when the build fingerprint changes. Parsed services also hold
+ * resources resolved for the locale, such as their description, so the
+ * whole index is dropped when the locale changes as well, and the entries
+ * of a package are dropped when its resource overlays change.
+ *
+ * The index holds services as they were parsed, without dynamic AIDs;
+ * every lookup returns a new object, that the caller may modify.
+ */
+final class ParsedServiceIndex {
+    static final String TAG = "ParsedServiceIndex";
+    static final boolean DBG = true;
+
+    static final int MAGIC = 0x41505349; // "APSI"
+    static final int VERSION = 2;
+
+    static final class IndexEntry {
+        final boolean onHost;
+        final int versionCode;
+        final long lastUpdateTime;
+        final byte[] parceled;
+
+        IndexEntry(boolean onHost, int versionCode, long lastUpdateTime, byte[] parceled) {
+            this.onHost = onHost;
+            this.versionCode = versionCode;
+            this.lastUpdateTime = lastUpdateTime;
+            this.parceled = parceled;
+        }
+    }
+
+    final AtomicFile mFile;
+
+    // All variables below synchronized on this
+    // The locale the entries were parsed in
+    String mLocale;
+    final HashMap<Integer, HashMap<ComponentName, IndexEntry>> mEntries =
+            new HashMap<Integer, HashMap<ComponentName, IndexEntry>>();
+    boolean mDirty;
+    int mHits;
+    int mMisses;
+
+    ParsedServiceIndex(File file, String locale) {
+        mFile = new AtomicFile(file);
+        mLocale = locale;
+    }
+
+    /**
+     * Drops all entries if they were parsed in another locale.
+     */
+    synchronized void setLocale(String locale) {
+        if (mLocale.equals(locale)) {
+            return;
+        }
+        if (DBG) Log.d(TAG, "Locale changed to " + locale + ", dropping parsed services.");
+        mLocale = locale;
+        mEntries.clear();
+        mDirty = true;
+    }
+
+    /**
+     * Returns the service as parsed for the given version of its package,
+     * or null if it is not in the index.
+     */
+    synchronized ApduServiceInfo get(int userId, ComponentName component, boolean onHost,
+            int versionCode, long lastUpdateTime) {
+        HashMap<ComponentName, IndexEntry> userEntries = mEntries.get(userId);
+        IndexEntry entry = userEntries != null ? userEntries.get(component) : null;
+        if (entry == null || entry.onHost != onHost || entry.versionCode != versionCode ||
+                entry.lastUpdateTime != lastUpdateTime) {
+            mMisses++;
+            return null;
+        }
+        ApduServiceInfo service = unparcel(entry.parceled);
+        if (service == null) {
+            userEntries.remove(component);
+            mDirty = true;
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        return service;
+    }
+
+    /**
+     * Adds a freshly parsed service to the index, replacing an older entry.
+     */
+    synchronized void put(int userId, ApduServiceInfo service, int versionCode,
+            long lastUpdateTime) {
+        byte[] parceled = parcel(service);
+        if (parceled == null) {
+            return;
+        }
+        HashMap<ComponentName, IndexEntry> userEntries = mEntries.get(userId);
+        if (userEntries == null) {
+            userEntries = new HashMap<ComponentName, IndexEntry>();
+            mEntries.put(userId, userEntries);
+        }
+        userEntries.put(service.getComponent(),
+                new IndexEntry(service.isOnHost(), versionCode, lastUpdateTime, parceled));
+        mDirty = true;
+    }
+
+    /**
+     * Drops the entries of the user's services that are not in components,
+     * such as those of uninstalled packages.
+     */
+    synchronized void retainAll(int userId, Collection<ComponentName> components) {
+        HashMap<ComponentName, IndexEntry> userEntries = mEntries.get(userId);
+        if (userEntries == null) {
+            return;
+        }
+        Iterator<ComponentName> it = userEntries.keySet().iterator();
+        while (it.hasNext()) {
+            if (!components.contains(it.next())) {
+                it.remove();
+                mDirty = true;
+            }
+        }
+    }
+
+    synchronized void removeAll(int userId, Collection<ComponentName> components) {
+        HashMap<ComponentName, IndexEntry> userEntries = mEntries.get(userId);
+        if (userEntries == null) {
+            return;
+        }
+        for (ComponentName component : components) {
+            if (userEntries.remove(component) != null) {
+                mDirty = true;
+            }
+        }
+    }
+
+    /**
+     * Drops the entries of the services in the user's package.
+     */
+    synchronized void removePackage(int userId, String packageName) {
+        HashMap<ComponentName, IndexEntry> userEntries = mEntries.get(userId);
+        if (userEntries == null) {
+            return;
+        }
+        Iterator<ComponentName> it = userEntries.keySet().iterator();
+        while (it.hasNext()) {
+            if (packageName.equals(it.next().getPackageName())) {
+                it.remove();
+                mDirty = true;
+            }
+        }
+    }
+
+    static byte[] parcel(ApduServiceInfo service) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            service.writeToParcel(parcel, 0);
+            return parcel.marshall();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Could not parcel " + service.getComponent(), e);
+            return null;
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    static ApduServiceInfo unparcel(byte[] parceled) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.unmarshall(parceled, 0, parceled.length);
+            parcel.setDataPosition(0);
+            return ApduServiceInfo.CREATOR.createFromParcel(parcel);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Could not unparcel indexed service", e);
+            return null;
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    synchronized void read() {
+        mEntries.clear();
+        if (!mFile.getBaseFile().exists()) {
+            if (DBG) Log.d(TAG, "Parsed service index does not exist.");
+            return;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(mFile.openRead()));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION ||
+                    !Build.FINGERPRINT.equals(in.readUTF()) || !mLocale.equals(in.readUTF())) {
+                Log.d(TAG, "Parsed service index is outdated, dropping it.");
+                mDirty = true;
+                return;
+            }
+            int users = in.readInt();
+            for (int i = 0; i < users; i++) {
+                int userId = in.readInt();
+                int count = in.readInt();
+                HashMap<ComponentName, IndexEntry> userEntries =
+                        new HashMap<ComponentName, IndexEntry>();
+                for (int j = 0; j < count; j++) {
+                    ComponentName component = ComponentName.unflattenFromString(in.readUTF());
+                    boolean onHost = in.readBoolean();
+                    int versionCode = in.readInt();
+                    long lastUpdateTime = in.readLong();
+                    int length = in.readInt();
+                    if (length < 0) {
+                        throw new IOException("Invalid entry length " + length);
+                    }
+                    byte[] parceled = new byte[length];
+                    in.readFully(parceled);
+                    if (component != null) {
+                        userEntries.put(component,
+                                new IndexEntry(onHost, versionCode, lastUpdateTime, parceled));
+                    }
+                }
+                mEntries.put(userId, userEntries);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read parsed service index, trashing.");
+            mEntries.clear();
+            mFile.delete();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    synchronized boolean writeIfDirty() {
+        if (!mDirty) {
+            return true;
+        }
+        FileOutputStream fos = null;
+        try {
+            fos = mFile.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(Build.FINGERPRINT);
+            out.writeUTF(mLocale);
+            out.writeInt(mEntries.size());
+            for (Map.Entry<Integer, HashMap<ComponentName, IndexEntry>> user :
+                    mEntries.entrySet()) {
+                out.writeInt(user.getKey());
+                out.writeInt(user.getValue().size());
+                for (Map.Entry<ComponentName, IndexEntry> service :
+                        user.getValue().entrySet()) {
+                    IndexEntry entry = service.getValue();
+                    out.writeUTF(service.getKey().flattenToString());
+                    out.writeBoolean(entry.onHost);
+                    out.writeInt(entry.versionCode);
+                    out.writeLong(entry.lastUpdateTime);
+                    out.writeInt(entry.parceled.length);
+                    out.write(entry.parceled);
+                }
+            }
+            out.flush();
+            mFile.finishWrite(fos);
+            mDirty = false;
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing parsed service index", e);
+            if (fos != null) {
+                mFile.failWrite(fos);
+            }
+            return false;
+        }
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        int entries = 0;
+        for (HashMap<ComponentName, IndexEntry> userEntries : mEntries.values()) {
+            entries += userEntries.size();
+        }
+        pw.println("Parsed service index: " + entries + " entries, " + mHits + " hits, " +
+                mMisses + " misses");
+    }
+}
@@ -17,7 +17,6 @@ package com.android.nfc.cardemulation;
 
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
-import java.util.ArrayList;
 
 import com.android.nfc.ForegroundUtils;
 
@@ -242,25 +241,18 @@ public class PreferredServices implements com.android.nfc.ForegroundUtils.Callba
             // foreground app says it was not. In this case we'll still prefer the payment
             // app, since that is the one that the user has explicitly selected (and said
             // it's not allowed to be overridden).
-            final ArrayList<String> otherAids = serviceInfo.getAids();
-            ApduServiceInfo paymentServiceInfo = mServiceCache.getService(
-                    ActivityManager.getCurrentUser(), mPaymentDefaults.currentPreferred);
-            if (paymentServiceInfo != null && otherAids != null && otherAids.size() > 0) {
-                for (String aid : otherAids) {
-                    RegisteredAidCache.AidResolveInfo resolveInfo = mAidCache.resolveAid(aid);
-                    if (CardEmulation.CATEGORY_PAYMENT.equals(resolveInfo.category) &&
-                            paymentServiceInfo.equals(resolveInfo.defaultService) ) {
-                        Log.d(TAG, "AID " + aid + " is handled by the default payment app, " +
-                                "and the user has not allowed payments to be overridden.");
-                        return false;
-                    }
-                }
-                return true;
-            } else {
-                // Could not find payment service or fg app doesn't register other AIDs;
-                // okay to proceed.
-                return true;
+            // The AID cache keeps the AIDs of every service, so this only looks
+            // up the AIDs of the foreground app instead of resolving them again.
+            String aid = mAidCache.findAidHandledAsPayment(service,
+                    mPaymentDefaults.currentPreferred);
+            if (aid != null) {
+                Log.d(TAG, "AID " + aid + " is handled by the default payment app, " +
+                        "and the user has not allowed payments to be overridden.");
+                return false;
             }
+            // No payment default, or fg app doesn't register AIDs it handles;
+            // okay to proceed.
+            return true;
         } else {
             // Payment allows override, so allow anything.
             return true;
@@ -41,6 +41,7 @@ import android.content.Context;
 import com.android.nfc.NfcService;
 import android.nfc.cardemulation.ApduServiceInfo;
 import android.nfc.cardemulation.CardEmulation;
+import android.text.TextUtils;
 import android.util.Log;
 
 import com.google.android.collect.Maps;
@@ -49,31 +50,103 @@ import java.io.FileDescriptor;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.NavigableMap;
-import java.util.PriorityQueue;
+import java.util.Objects;
 import java.util.TreeMap;
+import java.util.TreeSet;
 
 public class RegisteredAidCache {
     static final String TAG = "RegisteredAidCache";
 
     static final boolean DBG = true;
+    // Logs every resolved SELECT, and every AID and service while building
+    // the cache; formatting those is too expensive to do by default
+    static final boolean VDBG = false;
 
     // mAidServices maps AIDs to services that have registered them.
     // It's a TreeMap in order to be able to quickly select subsets
     // of AIDs that conflict with each other.
-    final TreeMap<String, ArrayList<ServiceAidInfo>> mAidServices =
+    TreeMap<String, ArrayList<ServiceAidInfo>> mAidServices =
             new TreeMap<String, ArrayList<ServiceAidInfo>>();
 
+    // mServiceRegistrations holds, for every service of the current user, the
+    // AID registrations that mAidServices was last built from. It is used to
+    // find out which registrations changed when the services are updated.
+    HashMap<ComponentName, ServiceAidRegistration> mServiceRegistrations =
+            new HashMap<ComponentName, ServiceAidRegistration>();
+
+    // The user that mServiceRegistrations was built for
+    int mServicesUserId = -1;
+
     // mAidCache is a lookup table for quickly mapping an exact or prefix AID to one or
     // more handling services. It differs from mAidServices in the sense that it
     // has already accounted for defaults, and hence its return value
     // is authoritative for the current set of services and defaults.
     // It is only valid for the current user.
-    final TreeMap<String, AidResolveInfo> mAidCache = new TreeMap<String, AidResolveInfo>();
+    // A new map is created every time the cache is regenerated, so that the map
+    // published in mSnapshot is never modified afterwards.
+    TreeMap<String, AidResolveInfo> mAidCache = new TreeMap<String, AidResolveInfo>();
+
+    // Immutable view of the resolved AID table. It is published every time
+    // mAidCache is regenerated, and read without holding mLock, so that SELECT
+    // resolution never waits for a rebuild of the cache.
+    static final class AidCacheSnapshot {
+        final Map<String, AidResolveInfo> aidCache;
+        // Built from aidCache; resolves a SELECT AID in a single walk over its bytes
+        final AidTrie aidTrie;
+
+        AidCacheSnapshot(TreeMap<String, AidResolveInfo> aidCache, boolean supportsPrefixes) {
+            this.aidCache = Collections.unmodifiableMap(aidCache);
+            this.aidTrie = AidTrie.build(aidCache, supportsPrefixes);
+        }
+    }
+
+    volatile AidCacheSnapshot mSnapshot =
+            new AidCacheSnapshot(new TreeMap<String, AidResolveInfo>(), false);
+
+    // Number of users besides the current one whose AID state is retained
+    static final int MAX_RETAINED_USERS = 2;
+
+    // The AID state of a user that is not the current user anymore. When
+    // the user becomes current again, it is swapped back in and only the
+    // services that changed since are resolved again.
+    final class RetainedUserState {
+        final TreeMap<String, ArrayList<ServiceAidInfo>> aidServices;
+        final HashMap<ComponentName, ServiceAidRegistration> serviceRegistrations;
+        final TreeMap<String, AidResolveInfo> aidCache;
+        final AidCacheSnapshot snapshot;
+        // The preferred services that aidCache was resolved with
+        final ComponentName preferredPaymentService;
+        final ComponentName preferredForegroundService;
+
+        RetainedUserState() {
+            aidServices = mAidServices;
+            serviceRegistrations = mServiceRegistrations;
+            aidCache = mAidCache;
+            snapshot = mSnapshot;
+            preferredPaymentService = mPreferredPaymentService;
+            preferredForegroundService = mPreferredForegroundService;
+        }
+    }
+
+    // Least recently current user first
+    final LinkedHashMap<Integer, RetainedUserState> mRetainedUsers =
+            new LinkedHashMap<Integer, RetainedUserState>(MAX_RETAINED_USERS + 1, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, RetainedUserState> eldest) {
+            if (size() > MAX_RETAINED_USERS) {
+                if (DBG) Log.d(TAG, "Dropping retained AID state of user " + eldest.getKey());
+                return true;
+            }
+            return false;
+        }
+    };
 
     // The power state for Host AIDs
     int mHostAIDPowerState;
@@ -88,6 +161,8 @@ public class RegisteredAidCache {
     final class ServiceAidInfo {
         ApduServiceInfo service;
         String aid;
+        // aid in binary, parsed once when the service is registered
+        AidKey aidKey;
         String category;
 
         @Override
@@ -122,13 +197,52 @@ public class RegisteredAidCache {
         }
     }
 
+    // Copy of the AID registrations and routing relevant attributes of a service.
+    // ApduServiceInfo objects are modified in place when dynamic AIDs are
+    // (un)registered, so they can't be compared to tell what changed.
+    final class ServiceAidRegistration {
+        // Replaced by a new instance of the service with the same registrations
+        ApduServiceInfo service;
+        final ArrayList<ServiceAidInfo> aidInfos;
+        final boolean onHost;
+        final int seId;
+        final int powerState;
+        final boolean requiresUnlock;
+        final int uid;
+        final String description;
+
+        ServiceAidRegistration(ApduServiceInfo service) {
+            this.service = service;
+            this.aidInfos = getServiceAidInfosLocked(service);
+            this.onHost = service.isOnHost();
+            ApduServiceInfo.ESeInfo seInfo = service.getSEInfo();
+            this.seId = seInfo != null ? seInfo.getSeId() : -1;
+            this.powerState = seInfo != null ? seInfo.getPowerState() : 0;
+            this.requiresUnlock = service.requiresUnlock();
+            this.uid = service.getUid();
+            this.description = service.getDescription();
+        }
+
+        boolean isSameRegistration(ServiceAidRegistration that) {
+            return aidInfos.size() == that.aidInfos.size() &&
+                    aidInfos.containsAll(that.aidInfos) &&
+                    onHost == that.onHost &&
+                    seId == that.seId &&
+                    powerState == that.powerState &&
+                    requiresUnlock == that.requiresUnlock &&
+                    uid == that.uid &&
+                    TextUtils.equals(description, that.description);
+        }
+    }
+
     // Represents a list of services, an optional default and a category that
     // an AID was resolved to.
-    final class AidResolveInfo {
+    static final class AidResolveInfo {
         List<ApduServiceInfo> services = new ArrayList<ApduServiceInfo>();
         ApduServiceInfo defaultService = null;
         String category = null;
         boolean mustRoute = true; // Whether this AID should be routed at all
+        AidKey aid = null; // The registered AID this was resolved for, if any
 
         @Override
         public String toString() {
@@ -168,55 +282,75 @@ public class RegisteredAidCache {
         mHostAIDPowerState = 0x40 | POWER_STATE_SWITCH_ON;
     }
 
+    /**
+     * Resolves an AID against the last published snapshot of the AID cache.
+     * Does not take mLock, so it never blocks on a cache rebuild.
+     *
+     * The AID is matched on its bytes, so unlike a lookup of the upper-case
+     * keys of mAidCache, lower-case hex digits match as well, also on
+     * controllers without prefix support.
+     */
     public AidResolveInfo resolveAid(String aid) {
+        if (VDBG) Log.d(TAG, "resolveAid: resolving AID " + aid);
+        if (aid.length() < 10) {
+            Log.e(TAG, "AID selected with fewer than 5 bytes.");
+            return EMPTY_RESOLVE_INFO;
+        }
+        boolean isPrefix = isPrefix(aid);
+        byte[] aidBytes = AidTrie.hexToBytes(aid, isPrefix ? aid.length() - 1 : aid.length());
+        if (aidBytes == null) {
+            Log.e(TAG, "AID " + aid + " is not valid.");
+            return EMPTY_RESOLVE_INFO;
+        }
+        AidResolveInfo resolveInfo =
+                mSnapshot.aidTrie.resolve(aidBytes, 0, aidBytes.length, isPrefix);
+        if (VDBG) Log.d(TAG, "Resolved to: " + resolveInfo);
+        return resolveInfo;
+    }
+
+    /**
+     * Resolves the AID in aid[offset, offset + length), typically straight
+     * from a SELECT command APDU, without converting it to a String.
+     */
+    public AidResolveInfo resolveAid(byte[] aid, int offset, int length) {
+        if (length < 5) {
+            Log.e(TAG, "AID selected with fewer than 5 bytes.");
+            return EMPTY_RESOLVE_INFO;
+        }
+        AidResolveInfo resolveInfo = mSnapshot.aidTrie.resolve(aid, offset, length, false);
+        if (VDBG) Log.d(TAG, "resolveAid: AID " + AidKey.toHexString(aid, offset, length) +
+                " resolved to: " + resolveInfo);
+        return resolveInfo;
+    }
+
+    public AidResolveInfo resolveAid(AidKey aid) {
+        return resolveAid(aid.getBytes(), 0, aid.length());
+    }
+
+    /**
+     * Returns an AID that service registered, and that resolves to
+     * paymentService as a payment AID, or null if there is none. Only
+     * resolves the AIDs of service, merged with the prefix AIDs covering
+     * them, against the snapshot published under mLock, so it always agrees
+     * with the services last updated.
+     */
+    public String findAidHandledAsPayment(ComponentName service, ComponentName paymentService) {
         synchronized (mLock) {
-            if (DBG) Log.d(TAG, "resolveAid: resolving AID " + aid);
-            if (aid.length() < 10) {
-                Log.e(TAG, "AID selected with fewer than 5 bytes.");
-                return EMPTY_RESOLVE_INFO;
+            ServiceAidRegistration registration = mServiceRegistrations.get(service);
+            if (registration == null || paymentService == null) {
+                return null;
             }
-            AidResolveInfo resolveInfo = new AidResolveInfo();
-            if (mSupportsPrefixes) {
-                // Our AID cache may contain prefixes which also match this AID,
-                // so we must find all potential prefixes and merge the ResolveInfo
-                // of those prefixes plus any exact match in a single result.
-                String shortestAidMatch = aid.substring(0, 10); // Minimum AID length is 5 bytes
-                String longestAidMatch = aid + "*"; // Longest potential matching AID
-
-                if (DBG) Log.d(TAG, "Finding AID registrations in range [" + shortestAidMatch +
-                        " - " + longestAidMatch + "]");
-                NavigableMap<String, AidResolveInfo> matchingAids =
-                        mAidCache.subMap(shortestAidMatch, true, longestAidMatch, true);
-
-                resolveInfo.category = CardEmulation.CATEGORY_OTHER;
-                for (Map.Entry<String, AidResolveInfo> entry : matchingAids.entrySet()) {
-                    boolean isPrefix = isPrefix(entry.getKey());
-                    String entryAid = isPrefix ? entry.getKey().substring(0,
-                            entry.getKey().length() - 1) : entry.getKey(); // Cut off '*' if prefix
-                    if (entryAid.equalsIgnoreCase(aid) || (isPrefix && aid.startsWith(entryAid))) {
-                        if (DBG) Log.d(TAG, "resolveAid: AID " + entryAid + " matches.");
-                        AidResolveInfo entryResolveInfo = entry.getValue();
-                        if (entryResolveInfo.defaultService != null) {
-                            if (resolveInfo.defaultService != null) {
-                                // This shouldn't happen; for every prefix we have only one
-                                // default service.
-                                Log.e(TAG, "Different defaults for conflicting AIDs!");
-                            }
-                            resolveInfo.defaultService = entryResolveInfo.defaultService;
-                            resolveInfo.category = entryResolveInfo.category;
-                        }
-                        for (ApduServiceInfo serviceInfo : entryResolveInfo.services) {
-                            if (!resolveInfo.services.contains(serviceInfo)) {
-                                resolveInfo.services.add(serviceInfo);
-                            }
-                        }
-                    }
+            for (ServiceAidInfo serviceAidInfo : registration.aidInfos) {
+                // AIDs covered by a default prefix are not in mAidCache
+                AidResolveInfo resolveInfo = resolveAid(serviceAidInfo.aid);
+                if (resolveInfo != null &&
+                        CardEmulation.CATEGORY_PAYMENT.equals(resolveInfo.category) &&
+                        resolveInfo.defaultService != null &&
+                        paymentService.equals(resolveInfo.defaultService.getComponent())) {
+                    return serviceAidInfo.aid;
                 }
-            } else {
-                resolveInfo = mAidCache.get(aid);
             }
-            if (DBG) Log.d(TAG, "Resolved to: " + resolveInfo);
-            return resolveInfo;
+            return null;
         }
     }
 
@@ -287,7 +421,7 @@ public class RegisteredAidCache {
                     // If this service claims it's a payment AID, don't route it,
                     // because it's not the default. Otherwise, add it to the list
                     // but not as default.
-                    if (DBG) Log.d(TAG, "resolveAidLocked: (Ignoring handling service " +
+                    if (VDBG) Log.d(TAG, "resolveAidLocked: (Ignoring handling service " +
                             serviceAidInfo.service.getComponent() +
                             " because it's not the payment default.)");
                 } else {
@@ -298,23 +432,23 @@ public class RegisteredAidCache {
         if (matchedForeground != null) {
             // 1st priority: if the foreground app prefers a service,
             // and that service asks for the AID, that service gets it
-            if (DBG) Log.d(TAG, "resolveAidLocked: DECISION: routing to foreground preferred " +
+            if (VDBG) Log.d(TAG, "resolveAidLocked: DECISION: routing to foreground preferred " +
                     matchedForeground);
             resolveInfo.defaultService = matchedForeground;
         } else if (matchedPayment != null) {
             // 2nd priority: if there is a preferred payment service,
             // and that service claims this as a payment AID, that service gets it
-            if (DBG) Log.d(TAG, "resolveAidLocked: DECISION: routing to payment default " +
+            if (VDBG) Log.d(TAG, "resolveAidLocked: DECISION: routing to payment default " +
                     "default " + matchedPayment);
             resolveInfo.defaultService = matchedPayment;
         } else {
             if (resolveInfo.services.size() == 1 && makeSingleServiceDefault) {
-                if (DBG) Log.d(TAG, "resolveAidLocked: DECISION: making single handling service " +
+                if (VDBG) Log.d(TAG, "resolveAidLocked: DECISION: making single handling service " +
                         resolveInfo.services.get(0).getComponent() + " default.");
                 resolveInfo.defaultService = resolveInfo.services.get(0);
             } else {
                 // Nothing to do, all services already in list
-                if (DBG) Log.d(TAG, "resolveAidLocked: DECISION: routing to all matching services");
+                if (VDBG) Log.d(TAG, "resolveAidLocked: DECISION: routing to all matching services");
             }
         }
         return resolveInfo;
@@ -355,7 +489,7 @@ public class RegisteredAidCache {
         //    no child is the current foreground preferred
         // 3. There is only one service for the prefix root AID, and there are no children
         if (prefixDefaultInfo.foregroundDefault != null) {
-            if (DBG) Log.d(TAG, "Prefix AID service " +
+            if (VDBG) Log.d(TAG, "Prefix AID service " +
                     prefixDefaultInfo.foregroundDefault.service.getComponent() + " has foreground" +
                     " preference, ignoring conflicting AIDs.");
             // Foreground default trumps any conflicting services, treat as normal AID conflict
@@ -365,12 +499,12 @@ public class RegisteredAidCache {
             // Check if any of the conflicting services is foreground default
             if (conflictingDefaultInfo.foregroundDefault != null) {
                 // Conflicting AID registration is in foreground, trumps prefix tap&pay default
-                if (DBG) Log.d(TAG, "One of the conflicting AID registrations is foreground " +
+                if (VDBG) Log.d(TAG, "One of the conflicting AID registrations is foreground " +
                         "preferred, ignoring prefix.");
                 return EMPTY_RESOLVE_INFO;
             } else {
                 // Prefix service is tap&pay default, treat as normal AID conflict for just prefix
-                if (DBG) Log.d(TAG, "Prefix AID service " +
+                if (VDBG) Log.d(TAG, "Prefix AID service " +
                         prefixDefaultInfo.paymentDefault.service.getComponent() + " is payment" +
                         " default, ignoring conflicting AIDs.");
                 return resolveAidConflictLocked(prefixServices, true);
@@ -378,13 +512,13 @@ public class RegisteredAidCache {
         } else {
             if (conflictingDefaultInfo.foregroundDefault != null ||
                     conflictingDefaultInfo.paymentDefault != null) {
-                if (DBG) Log.d(TAG, "One of the conflicting AID registrations is either payment " +
+                if (VDBG) Log.d(TAG, "One of the conflicting AID registrations is either payment " +
                         "default or foreground preferred, ignoring prefix.");
                 return EMPTY_RESOLVE_INFO;
             } else {
                 // No children that are preferred; add all services of the root
                 // make single service default if no children are present
-                if (DBG) Log.d(TAG, "No service has preference, adding all.");
+                if (VDBG) Log.d(TAG, "No service has preference, adding all.");
                 return resolveAidConflictLocked(prefixServices, conflictingServices.isEmpty());
             }
         }
@@ -393,40 +527,245 @@ public class RegisteredAidCache {
     void generateServiceMapLocked(List<ApduServiceInfo> services) {
         // Easiest is to just build the entire tree again
         mAidServices.clear();
+        mServiceRegistrations.clear();
         for (ApduServiceInfo service : services) {
-            if (DBG) Log.d(TAG, "generateServiceMap component: " + service.getComponent());
-            for (String aid : service.getAids()) {
-                if (!CardEmulation.isValidAid(aid)) {
-                    Log.e(TAG, "Aid " + aid + " is not valid.");
-                    continue;
-                }
-                if (aid.endsWith("*") && !supportsAidPrefixRegistration()) {
-                    Log.e(TAG, "Prefix AID " + aid + " ignored on device that doesn't support it.");
-                    continue;
-                }
+            if (VDBG) Log.d(TAG, "generateServiceMap component: " + service.getComponent());
+            ServiceAidRegistration registration = new ServiceAidRegistration(service);
+            mServiceRegistrations.put(service.getComponent(), registration);
+            addServiceAidInfosLocked(registration.aidInfos);
+        }
+    }
 
-                ServiceAidInfo serviceAidInfo = new ServiceAidInfo();
-                serviceAidInfo.service = service;
-                serviceAidInfo.category = service.getCategoryForAid(aid);
-                //NXP specific, Adding prefix (*) to all off host aid for prefix match.
-                if (mRoutingManager.getAidMatchingPlatform() == AidRoutingManager.AID_MATCHING_K
-                        && !service.isOnHost() && !aid.endsWith("*")) {
-                    aid = aid + "*";
-                }
-                serviceAidInfo.aid = aid.toUpperCase();
+    /**
+     * Applies the differences between services and the services mAidServices
+     * was built from to mAidServices.
+     *
+     * @return the resolve roots of the changed registrations, see
+     *         {@link #findResolveRootLocked(String)}
+     */
+    HashSet<String> updateServiceMapLocked(List<ApduServiceInfo> services) {
+        final ArrayList<ServiceAidRegistration> removedRegistrations =
+                new ArrayList<ServiceAidRegistration>();
+        final ArrayList<ServiceAidRegistration> addedRegistrations =
+                new ArrayList<ServiceAidRegistration>();
+        final HashMap<ComponentName, ApduServiceInfo> replacedServices =
+                new HashMap<ComponentName, ApduServiceInfo>();
+        final HashSet<ComponentName> components = new HashSet<ComponentName>();
+        for (ApduServiceInfo service : services) {
+            ComponentName component = service.getComponent();
+            components.add(component);
+            ServiceAidRegistration oldRegistration = mServiceRegistrations.get(component);
+            ServiceAidRegistration newRegistration = new ServiceAidRegistration(service);
+            if (oldRegistration == null) {
+                if (DBG) Log.d(TAG, "updateServiceMap: service added " + component);
+                addedRegistrations.add(newRegistration);
+            } else if (!oldRegistration.isSameRegistration(newRegistration)) {
+                if (DBG) Log.d(TAG, "updateServiceMap: service changed " + component);
+                removedRegistrations.add(oldRegistration);
+                addedRegistrations.add(newRegistration);
+            } else if (oldRegistration.service != service) {
+                // Same registrations, but the label, icon or banner may be new
+                replacedServices.put(component, service);
+            }
+        }
+        for (ServiceAidRegistration registration : mServiceRegistrations.values()) {
+            if (!components.contains(registration.service.getComponent())) {
+                if (DBG) Log.d(TAG, "updateServiceMap: service removed " +
+                        registration.service.getComponent());
+                removedRegistrations.add(registration);
+            }
+        }
+        replaceServicesLocked(replacedServices);
+        return applyRegistrationChangesLocked(removedRegistrations, addedRegistrations);
+    }
 
-                if (mAidServices.containsKey(serviceAidInfo.aid)) {
-                    final ArrayList<ServiceAidInfo> serviceAidInfos =
-                            mAidServices.get(serviceAidInfo.aid);
-                    serviceAidInfos.add(serviceAidInfo);
-                } else {
-                    final ArrayList<ServiceAidInfo> serviceAidInfos =
-                            new ArrayList<ServiceAidInfo>();
-                    serviceAidInfos.add(serviceAidInfo);
-                    mAidServices.put(serviceAidInfo.aid, serviceAidInfos);
+    /**
+     * Like {@link #updateServiceMapLocked(List)}, but only looks at the given
+     * updated and removed services, leaving all others as they are.
+     */
+    HashSet<String> updateServiceMapLocked(List<ApduServiceInfo> updated,
+            List<ComponentName> removed) {
+        final ArrayList<ServiceAidRegistration> removedRegistrations =
+                new ArrayList<ServiceAidRegistration>();
+        final ArrayList<ServiceAidRegistration> addedRegistrations =
+                new ArrayList<ServiceAidRegistration>();
+        final HashMap<ComponentName, ApduServiceInfo> replacedServices =
+                new HashMap<ComponentName, ApduServiceInfo>();
+        for (ApduServiceInfo service : updated) {
+            ComponentName component = service.getComponent();
+            ServiceAidRegistration oldRegistration = mServiceRegistrations.get(component);
+            ServiceAidRegistration newRegistration = new ServiceAidRegistration(service);
+            if (oldRegistration == null) {
+                if (DBG) Log.d(TAG, "updateServiceMap: service added " + component);
+                addedRegistrations.add(newRegistration);
+            } else if (!oldRegistration.isSameRegistration(newRegistration)) {
+                if (DBG) Log.d(TAG, "updateServiceMap: service changed " + component);
+                removedRegistrations.add(oldRegistration);
+                addedRegistrations.add(newRegistration);
+            } else if (oldRegistration.service != service) {
+                // Same registrations, but the label, icon or banner may be new
+                replacedServices.put(component, service);
+            }
+        }
+        for (ComponentName component : removed) {
+            ServiceAidRegistration registration = mServiceRegistrations.get(component);
+            if (registration != null) {
+                if (DBG) Log.d(TAG, "updateServiceMap: service removed " + component);
+                removedRegistrations.add(registration);
+            }
+        }
+        replaceServicesLocked(replacedServices);
+        return applyRegistrationChangesLocked(removedRegistrations, addedRegistrations);
+    }
+
+    /**
+     * Swaps new instances of services whose registrations did not change into
+     * mServiceRegistrations, mAidServices and mAidCache, without resolving
+     * any AID again. The next snapshot hands out the new instances.
+     */
+    void replaceServicesLocked(HashMap<ComponentName, ApduServiceInfo> replacedServices) {
+        if (replacedServices.isEmpty()) {
+            return;
+        }
+        for (Map.Entry<ComponentName, ApduServiceInfo> entry : replacedServices.entrySet()) {
+            ServiceAidRegistration registration = mServiceRegistrations.get(entry.getKey());
+            registration.service = entry.getValue();
+            for (ServiceAidInfo serviceAidInfo : registration.aidInfos) {
+                serviceAidInfo.service = entry.getValue();
+            }
+        }
+        // Copy, since the published resolve infos are never modified
+        final TreeMap<String, AidResolveInfo> aidCache =
+                new TreeMap<String, AidResolveInfo>(mAidCache);
+        for (Map.Entry<String, AidResolveInfo> entry : aidCache.entrySet()) {
+            AidResolveInfo resolveInfo = replaceServices(entry.getValue(), replacedServices);
+            if (resolveInfo != null) {
+                entry.setValue(resolveInfo);
+            }
+        }
+        mAidCache = aidCache;
+    }
+
+    /**
+     * Returns a copy of resolveInfo that hands out the replaced services, or
+     * null if it hands out none of them.
+     */
+    static AidResolveInfo replaceServices(AidResolveInfo resolveInfo,
+            Map<ComponentName, ApduServiceInfo> replacedServices) {
+        ApduServiceInfo defaultService = resolveInfo.defaultService != null ?
+                replacedServices.get(resolveInfo.defaultService.getComponent()) : null;
+        boolean replaced = defaultService != null;
+        final ArrayList<ApduServiceInfo> services =
+                new ArrayList<ApduServiceInfo>(resolveInfo.services.size());
+        for (ApduServiceInfo service : resolveInfo.services) {
+            ApduServiceInfo replacedService = replacedServices.get(service.getComponent());
+            replaced |= replacedService != null;
+            services.add(replacedService != null ? replacedService : service);
+        }
+        if (!replaced) {
+            return null;
+        }
+        AidResolveInfo result = new AidResolveInfo();
+        result.services = services;
+        result.defaultService = defaultService != null ? defaultService :
+                resolveInfo.defaultService;
+        result.category = resolveInfo.category;
+        result.mustRoute = resolveInfo.mustRoute;
+        result.aid = resolveInfo.aid;
+        return result;
+    }
+
+    /**
+     * Removes and adds the given registrations to mAidServices, and returns
+     * the resolve roots of all of them.
+     */
+    HashSet<String> applyRegistrationChangesLocked(
+            List<ServiceAidRegistration> removedRegistrations,
+            List<ServiceAidRegistration> addedRegistrations) {
+        // Find the roots before changing mAidServices: a removed prefix AID is
+        // its own root, and an added one is still found as root of itself.
+        final HashSet<String> resolveRoots = new HashSet<String>();
+        for (ServiceAidRegistration registration : removedRegistrations) {
+            addResolveRootsLocked(registration, resolveRoots);
+        }
+        for (ServiceAidRegistration registration : addedRegistrations) {
+            addResolveRootsLocked(registration, resolveRoots);
+        }
+        for (ServiceAidRegistration registration : removedRegistrations) {
+            mServiceRegistrations.remove(registration.service.getComponent());
+            removeServiceAidInfosLocked(registration.aidInfos);
+        }
+        for (ServiceAidRegistration registration : addedRegistrations) {
+            mServiceRegistrations.put(registration.service.getComponent(), registration);
+            addServiceAidInfosLocked(registration.aidInfos);
+        }
+        return resolveRoots;
+    }
+
+    void addResolveRootsLocked(ServiceAidRegistration registration, HashSet<String> roots) {
+        for (ServiceAidInfo serviceAidInfo : registration.aidInfos) {
+            roots.add(findResolveRootLocked(serviceAidInfo.aid));
+        }
+    }
+
+    void addServiceAidInfosLocked(List<ServiceAidInfo> serviceAidInfos) {
+        for (ServiceAidInfo serviceAidInfo : serviceAidInfos) {
+            ArrayList<ServiceAidInfo> aidServices = mAidServices.get(serviceAidInfo.aid);
+            if (aidServices == null) {
+                aidServices = new ArrayList<ServiceAidInfo>();
+                mAidServices.put(serviceAidInfo.aid, aidServices);
+            }
+            aidServices.add(serviceAidInfo);
+        }
+    }
+
+    void removeServiceAidInfosLocked(List<ServiceAidInfo> serviceAidInfos) {
+        for (ServiceAidInfo serviceAidInfo : serviceAidInfos) {
+            ArrayList<ServiceAidInfo> aidServices = mAidServices.get(serviceAidInfo.aid);
+            if (aidServices == null) {
+                continue;
+            }
+            for (int i = 0; i < aidServices.size(); i++) {
+                if (aidServices.get(i) == serviceAidInfo) {
+                    aidServices.remove(i);
+                    break;
                 }
             }
+            if (aidServices.isEmpty()) {
+                mAidServices.remove(serviceAidInfo.aid);
+            }
+        }
+    }
+
+    ArrayList<ServiceAidInfo> getServiceAidInfosLocked(ApduServiceInfo service) {
+        final ArrayList<ServiceAidInfo> serviceAidInfos = new ArrayList<ServiceAidInfo>();
+        for (String aid : service.getAids()) {
+            if (!CardEmulation.isValidAid(aid)) {
+                Log.e(TAG, "Aid " + aid + " is not valid.");
+                continue;
+            }
+            if (aid.endsWith("*") && !supportsAidPrefixRegistration()) {
+                Log.e(TAG, "Prefix AID " + aid + " ignored on device that doesn't support it.");
+                continue;
+            }
+
+            ServiceAidInfo serviceAidInfo = new ServiceAidInfo();
+            serviceAidInfo.service = service;
+            serviceAidInfo.category = service.getCategoryForAid(aid);
+            //NXP specific, Adding prefix (*) to all off host aid for prefix match.
+            if (mRoutingManager.getAidMatchingPlatform() == AidRoutingManager.AID_MATCHING_K
+                    && !service.isOnHost() && !aid.endsWith("*")) {
+                aid = aid + "*";
+            }
+            serviceAidInfo.aid = aid.toUpperCase();
+            serviceAidInfo.aidKey = AidKey.parse(serviceAidInfo.aid);
+            if (serviceAidInfo.aidKey == null) {
+                Log.e(TAG, "Aid " + aid + " is not valid.");
+                continue;
+            }
+            serviceAidInfos.add(serviceAidInfo);
         }
+        return serviceAidInfos;
     }
 
     static boolean isPrefix(String aid) {
@@ -439,18 +778,40 @@ public class RegisteredAidCache {
         final HashSet<String> aids = new HashSet<String>();
     }
 
+    static String getLastAidWithPrefix(String plainAid) {
+        return String.format("%-32s", plainAid).replace(' ', 'F');
+    }
+
+    /**
+     * Returns the AID that the resolution of aid starts from: the shortest
+     * registered prefix AID whose range contains aid, or else aid itself.
+     * All AIDs in the range of a prefix AID are resolved together, and
+     * independently of any AID outside of it.
+     */
+    String findResolveRootLocked(String aid) {
+        String plainAid = isPrefix(aid) ? aid.substring(0, aid.length() - 1) : aid;
+        for (int length = 2; length <= plainAid.length(); length += 2) {
+            String prefix = plainAid.substring(0, length);
+            if (mAidServices.containsKey(prefix + "*") &&
+                    aid.compareTo(getLastAidWithPrefix(prefix)) <= 0) {
+                return prefix + "*";
+            }
+        }
+        return aid;
+    }
+
     PrefixConflicts findConflictsForPrefixLocked(String prefixAid) {
         PrefixConflicts prefixConflicts = new PrefixConflicts();
         String plainAid = prefixAid.substring(0, prefixAid.length() - 1); // Cut off "*"
-        String lastAidWithPrefix = String.format("%-32s", plainAid).replace(' ', 'F');
-        if (DBG) Log.d(TAG, "Finding AIDs in range [" + plainAid + " - " +
+        String lastAidWithPrefix = getLastAidWithPrefix(plainAid);
+        if (VDBG) Log.d(TAG, "Finding AIDs in range [" + plainAid + " - " +
                 lastAidWithPrefix + "]");
         prefixConflicts.conflictMap =
                 mAidServices.subMap(plainAid, true, lastAidWithPrefix, true);
         for (Map.Entry<String, ArrayList<ServiceAidInfo>> entry :
                 prefixConflicts.conflictMap.entrySet()) {
             if (!entry.getKey().equalsIgnoreCase(prefixAid)) {
-                if (DBG)
+                if (VDBG)
                     Log.d(TAG, "AID " + entry.getKey() + " conflicts with prefix; " +
                             " adding handling services for conflict resolution.");
                 prefixConflicts.services.addAll(entry.getValue());
@@ -461,14 +822,80 @@ public class RegisteredAidCache {
     }
 
     void generateAidCacheLocked() {
-        mAidCache.clear();
-        // Get all exact and prefix AIDs in an ordered list
-        PriorityQueue<String> aidsToResolve = new PriorityQueue<String>(mAidServices.keySet());
+        // Build into a new map; the previous one may still be in use by readers
+        // of the published snapshot.
+        mAidCache = new TreeMap<String, AidResolveInfo>();
+        resolveAidsLocked(mAidServices.keySet());
+        mSnapshot = new AidCacheSnapshot(mAidCache, mSupportsPrefixes);
+
+        updateRoutingLocked();
+    }
+
+    /**
+     * Re-resolves only the AIDs in the ranges of the given resolve roots
+     * (see {@link #findResolveRootLocked(String)}), keeping all other entries
+     * of the AID cache.
+     */
+    void regenerateAidCacheLocked(Collection<String> resolveRoots) {
+        if (DBG) Log.d(TAG, "regenerateAidCacheLocked: roots " + resolveRoots);
+        // Copy, since the previous map may still be in use by readers of the
+        // published snapshot.
+        final TreeMap<String, AidResolveInfo> aidCache =
+                new TreeMap<String, AidResolveInfo>(mAidCache);
+        final ArrayList<String> aidsToResolve = new ArrayList<String>();
+        for (String root : resolveRoots) {
+            if (isPrefix(root)) {
+                String plainAid = root.substring(0, root.length() - 1);
+                String lastAidWithPrefix = getLastAidWithPrefix(plainAid);
+                aidCache.subMap(plainAid, true, lastAidWithPrefix, true).clear();
+                aidsToResolve.addAll(
+                        mAidServices.subMap(plainAid, true, lastAidWithPrefix, true).keySet());
+            } else {
+                aidCache.remove(root);
+                if (mAidServices.containsKey(root)) {
+                    aidsToResolve.add(root);
+                }
+            }
+        }
+        mAidCache = aidCache;
+        resolveAidsLocked(aidsToResolve);
+        mSnapshot = new AidCacheSnapshot(mAidCache, mSupportsPrefixes);
+
+        updateRoutingLocked();
+    }
+
+    /**
+     * Re-resolves the AIDs registered by the given services, e.g. because
+     * the user's preference for them changed.
+     */
+    void regenerateAidCacheForServicesLocked(ComponentName... services) {
+        final HashSet<String> resolveRoots = new HashSet<String>();
+        addResolveRootsForServicesLocked(resolveRoots, services);
+        regenerateAidCacheLocked(resolveRoots);
+    }
+
+    void addResolveRootsForServicesLocked(HashSet<String> roots, ComponentName... services) {
+        for (ComponentName service : services) {
+            ServiceAidRegistration registration =
+                    service != null ? mServiceRegistrations.get(service) : null;
+            if (registration != null) {
+                addResolveRootsLocked(registration, roots);
+            }
+        }
+    }
+
+    /**
+     * Resolves the given AIDs into mAidCache. The AIDs must consist of
+     * complete resolve root ranges.
+     */
+    void resolveAidsLocked(Collection<String> aids) {
+        // Get all exact and prefix AIDs in an ordered set
+        TreeSet<String> aidsToResolve = new TreeSet<String>(aids);
 
         while (!aidsToResolve.isEmpty()) {
             final ArrayList<String> resolvedAids = new ArrayList<String>();
 
-            String aidToResolve = aidsToResolve.peek();
+            String aidToResolve = aidsToResolve.first();
             // Because of the lexicographical ordering, all following AIDs either start with the
             // same bytes and are longer, or start with different bytes.
 
@@ -477,7 +904,7 @@ public class RegisteredAidCache {
             if (aidsToResolve.contains(aidToResolve + "*")) {
                 aidToResolve = aidToResolve + "*";
             }
-            if (DBG) Log.d(TAG, "generateAidCacheLocked: starting with aid " + aidToResolve);
+            if (VDBG) Log.d(TAG, "generateAidCacheLocked: starting with aid " + aidToResolve);
 
             if (isPrefix(aidToResolve)) {
                 // This AID itself is a prefix; let's consider this prefix as the "root",
@@ -493,7 +920,7 @@ public class RegisteredAidCache {
                 // Resolve conflicts
                 AidResolveInfo resolveInfo = resolvePrefixAidConflictLocked(prefixServices,
                         prefixConflicts.services);
-                mAidCache.put(aidToResolve, resolveInfo);
+                putResolveInfoLocked(aidToResolve, resolveInfo);
                 resolvedAids.add(aidToResolve);
                 if (resolveInfo.defaultService != null) {
                     // This prefix is the default; therefore, AIDs of all conflicting children
@@ -507,7 +934,7 @@ public class RegisteredAidCache {
                     for (Map.Entry<String, ArrayList<ServiceAidInfo>> entry :
                             prefixConflicts.conflictMap.entrySet()) {
                         if (!entry.getKey().equalsIgnoreCase(aidToResolve)) {
-                            if (DBG)
+                            if (VDBG)
                                 Log.d(TAG, "AID " + entry.getKey() + " shared with prefix; " +
                                         " adding all handling services.");
                             AidResolveInfo childResolveInfo = resolveAidConflictLocked(
@@ -517,7 +944,7 @@ public class RegisteredAidCache {
                             // Since these are all "children" of the prefix, they don't need
                             // to be routed, since the prefix will already get routed to the host
                             childResolveInfo.mustRoute = false;
-                            mAidCache.put(entry.getKey(),childResolveInfo);
+                            putResolveInfoLocked(entry.getKey(), childResolveInfo);
                             resolvedAids.add(entry.getKey());
                             foundChildService |= !childResolveInfo.services.isEmpty();
                         }
@@ -535,20 +962,30 @@ public class RegisteredAidCache {
                 // Exact AID and no other conflicting AID registrations present
                 // This is true because aidsToResolve is lexicographically ordered, and
                 // so by necessity all other AIDs are different than this AID or longer.
-                if (DBG) Log.d(TAG, "Exact AID, resolving.");
+                if (VDBG) Log.d(TAG, "Exact AID, resolving.");
                 final ArrayList<ServiceAidInfo> conflictingServiceInfos =
                         new ArrayList<ServiceAidInfo>(mAidServices.get(aidToResolve));
-                mAidCache.put(aidToResolve, resolveAidConflictLocked(conflictingServiceInfos, true));
+                putResolveInfoLocked(aidToResolve,
+                        resolveAidConflictLocked(conflictingServiceInfos, true));
                 resolvedAids.add(aidToResolve);
             }
 
             // Remove the AIDs we resolved from the list of AIDs to resolve
-            if (DBG) Log.d(TAG, "AIDs: " + resolvedAids + " were resolved.");
+            if (VDBG) Log.d(TAG, "AIDs: " + resolvedAids + " were resolved.");
             aidsToResolve.removeAll(resolvedAids);
             resolvedAids.clear();
         }
+    }
 
-        updateRoutingLocked();
+    // Puts resolveInfo for a registered AID in mAidCache, along with the AID in binary
+    void putResolveInfoLocked(String aid, AidResolveInfo resolveInfo) {
+        ArrayList<ServiceAidInfo> aidServices = mAidServices.get(aid);
+        if (aidServices != null && !aidServices.isEmpty()) {
+            resolveInfo.aid = aidServices.get(0).aidKey;
+        } else {
+            resolveInfo.aid = AidKey.parse(aid);
+        }
+        mAidCache.put(aid, resolveInfo);
     }
 
     void updateRoutingLocked() {
@@ -556,14 +993,17 @@ public class RegisteredAidCache {
             if (DBG) Log.d(TAG, "Not updating routing table because NFC is off.");
             return;
         }
-        final HashMap<String, AidElement> routingEntries = Maps.newHashMap();
+        final HashMap<AidKey, AidElement> routingEntries = Maps.newHashMap();
         // For each AID, find interested services
         for (Map.Entry<String, AidResolveInfo> aidEntry:
                 mAidCache.entrySet()) {
             String aid = aidEntry.getKey();
             AidResolveInfo resolveInfo = aidEntry.getValue();
             if (!resolveInfo.mustRoute) {
-                if (DBG) Log.d(TAG, "Not routing AID " + aid + " on request.");
+                if (VDBG) Log.d(TAG, "Not routing AID " + aid + " on request.");
+                continue;
+            } else if (resolveInfo.aid == null) {
+                Log.e(TAG, "Not routing invalid AID " + aid);
                 continue;
             }
             if (resolveInfo.services.size() == 0) {
@@ -598,26 +1038,19 @@ public class RegisteredAidCache {
                 }
 
                 if (!isOnHost && NfcService.getInstance().isVzwFeatureEnabled()) {
-                    String plainAid = "";
-                    if(aid.endsWith("*"))
-                    {
-                        plainAid = aid.substring(0, aid.length()-1);
-                    } else {
-                        plainAid = aid;
-                    }
-                    if (mRoutingManager.GetVzwCache().isAidPresent(plainAid)) {
-                        if (mRoutingManager.GetVzwCache().IsAidAllowed(plainAid)){
-                            /*if vzw AID reset the previous screen state   */
-                            powerstate &= ~0x80;
-                            /*get the vzw power and screen state  :- SCREEN | L |F */
-                            VzwPowerstate = mRoutingManager.GetVzwCache().getPowerState(plainAid);
-                            /*merge power state with vzw power state */
-                            powerstate &= VzwPowerstate;
-                            /*merge the power state with vzw screen state*/
-                            powerstate |= (VzwPowerstate & 0x80);
-                            Log.d(TAG," vzw aid" + aid);
-                            Log.d(TAG," vzw merged power state" + powerstate);
-                        }
+                    VzwRoutingCache.Entry vzwEntry = mRoutingManager.GetVzwCache().lookup(
+                            resolveInfo.aid);
+                    if (vzwEntry != null && vzwEntry.allowed) {
+                        /*if vzw AID reset the previous screen state   */
+                        powerstate &= ~0x80;
+                        /*get the vzw power and screen state  :- SCREEN | L |F */
+                        VzwPowerstate = vzwEntry.powerState;
+                        /*merge power state with vzw power state */
+                        powerstate &= VzwPowerstate;
+                        /*merge the power state with vzw screen state*/
+                        powerstate |= (VzwPowerstate & 0x80);
+                        Log.d(TAG," vzw aid" + aid);
+                        Log.d(TAG," vzw merged power state" + powerstate);
                     }
                 }
                 route = isOnHost ? 0 : seInfo.getSeId();
@@ -627,31 +1060,103 @@ public class RegisteredAidCache {
                 if (isDefaultPayment && isPaymentAid) {
                     weight += AidElement.ROUTE_WIEGHT_PAYMENT;
                 }
-                AidElement aidElem = new AidElement(aid, weight, route, powerstate);
-                routingEntries.put(aid, aidElem);
+                AidElement aidElem = new AidElement(resolveInfo.aid, weight, route, powerstate);
+                routingEntries.put(resolveInfo.aid, aidElem);
             } else if (resolveInfo.services.size() == 1) {
                 // Only one service, but not the default, must route to host
                 // to ask the user to choose one.
-                AidElement aidElem = new AidElement(aid, AidElement.ROUTE_WIEGHT_OTHER, 0, mHostAIDPowerState);
-                routingEntries.put(aid, aidElem);
+                AidElement aidElem = new AidElement(resolveInfo.aid, AidElement.ROUTE_WIEGHT_OTHER,
+                        0, mHostAIDPowerState);
+                routingEntries.put(resolveInfo.aid, aidElem);
             } else if (resolveInfo.services.size() > 1) {
                 // Multiple services, need to route to host to ask
-                AidElement aidElem = new AidElement(aid, AidElement.ROUTE_WIEGHT_OTHER, 0, mHostAIDPowerState);
-                routingEntries.put(aid, aidElem);
+                AidElement aidElem = new AidElement(resolveInfo.aid, AidElement.ROUTE_WIEGHT_OTHER,
+                        0, mHostAIDPowerState);
+                routingEntries.put(resolveInfo.aid, aidElem);
             }
         }
         mRoutingManager.configureRouting(routingEntries);
     }
 
+    /**
+     * Retains the AID state of the current user, and swaps in the retained
+     * state of userId. Returns false if no state of userId was retained.
+     */
+    boolean switchUserLocked(int userId) {
+        if (mServicesUserId == userId) {
+            return true;
+        }
+        if (mServicesUserId != -1) {
+            mRetainedUsers.put(mServicesUserId, new RetainedUserState());
+        }
+        // The maps of the retained state are owned by it now
+        mServicesUserId = userId;
+        RetainedUserState state = mRetainedUsers.remove(userId);
+        if (state == null) {
+            mAidServices = new TreeMap<String, ArrayList<ServiceAidInfo>>();
+            mServiceRegistrations = new HashMap<ComponentName, ServiceAidRegistration>();
+            mAidCache = new TreeMap<String, AidResolveInfo>();
+            mSnapshot = new AidCacheSnapshot(mAidCache, mSupportsPrefixes);
+            return false;
+        }
+        if (DBG) Log.d(TAG, "Swapping in retained AID state of user " + userId);
+        mAidServices = state.aidServices;
+        mServiceRegistrations = state.serviceRegistrations;
+        mAidCache = state.aidCache;
+        mSnapshot = state.snapshot;
+        // The preferred services of userId may have changed while the user
+        // was in the background.
+        final HashSet<String> resolveRoots = new HashSet<String>();
+        if (!Objects.equals(state.preferredPaymentService, mPreferredPaymentService)) {
+            addResolveRootsForServicesLocked(resolveRoots, state.preferredPaymentService,
+                    mPreferredPaymentService);
+        }
+        if (!Objects.equals(state.preferredForegroundService, mPreferredForegroundService)) {
+            addResolveRootsForServicesLocked(resolveRoots, state.preferredForegroundService,
+                    mPreferredForegroundService);
+        }
+        // Also brings the routing table in line with the swapped in cache
+        regenerateAidCacheLocked(resolveRoots);
+        return true;
+    }
+
+    /**
+     * Makes the retained AID state of the user current right away, so that
+     * HCE works for the user before its services have been loaded again.
+     */
+    public void onUserSwitched(int userId) {
+        synchronized (mLock) {
+            switchUserLocked(userId);
+        }
+    }
+
     public void onServicesUpdated(int userId, List<ApduServiceInfo> services) {
         if (DBG) Log.d(TAG, "onServicesUpdated");
         synchronized (mLock) {
-            if (ActivityManager.getCurrentUser() == userId) {
-                // Rebuild our internal data-structures
+            if (ActivityManager.getCurrentUser() != userId) {
+                if (DBG) Log.d(TAG, "Ignoring update because it's not for the current user.");
+            } else if (!switchUserLocked(userId)) {
+                // Nothing retained for the user; rebuild our internal data-structures
                 generateServiceMapLocked(services);
                 generateAidCacheLocked();
             } else {
+                // Only re-resolve the AIDs that the changed services affect
+                regenerateAidCacheLocked(updateServiceMapLocked(services));
+            }
+        }
+    }
+
+    public void onPackageServicesUpdated(int userId, List<ApduServiceInfo> services,
+            List<ApduServiceInfo> updated, List<ComponentName> removed) {
+        if (DBG) Log.d(TAG, "onPackageServicesUpdated");
+        synchronized (mLock) {
+            if (ActivityManager.getCurrentUser() != userId) {
                 if (DBG) Log.d(TAG, "Ignoring update because it's not for the current user.");
+            } else if (!switchUserLocked(userId)) {
+                generateServiceMapLocked(services);
+                generateAidCacheLocked();
+            } else {
+                regenerateAidCacheLocked(updateServiceMapLocked(updated, removed));
             }
         }
     }
@@ -659,16 +1164,20 @@ public class RegisteredAidCache {
     public void onPreferredPaymentServiceChanged(ComponentName service) {
         if (DBG) Log.d(TAG, "Preferred payment service changed.");
        synchronized (mLock) {
+           ComponentName oldService = mPreferredPaymentService;
            mPreferredPaymentService = service;
-           generateAidCacheLocked();
+           // Only AIDs of the old and new preferred service resolve differently
+           regenerateAidCacheForServicesLocked(oldService, service);
        }
     }
 
     public void onPreferredForegroundServiceChanged(ComponentName service) {
         if (DBG) Log.d(TAG, "Preferred foreground service changed.");
         synchronized (mLock) {
+            ComponentName oldService = mPreferredForegroundService;
             mPreferredForegroundService = service;
-            generateAidCacheLocked();
+            // Only AIDs of the old and new preferred service resolve differently
+            regenerateAidCacheForServicesLocked(oldService, service);
         }
     }
 
@@ -713,11 +1222,12 @@ public class RegisteredAidCache {
 
     public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
         pw.println("    AID cache entries: ");
-        for (Map.Entry<String, AidResolveInfo> entry : mAidCache.entrySet()) {
+        for (Map.Entry<String, AidResolveInfo> entry : mSnapshot.aidCache.entrySet()) {
             pw.println(dumpEntry(entry));
         }
         pw.println("    Service preferred by foreground app: " + mPreferredForegroundService);
         pw.println("    Preferred payment service: " + mPreferredPaymentService);
+        pw.println("    AID state retained for users: " + mRetainedUsers.keySet());
         pw.println("");
         mRoutingManager.dump(fd, pw, args);
         pw.println("");
@@ -31,6 +31,7 @@ import android.os.Looper;
 import android.os.UserHandle;
 import android.provider.Settings;
 import android.util.Log;
+import android.util.LongSparseArray;
 
 import com.android.nfc.cardemulation.Nfcid2RoutingManager;
 import com.google.android.collect.Maps;
@@ -67,6 +68,11 @@ public class RegisteredNfcid2Cache /*implements RegisteredServicesCache.Callback
     final HashMap<String, ComponentName> mCategoryDefaults =
             Maps.newHashMap();
 
+    // mNfcid2Index holds the same entries as mNfcid2Cache, keyed by the
+    // NFCID2 as a long, so that T3T frames resolve without allocating.
+    final LongSparseArray<Nfcid2ResolveInfo> mNfcid2Index =
+            new LongSparseArray<Nfcid2ResolveInfo>();
+
     final class Nfcid2ResolveInfo {
         List<ApduServiceInfo> services;
         ApduServiceInfo defaultService;
@@ -136,15 +142,13 @@ public class RegisteredNfcid2Cache /*implements RegisteredServicesCache.Callback
         }
     }
 
-    public Nfcid2ResolveInfo resolveNfcid2Prefix(String nfcid2) {
+    /**
+     * Resolves an NFCID2, as decoded by {@link T3tFrame#getNfcid2(byte[], int)}.
+     * The nfcid2 field of the result tells which NFCID2 got selected.
+     */
+    public Nfcid2ResolveInfo resolveNfcid2(long nfcid2) {
         synchronized (mLock) {
-            if (mNfcid2ToServices.containsKey(nfcid2)) {
-                Nfcid2ResolveInfo resolveInfo = mNfcid2Cache.get(nfcid2);
-                // Let the caller know which NFCID2 got selected
-                resolveInfo.nfcid2 = nfcid2;
-                return resolveInfo;
-            }
-            return null;
+            return mNfcid2Index.get(nfcid2);
         }
     }
 
@@ -411,12 +415,23 @@ public class RegisteredNfcid2Cache /*implements RegisteredServicesCache.Callback
 
     void generateNfcid2CacheLocked() {
         mNfcid2Cache.clear();
+        mNfcid2Index.clear();
         for (Map.Entry<String, ArrayList<ApduServiceInfo>> nfcid2Entry:
                     mNfcid2ToServices.entrySet()) {
             String nfcid2 = nfcid2Entry.getKey();
             if (!mNfcid2Cache.containsKey(nfcid2)) {
                 Log.d(TAG, "generateAidCacheLocked: mNfcid2Cache nfcid2 " + nfcid2 +" , service count " + nfcid2Entry.getValue().size());
-                mNfcid2Cache.put(nfcid2, resolveNfcid2Locked(nfcid2Entry.getValue(), nfcid2));
+                Nfcid2ResolveInfo resolveInfo = resolveNfcid2Locked(nfcid2Entry.getValue(), nfcid2);
+                mNfcid2Cache.put(nfcid2, resolveInfo);
+                if (resolveInfo == null) {
+                    continue;
+                }
+                resolveInfo.nfcid2 = nfcid2;
+                if (T3tFrame.isValidNfcid2(nfcid2)) {
+                    mNfcid2Index.put(T3tFrame.parseNfcid2(nfcid2), resolveInfo);
+                } else {
+                    Log.e(TAG, "NFCID2 " + nfcid2 + " is not valid.");
+                }
             }
         }
         Log.d(TAG, "generateAidCacheLocked: mNfcid2Cache size " + mNfcid2Cache.size());
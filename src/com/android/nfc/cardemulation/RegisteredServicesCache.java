@@ -36,7 +36,6 @@ package com.android.nfc.cardemulation;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
-import org.xmlpull.v1.XmlSerializer;
 
 import android.app.ActivityManager;
 import android.content.BroadcastReceiver;
@@ -44,6 +43,7 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.content.pm.ServiceInfo;
@@ -60,21 +60,30 @@ import android.util.Log;
 import android.util.SparseArray;
 import android.util.Xml;
 
-import com.android.internal.util.FastXmlSerializer;
 import com.google.android.collect.Maps;
 
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import com.gsma.nfc.internal.RegisteredNxpServicesCache;
 
@@ -86,12 +95,19 @@ import com.gsma.nfc.internal.RegisteredNxpServicesCache;
  * it's less suited.
  */
 public class RegisteredServicesCache {
-    static final String XML_INDENT_OUTPUT_FEATURE = "http://xmlpull.org/v1/doc/features.html#indent-output";
     static final String TAG = "RegisteredServicesCache";
     static final boolean DEBUG = true;
 
+    // Upper bound of the threads that parse services in parallel
+    static final int MAX_PARSE_THREADS = 4;
+    static final long PARSE_THREAD_KEEP_ALIVE_MS = 10000;
+
+    // Sent when the resource overlays of a package changed; hidden in Intent
+    static final String ACTION_OVERLAY_CHANGED = "android.intent.action.OVERLAY_CHANGED";
+
     final Context mContext;
     final AtomicReference<BroadcastReceiver> mReceiver;
+    final ThreadPoolExecutor mParseExecutor = createParseExecutor();
 
     final Object mLock = new Object();
     // All variables below synchronized on mLock
@@ -99,7 +115,13 @@ public class RegisteredServicesCache {
     // mUserServices holds the card emulation services that are running for each user
     final SparseArray<UserServices> mUserServices = new SparseArray<UserServices>();
     final Callback mCallback;
+    // Gets the updates caused by package broadcasts, which may be passed on
+    // to mCallback later; see ServicesUpdateScheduler.
+    final Callback mBroadcastCallback;
+    // Only read, to migrate the dynamic AIDs to mDynamicAidsJournal
     final AtomicFile mDynamicAidsFile;
+    final DynamicAidsJournal mDynamicAidsJournal;
+    final ParsedServiceIndex mParsedServiceIndex;
 
     //public ArrayList<ApduServiceInfo> mAllServices = new ArrayList<ApduServiceInfo>();
     final HashMap<ComponentName, ApduServiceInfo> mAllServices = Maps.newHashMap();
@@ -108,6 +130,15 @@ public class RegisteredServicesCache {
 
     public interface Callback {
         void onServicesUpdated(int userId, final List<ApduServiceInfo> services);
+
+        /**
+         * Called instead of onServicesUpdated when only the services of a
+         * single package changed. services holds all services of the user,
+         * updated the (re-)parsed services of the package, and removed the
+         * services of the package that are gone.
+         */
+        void onPackageServicesUpdated(int userId, final List<ApduServiceInfo> services,
+                final List<ApduServiceInfo> updated, final List<ComponentName> removed);
     };
 
     static class DynamicAids {
@@ -121,10 +152,12 @@ public class RegisteredServicesCache {
 
     private static class UserServices {
         /**
-         * All services that have registered
+         * All services that have registered, in the order PackageManager
+         * resolved them in the last full query; services of packages
+         * installed since then come last.
          */
-        final HashMap<ComponentName, ApduServiceInfo> services =
-                Maps.newHashMap(); // Re-built at run-time
+        final LinkedHashMap<ComponentName, ApduServiceInfo> services =
+                new LinkedHashMap<ComponentName, ApduServiceInfo>(); // Re-built at run-time
         final HashMap<ComponentName, DynamicAids> dynamicAids =
                 Maps.newHashMap(); // In memory cache of dynamic AID store
     };
@@ -139,8 +172,14 @@ public class RegisteredServicesCache {
     }
 
     public RegisteredServicesCache(Context context, Callback callback) {
+        this(context, callback, callback);
+    }
+
+    public RegisteredServicesCache(Context context, Callback callback,
+            Callback broadcastCallback) {
         mContext = context;
         mCallback = callback;
+        mBroadcastCallback = broadcastCallback;
 
         final BroadcastReceiver receiver = new BroadcastReceiver() {
             @Override
@@ -148,7 +187,22 @@ public class RegisteredServicesCache {
                 final int uid = intent.getIntExtra(Intent.EXTRA_UID, -1);
                 String action = intent.getAction();
                 if (DEBUG) Log.d(TAG, "Intent action: " + action);
-                if (uid != -1) {
+                if (Intent.ACTION_LOCALE_CHANGED.equals(action)) {
+                    // Parsed services hold localized resources
+                    mParsedServiceIndex.setLocale(Locale.getDefault().toString());
+                    invalidateCache(ActivityManager.getCurrentUser(), mBroadcastCallback);
+                } else if (ACTION_OVERLAY_CHANGED.equals(action)) {
+                    Uri uri = intent.getData();
+                    String pkg = uri != null ? uri.getSchemeSpecificPart() : null;
+                    int userId = intent.getIntExtra(Intent.EXTRA_USER_HANDLE,
+                            ActivityManager.getCurrentUser());
+                    if (pkg != null) {
+                        mParsedServiceIndex.removePackage(userId, pkg);
+                        if (userId == ActivityManager.getCurrentUser()) {
+                            invalidatePackage(userId, pkg);
+                        }
+                    }
+                } else if (uid != -1) {
                     boolean replaced = intent.getBooleanExtra(Intent.EXTRA_REPLACING, false) &&
                             (Intent.ACTION_PACKAGE_ADDED.equals(action) ||
                              Intent.ACTION_PACKAGE_REMOVED.equals(action));
@@ -161,7 +215,13 @@ public class RegisteredServicesCache {
                             mRegisteredNxpServicesCache.writeDynamicApduService();
                         }
                         if (currentUser == UserHandle.getUserId(uid)) {
-                            invalidateCache(UserHandle.getUserId(uid));
+                            Uri uri = intent.getData();
+                            String pkg = uri != null ? uri.getSchemeSpecificPart() : null;
+                            if (pkg != null) {
+                                invalidatePackage(UserHandle.getUserId(uid), pkg);
+                            } else {
+                                invalidateCache(UserHandle.getUserId(uid), mBroadcastCallback);
+                            }
                         } else {
                             // Cache will automatically be updated on user switch
                         }
@@ -180,6 +240,7 @@ public class RegisteredServicesCache {
         intentFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
         intentFilter.addAction(Intent.ACTION_PACKAGE_FIRST_LAUNCH);
         intentFilter.addAction(Intent.ACTION_PACKAGE_RESTARTED);
+        intentFilter.addAction(ACTION_OVERLAY_CHANGED);
         intentFilter.addDataScheme("package");
         mContext.registerReceiverAsUser(mReceiver.get(), UserHandle.ALL, intentFilter, null, null);
 
@@ -189,8 +250,14 @@ public class RegisteredServicesCache {
         sdFilter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE);
         mContext.registerReceiverAsUser(mReceiver.get(), UserHandle.ALL, sdFilter, null, null);
 
+        IntentFilter localeFilter = new IntentFilter(Intent.ACTION_LOCALE_CHANGED);
+        mContext.registerReceiverAsUser(mReceiver.get(), UserHandle.ALL, localeFilter, null, null);
+
         File dataDir = mContext.getFilesDir();
         mDynamicAidsFile = new AtomicFile(new File(dataDir, "dynamic_aids.xml"));
+        mDynamicAidsJournal = new DynamicAidsJournal(new File(dataDir, "dynamic_aids.journal"));
+        mParsedServiceIndex = new ParsedServiceIndex(new File(dataDir, "apdu_services.idx"),
+                Locale.getDefault().toString());
     }
 
     void initialize(RegisteredNxpServicesCache registeredNxpServicesCache) {
@@ -199,6 +266,7 @@ public class RegisteredServicesCache {
             readDynamicAidsLocked();
             mRegisteredNxpServicesCache.readDynamicApduService();
         }
+        mParsedServiceIndex.read();
         invalidateCache(ActivityManager.getCurrentUser());
     }
 
@@ -246,61 +314,177 @@ public class RegisteredServicesCache {
         return services;
     }
 
-    ArrayList<ApduServiceInfo> getInstalledServices(int userId) {
-        PackageManager pm;
+    PackageManager getPackageManagerForUser(int userId) {
         try {
-            pm = mContext.createPackageContextAsUser("android", 0,
+            return mContext.createPackageContextAsUser("android", 0,
                     new UserHandle(userId)).getPackageManager();
         } catch (NameNotFoundException e) {
             Log.e(TAG, "Could not create user package context");
             return null;
         }
+    }
+
+    ArrayList<ApduServiceInfo> getInstalledServices(int userId) {
+        PackageManager pm = getPackageManagerForUser(userId);
+        if (pm == null) {
+            return null;
+        }
+        ArrayList<ApduServiceInfo> validServices = queryServices(pm, userId, null);
+        if (validServices == null) {
+            return null;
+        }
         mAllServices.clear();
-        ArrayList<ApduServiceInfo> validServices = new ArrayList<ApduServiceInfo>();
+        final HashSet<ComponentName> components = new HashSet<ComponentName>();
+        for (ApduServiceInfo service : validServices) {
+            components.add(service.getComponent());
+            if (!service.isOnHost())
+                mAllServices.put(service.getComponent(), service);
+        }
+        // Forget about services that are gone
+        mParsedServiceIndex.retainAll(userId, components);
+        mParsedServiceIndex.writeIfDirty();
+        AddGsmaServices(validServices);
+        return validServices;
+    }
 
+    /**
+     * Resolves and parses the APDU services of the user, or only those of
+     * packageName if it is not null. Returns null if that was interrupted.
+     */
+    ArrayList<ApduServiceInfo> queryServices(PackageManager pm, int userId,
+            String packageName) {
+        Intent hostIntent = new Intent(HostApduService.SERVICE_INTERFACE);
+        Intent offHostIntent = new Intent(OffHostApduService.SERVICE_INTERFACE);
+        if (packageName != null) {
+            hostIntent.setPackage(packageName);
+            offHostIntent.setPackage(packageName);
+        }
         List<ResolveInfo> resolvedServices = pm.queryIntentServicesAsUser(
-                new Intent(HostApduService.SERVICE_INTERFACE),
-                PackageManager.GET_META_DATA, userId);
+                hostIntent, PackageManager.GET_META_DATA, userId);
 
         List<ResolveInfo> resolvedOffHostServices = pm.queryIntentServicesAsUser(
-                new Intent(OffHostApduService.SERVICE_INTERFACE),
-                PackageManager.GET_META_DATA, userId);
-        resolvedServices.addAll(resolvedOffHostServices);
+                offHostIntent, PackageManager.GET_META_DATA, userId);
 
+        // Parse the services on the worker pool, keeping the order in which
+        // they were resolved.
+        final ArrayList<Future<ApduServiceInfo>> parsedServices =
+                new ArrayList<Future<ApduServiceInfo>>(
+                        resolvedServices.size() + resolvedOffHostServices.size());
         for (ResolveInfo resolvedService : resolvedServices) {
+            parsedServices.add(mParseExecutor.submit(
+                    new ParseServiceTask(pm, userId, resolvedService, true)));
+        }
+        for (ResolveInfo resolvedService : resolvedOffHostServices) {
+            parsedServices.add(mParseExecutor.submit(
+                    new ParseServiceTask(pm, userId, resolvedService, false)));
+        }
+
+        ArrayList<ApduServiceInfo> validServices = new ArrayList<ApduServiceInfo>();
+        for (Future<ApduServiceInfo> parsedService : parsedServices) {
+            ApduServiceInfo service;
             try {
-                boolean onHost = !resolvedOffHostServices.contains(resolvedService);
-                ServiceInfo si = resolvedService.serviceInfo;
-                ComponentName componentName = new ComponentName(si.packageName, si.name);
-                // Check if the package holds the NFC permission
-                if (pm.checkPermission(android.Manifest.permission.NFC, si.packageName) !=
-                        PackageManager.PERMISSION_GRANTED) {
-                    Log.e(TAG, "Skipping APDU service " + componentName +
-                            ": it does not require the permission " +
-                            android.Manifest.permission.NFC);
-                    continue;
+                service = parsedService.get();
+            } catch (InterruptedException e) {
+                Log.e(TAG, "Interrupted while parsing services");
+                for (Future<ApduServiceInfo> future : parsedServices) {
+                    future.cancel(true);
                 }
-                if (!android.Manifest.permission.BIND_NFC_SERVICE.equals(
-                        si.permission)) {
-                    Log.e(TAG, "Skipping APDU service " + componentName +
-                            ": it does not require the permission " +
-                            android.Manifest.permission.BIND_NFC_SERVICE);
-                    continue;
-                }
-                ApduServiceInfo service = new ApduServiceInfo(pm, resolvedService, onHost);
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (ExecutionException e) {
+                Log.w(TAG, "Unable to load component info", e.getCause());
+                continue;
+            }
+            if (service != null) {
+                validServices.add(service);
+            }
+        }
+        return validServices;
+    }
+
+    /**
+     * Checks the permissions of a resolved service and parses its
+     * meta-data, unless the parsed service of the installed version of its
+     * package is in the index; returns null if the service is skipped.
+     */
+    final class ParseServiceTask implements Callable<ApduServiceInfo> {
+        final PackageManager mPm;
+        final int mUserId;
+        final ResolveInfo mResolvedService;
+        final boolean mOnHost;
+
+        ParseServiceTask(PackageManager pm, int userId, ResolveInfo resolvedService,
+                boolean onHost) {
+            mPm = pm;
+            mUserId = userId;
+            mResolvedService = resolvedService;
+            mOnHost = onHost;
+        }
+
+        @Override
+        public ApduServiceInfo call() {
+            ServiceInfo si = mResolvedService.serviceInfo;
+            ComponentName componentName = new ComponentName(si.packageName, si.name);
+            // Check if the package holds the NFC permission
+            if (mPm.checkPermission(android.Manifest.permission.NFC, si.packageName) !=
+                    PackageManager.PERMISSION_GRANTED) {
+                Log.e(TAG, "Skipping APDU service " + componentName +
+                        ": it does not require the permission " +
+                        android.Manifest.permission.NFC);
+                return null;
+            }
+            if (!android.Manifest.permission.BIND_NFC_SERVICE.equals(
+                    si.permission)) {
+                Log.e(TAG, "Skipping APDU service " + componentName +
+                        ": it does not require the permission " +
+                        android.Manifest.permission.BIND_NFC_SERVICE);
+                return null;
+            }
+            PackageInfo packageInfo = null;
+            try {
+                packageInfo = mPm.getPackageInfo(si.packageName, 0);
+            } catch (NameNotFoundException e) {
+                Log.e(TAG, "Could not find package " + si.packageName);
+            }
+            if (packageInfo != null) {
+                ApduServiceInfo service = mParsedServiceIndex.get(mUserId, componentName,
+                        mOnHost, packageInfo.versionCode, packageInfo.lastUpdateTime);
                 if (service != null) {
-                    validServices.add(service);
-                    if(!onHost)
-                        mAllServices.put(componentName, service);
+                    return service;
                 }
+            }
+            try {
+                ApduServiceInfo service = new ApduServiceInfo(mPm, mResolvedService, mOnHost);
+                if (packageInfo != null) {
+                    mParsedServiceIndex.put(mUserId, service, packageInfo.versionCode,
+                            packageInfo.lastUpdateTime);
+                }
+                return service;
             } catch (XmlPullParserException e) {
-                Log.w(TAG, "Unable to load component info " + resolvedService.toString(), e);
+                Log.w(TAG, "Unable to load component info " + mResolvedService.toString(), e);
             } catch (IOException e) {
-                Log.w(TAG, "Unable to load component info " + resolvedService.toString(), e);
+                Log.w(TAG, "Unable to load component info " + mResolvedService.toString(), e);
             }
+            return null;
         }
-        AddGsmaServices(validServices);
-        return validServices;
+    }
+
+    static ThreadPoolExecutor createParseExecutor() {
+        final int threads = Math.max(1, Math.min(MAX_PARSE_THREADS,
+                Runtime.getRuntime().availableProcessors()));
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                PARSE_THREAD_KEEP_ALIVE_MS, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "ApduServiceParser-" + mCount.incrementAndGet());
+                    }
+                });
+        // Parsing only happens in bursts; don't keep idle threads around
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
     }
 
     public ArrayList<ApduServiceInfo> getAllServices() {
@@ -317,10 +501,19 @@ public class RegisteredServicesCache {
  }
 
     public void invalidateCache(int userId) {
+        invalidateCache(userId, mCallback);
+    }
+
+    void invalidateCache(int userId, Callback callback) {
         final ArrayList<ApduServiceInfo> validServices = getInstalledServices(userId);
         if (validServices == null) {
             return;
         }
+        final HashMap<ComponentName, ApduServiceInfo> validServicesMap =
+                new HashMap<ComponentName, ApduServiceInfo>(validServices.size() * 2);
+        for (ApduServiceInfo service : validServices) {
+            validServicesMap.put(service.getComponent(), service);
+        }
         synchronized (mLock) {
             UserServices userServices = findOrCreateUserLocked(userId);
 
@@ -330,11 +523,13 @@ public class RegisteredServicesCache {
             while (it.hasNext()) {
                 Map.Entry<ComponentName, ApduServiceInfo> entry =
                         (Map.Entry<ComponentName, ApduServiceInfo>) it.next();
-                if (!containsServiceLocked(validServices, entry.getKey())) {
+                if (!validServicesMap.containsKey(entry.getKey())) {
                     Log.d(TAG, "Service removed: " + entry.getKey());
                     it.remove();
                 }
             }
+            // Re-insert all services, in the order in which they were resolved
+            userServices.services.clear();
             for (ApduServiceInfo service : validServices) {
                 if (DEBUG) Log.d(TAG, "Adding service: " + service.getComponent() +
                         " AIDs: " + service.getAids());
@@ -362,18 +557,156 @@ public class RegisteredServicesCache {
             if (toBeRemoved.size() > 0) {
                 for (ComponentName component : toBeRemoved) {
                     Log.d(TAG, "Removing dynamic AIDs registered by " + component);
-                    userServices.dynamicAids.remove(component);
+                    DynamicAids dynamicAids = userServices.dynamicAids.remove(component);
+                    // Persist to filesystem
+                    appendDynamicAidsRecordLocked(DynamicAidsJournal.Record.removeService(
+                            dynamicAids.uid, component));
                 }
-                // Persist to filesystem
-                writeDynamicAidsLocked();
             }
         }
 
-        mCallback.onServicesUpdated(userId, Collections.unmodifiableList(validServices));
+        callback.onServicesUpdated(userId, Collections.unmodifiableList(validServices));
         dump(validServices);
     }
 
+    /**
+     * Re-resolves the services of a single package, and updates only those
+     * in the cache. Packages without APDU services don't cause a callback.
+     */
+    public void invalidatePackage(int userId, String packageName) {
+        PackageManager pm = getPackageManagerForUser(userId);
+        if (pm == null) {
+            return;
+        }
+        final ArrayList<ApduServiceInfo> updatedServices = queryServices(pm, userId, packageName);
+        if (updatedServices == null) {
+            return;
+        }
+        for (ApduServiceInfo service : mRegisteredNxpServicesCache.getApduservicesList()) {
+            if (packageName.equals(service.getComponent().getPackageName())) {
+                updatedServices.add(service);
+            }
+        }
+        final HashMap<ComponentName, ApduServiceInfo> updatedServicesMap =
+                new HashMap<ComponentName, ApduServiceInfo>();
+        for (ApduServiceInfo service : updatedServices) {
+            updatedServicesMap.put(service.getComponent(), service);
+        }
+        final ArrayList<ComponentName> removedServices = new ArrayList<ComponentName>();
+        final ArrayList<ApduServiceInfo> newServices;
+        synchronized (mLock) {
+            UserServices userServices = findOrCreateUserLocked(userId);
+
+            // Find removed services of the package
+            Iterator<ComponentName> it = userServices.services.keySet().iterator();
+            while (it.hasNext()) {
+                ComponentName component = it.next();
+                if (packageName.equals(component.getPackageName()) &&
+                        !updatedServicesMap.containsKey(component)) {
+                    Log.d(TAG, "Service removed: " + component);
+                    it.remove();
+                    mAllServices.remove(component);
+                    removedServices.add(component);
+                }
+            }
+            if (updatedServices.isEmpty() && removedServices.isEmpty()) {
+                if (DEBUG) Log.d(TAG, "Package " + packageName + " has no APDU services.");
+                return;
+            }
+            // Updated services keep their position, so that the services
+            // stay in the order of the full query
+            for (ApduServiceInfo service : updatedServices) {
+                if (DEBUG) Log.d(TAG, "Updating service: " + service.getComponent() +
+                        " AIDs: " + service.getAids());
+                userServices.services.put(service.getComponent(), service);
+                if (!service.isOnHost()) {
+                    mAllServices.put(service.getComponent(), service);
+                }
+            }
+
+            // Apply dynamic AID mappings of the package
+            ArrayList<ComponentName> toBeRemoved = new ArrayList<ComponentName>();
+            for (Map.Entry<ComponentName, DynamicAids> entry :
+                    userServices.dynamicAids.entrySet()) {
+                ComponentName component = entry.getKey();
+                if (!packageName.equals(component.getPackageName())) {
+                    continue;
+                }
+                DynamicAids dynamicAids = entry.getValue();
+                ApduServiceInfo serviceInfo = updatedServicesMap.get(component);
+                if (serviceInfo == null || (serviceInfo.getUid() != dynamicAids.uid)) {
+                    toBeRemoved.add(component);
+                } else {
+                    for (AidGroup group : dynamicAids.aidGroups.values()) {
+                        serviceInfo.setOrReplaceDynamicAidGroup(group);
+                    }
+                }
+            }
+            if (toBeRemoved.size() > 0) {
+                for (ComponentName component : toBeRemoved) {
+                    Log.d(TAG, "Removing dynamic AIDs registered by " + component);
+                    DynamicAids dynamicAids = userServices.dynamicAids.remove(component);
+                    // Persist to filesystem
+                    appendDynamicAidsRecordLocked(DynamicAidsJournal.Record.removeService(
+                            dynamicAids.uid, component));
+                }
+            }
+            newServices = new ArrayList<ApduServiceInfo>(userServices.services.values());
+        }
+        mParsedServiceIndex.removeAll(userId, removedServices);
+        mParsedServiceIndex.writeIfDirty();
+
+        mBroadcastCallback.onPackageServicesUpdated(userId,
+                Collections.unmodifiableList(newServices),
+                Collections.unmodifiableList(updatedServices),
+                Collections.unmodifiableList(removedServices));
+    }
+
     private void readDynamicAidsLocked() {
+        if (!mDynamicAidsJournal.exists() && mDynamicAidsFile.getBaseFile().exists()) {
+            Log.d(TAG, "Migrating dynamic AIDs to journal.");
+            readDynamicAidsXmlLocked();
+            if (compactDynamicAidsLocked()) {
+                mDynamicAidsFile.delete();
+            }
+            return;
+        }
+        List<DynamicAidsJournal.Record> records = mDynamicAidsJournal.read();
+        if (records == null) {
+            return;
+        }
+        for (DynamicAidsJournal.Record record : records) {
+            applyDynamicAidsRecordLocked(record);
+        }
+    }
+
+    private void applyDynamicAidsRecordLocked(DynamicAidsJournal.Record record) {
+        UserServices services = findOrCreateUserLocked(UserHandle.getUserId(record.uid));
+        DynamicAids dynAids = services.dynamicAids.get(record.component);
+        switch (record.op) {
+            case DynamicAidsJournal.OP_PUT_GROUP:
+                if (dynAids == null || dynAids.uid != record.uid) {
+                    dynAids = new DynamicAids(record.uid);
+                    services.dynamicAids.put(record.component, dynAids);
+                }
+                dynAids.aidGroups.put(record.category,
+                        new AidGroup(record.aids, record.category));
+                break;
+            case DynamicAidsJournal.OP_REMOVE_GROUP:
+                if (dynAids != null) {
+                    dynAids.aidGroups.remove(record.category);
+                    if (dynAids.aidGroups.isEmpty()) {
+                        services.dynamicAids.remove(record.component);
+                    }
+                }
+                break;
+            case DynamicAidsJournal.OP_REMOVE_SERVICE:
+                services.dynamicAids.remove(record.component);
+                break;
+        }
+    }
+
+    private void readDynamicAidsXmlLocked() {
         FileInputStream fis = null;
         try {
             if (!mDynamicAidsFile.getBaseFile().exists()) {
@@ -455,38 +788,43 @@ public class RegisteredServicesCache {
         }
     }
 
-    private boolean writeDynamicAidsLocked() {
-        FileOutputStream fos = null;
-        try {
-            fos = mDynamicAidsFile.startWrite();
-            XmlSerializer out = new FastXmlSerializer();
-            out.setOutput(fos, "utf-8");
-            out.startDocument(null, true);
-            out.setFeature(XML_INDENT_OUTPUT_FEATURE, true);
-            out.startTag(null, "services");
-            for (int i = 0; i < mUserServices.size(); i++) {
-                final UserServices user = mUserServices.valueAt(i);
-                for (Map.Entry<ComponentName, DynamicAids> service : user.dynamicAids.entrySet()) {
-                    out.startTag(null, "service");
-                    out.attribute(null, "component", service.getKey().flattenToString());
-                    out.attribute(null, "uid", Integer.toString(service.getValue().uid));
-                    for (AidGroup group : service.getValue().aidGroups.values()) {
-                        group.writeAsXml(out);
-                    }
-                    out.endTag(null, "service");
-                }
+    /**
+     * Appends the record to the dynamic AIDs journal, and compacts the
+     * journal if it grew too large. Returns false if the record could not
+     * be persisted.
+     */
+    private boolean appendDynamicAidsRecordLocked(DynamicAidsJournal.Record record) {
+        if (!mDynamicAidsJournal.append(record)) {
+            return false;
+        }
+        int liveGroups = 0;
+        for (int i = 0; i < mUserServices.size(); i++) {
+            for (DynamicAids dynamicAids : mUserServices.valueAt(i).dynamicAids.values()) {
+                liveGroups += dynamicAids.aidGroups.size();
             }
-            out.endTag(null, "services");
-            out.endDocument();
-            mDynamicAidsFile.finishWrite(fos);
-            return true;
-        } catch (Exception e) {
-            Log.e(TAG, "Error writing dynamic AIDs", e);
-            if (fos != null) {
-                mDynamicAidsFile.failWrite(fos);
+        }
+        if (mDynamicAidsJournal.needsCompaction(liveGroups)) {
+            compactDynamicAidsLocked();
+        }
+        return true;
+    }
+
+    /**
+     * Rewrites the dynamic AIDs journal with one record per AID group.
+     */
+    private boolean compactDynamicAidsLocked() {
+        final ArrayList<DynamicAidsJournal.Record> records =
+                new ArrayList<DynamicAidsJournal.Record>();
+        for (int i = 0; i < mUserServices.size(); i++) {
+            final UserServices user = mUserServices.valueAt(i);
+            for (Map.Entry<ComponentName, DynamicAids> service : user.dynamicAids.entrySet()) {
+                for (AidGroup group : service.getValue().aidGroups.values()) {
+                    records.add(DynamicAidsJournal.Record.putGroup(service.getValue().uid,
+                            service.getKey(), group.getCategory(), group.getAids()));
+                }
             }
-            return false;
         }
+        return mDynamicAidsJournal.compact(records);
     }
 
     public boolean registerAidGroupForService(int userId, int uid,
@@ -525,7 +863,8 @@ public class RegisteredServicesCache {
                 services.dynamicAids.put(componentName, dynAids);
             }
             dynAids.aidGroups.put(aidGroup.getCategory(), aidGroup);
-            success = writeDynamicAidsLocked();
+            success = appendDynamicAidsRecordLocked(DynamicAidsJournal.Record.putGroup(
+                    uid, componentName, aidGroup.getCategory(), aids));
             if (success) {
                 newServices = new ArrayList<ApduServiceInfo>(services.services.values());
             } else {
@@ -577,7 +916,8 @@ public class RegisteredServicesCache {
                 DynamicAids dynAids = services.dynamicAids.get(componentName);
                 if (dynAids != null) {
                     AidGroup deletedGroup = dynAids.aidGroups.remove(category);
-                    success = writeDynamicAidsLocked();
+                    success = appendDynamicAidsRecordLocked(
+                            DynamicAidsJournal.Record.removeGroup(uid, componentName, category));
                     if (success) {
                         newServices = new ArrayList<ApduServiceInfo>(services.services.values());
                     } else {
@@ -606,6 +946,8 @@ public class RegisteredServicesCache {
             pw.println("");
         }
         pw.println("");
+        mParsedServiceIndex.dump(pw);
+        pw.println("");
     }
 
 }
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2015 NXP Semiconductors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.nfc.cardemulation;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.content.pm.ServiceInfo;
+import android.nfc.cardemulation.ApduServiceInfo;
+import android.os.Bundle;
+
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The meta-data of the on-host services, by component, for the features
+ * that services opt in to, so that binding a service does not need a
+ * PackageManager call.
+ *
+ * The meta-data is read when services are updated, only for the services
+ * that were parsed again since the last update, and published as a new
+ * map; lookups do not lock.
+ */
+final class ServiceMetaDataCache {
+    static final class Entry {
+        final ApduServiceInfo service;
+        final Bundle metaData;
+
+        Entry(ApduServiceInfo service, Bundle metaData) {
+            this.service = service;
+            this.metaData = metaData;
+        }
+    }
+
+    final Context mContext;
+
+    volatile HashMap<ComponentName, Entry> mEntries = new HashMap<ComponentName, Entry>();
+
+    ServiceMetaDataCache(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Returns the meta-data of the service, or null if it has none or is
+     * not known.
+     */
+    Bundle get(ComponentName name) {
+        Entry entry = mEntries.get(name);
+        return entry != null ? entry.metaData : null;
+    }
+
+    /**
+     * Reads the meta-data of the services that were parsed again. Makes
+     * PackageManager calls, so must not be called with the HCE lock held.
+     */
+    void onServicesUpdated(List<ApduServiceInfo> services) {
+        HashMap<ComponentName, Entry> oldEntries = mEntries;
+        HashMap<ComponentName, Entry> entries = new HashMap<ComponentName, Entry>();
+        for (ApduServiceInfo service : services) {
+            if (!service.isOnHost()) {
+                continue;
+            }
+            ComponentName name = service.getComponent();
+            Entry entry = oldEntries.get(name);
+            if (entry == null || entry.service != service) {
+                entry = new Entry(service, loadMetaData(name));
+            }
+            entries.put(name, entry);
+        }
+        mEntries = entries;
+    }
+
+    Bundle loadMetaData(ComponentName name) {
+        try {
+            ServiceInfo info = mContext.getPackageManager().getServiceInfo(name,
+                    PackageManager.GET_META_DATA);
+            return info.metaData;
+        } catch (PackageManager.NameNotFoundException e) {
+            return null;
+        }
+    }
+}
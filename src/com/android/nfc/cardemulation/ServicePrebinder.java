@@ -0,0 +1,377 @@
+/*
+ * Copyright (C) 2015 NXP Semiconductors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.nfc.cardemulation;
+
+import android.app.ActivityManager;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.nfc.cardemulation.HostApduService;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Messenger;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Keeps the HostApduServices that are likely to be selected next bound
+ * ahead of a tap, so the first SELECT does not have to wait for the
+ * service to be bound. Only a few services are kept bound, and services
+ * that were not used for a while are unbound again.
+ *
+ * All methods ending in Locked must be called with the lock that was
+ * passed in to the constructor held.
+ */
+final class ServicePrebinder {
+    static final String TAG = "ServicePrebinder";
+    static final boolean DBG = true;
+
+    static final int MAX_PREBOUND_SERVICES = 3;
+    static final int MAX_PREBOUND_SERVICES_LOW_RAM = 1;
+    static final long IDLE_UNBIND_TIMEOUT_MS = 60000;
+    // Number of recent selections the most often selected services are taken from
+    static final int SELECTION_HISTORY_SIZE = 20;
+
+    interface Callback {
+        /**
+         * Called with the lock held when a prebound service got connected.
+         */
+        void onPrebindConnectedLocked(ComponentName name, Messenger service);
+
+        /**
+         * Called with the lock held when a connected prebound service got
+         * unbound, or when its process died.
+         */
+        void onPrebindUnboundLocked(ComponentName name, Messenger service, boolean died);
+
+        /**
+         * Called with the lock held when a service could not be bound ahead
+         * of the tap, after it was reported as binding.
+         */
+        void onPrebindFailedLocked(ComponentName name);
+
+        /**
+         * Returns whether the service is in use, so that it must stay bound.
+         */
+        boolean isServiceInUseLocked(ComponentName name);
+    }
+
+    final class PrebindConnection implements ServiceConnection {
+        final ComponentName mName;
+        Messenger mService;
+        long mLastUsed;
+        // Whether bindServiceAsUser() succeeded; it is called without the lock
+        boolean mBound;
+
+        PrebindConnection(ComponentName name) {
+            mName = name;
+            mLastUsed = SystemClock.elapsedRealtime();
+        }
+
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            synchronized (mLock) {
+                if (mConnections.get(mName) != this) {
+                    return;
+                }
+                if (DBG) Log.d(TAG, "Prebound service connected: " + mName);
+                mService = new Messenger(service);
+                mCallback.onPrebindConnectedLocked(mName, mService);
+            }
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            synchronized (mLock) {
+                if (mConnections.get(mName) != this) {
+                    return;
+                }
+                if (DBG) Log.d(TAG, "Prebound service disconnected: " + mName);
+                if (mService != null) {
+                    mCallback.onPrebindUnboundLocked(mName, mService, true);
+                }
+                mService = null;
+                // Its process died; don't let SELECTs wait for a restart that
+                // may never come, but bind it again on demand.
+                mConnections.remove(mName);
+                unbindLocked(this);
+            }
+        }
+    }
+
+    final Context mContext;
+    final Object mLock;
+    final Callback mCallback;
+    final ActivityManager mActivityManager;
+    final Handler mHandler = new Handler();
+
+    // All variables below protected by mLock
+    final HashMap<ComponentName, PrebindConnection> mConnections =
+            new HashMap<ComponentName, PrebindConnection>();
+    // Most recent selection last
+    final LinkedList<ComponentName> mSelectionHistory = new LinkedList<ComponentName>();
+    // The services the posted mPrebindRunnable binds, or null
+    ArrayList<ComponentName> mPendingPrebind;
+
+    final Runnable mPrebindRunnable = new Runnable() {
+        @Override
+        public void run() {
+            prebind();
+        }
+    };
+
+    final Runnable mIdleUnbindRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mLock) {
+                unbindIdleServicesLocked();
+            }
+        }
+    };
+
+    ServicePrebinder(Context context, Object lock, Callback callback) {
+        mContext = context;
+        mLock = lock;
+        mCallback = callback;
+        mActivityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+    }
+
+    void onServiceSelectedLocked(ComponentName service) {
+        mSelectionHistory.addLast(service);
+        if (mSelectionHistory.size() > SELECTION_HISTORY_SIZE) {
+            mSelectionHistory.removeFirst();
+        }
+        PrebindConnection connection = mConnections.get(service);
+        if (connection != null) {
+            connection.mLastUsed = SystemClock.elapsedRealtime();
+        }
+    }
+
+    /**
+     * Returns the recently selected services, the most often selected first;
+     * of services selected equally often, the most recently selected first.
+     */
+    ArrayList<ComponentName> getRecentServicesLocked() {
+        final HashMap<ComponentName, Integer> counts = new HashMap<ComponentName, Integer>();
+        final HashMap<ComponentName, Integer> lastSelected = new HashMap<ComponentName, Integer>();
+        int index = 0;
+        for (ComponentName service : mSelectionHistory) {
+            Integer count = counts.get(service);
+            counts.put(service, count == null ? 1 : count + 1);
+            lastSelected.put(service, index++);
+        }
+        ArrayList<ComponentName> services = new ArrayList<ComponentName>(counts.keySet());
+        Collections.sort(services, new Comparator<ComponentName>() {
+            @Override
+            public int compare(ComponentName c1, ComponentName c2) {
+                int countDiff = counts.get(c2) - counts.get(c1);
+                if (countDiff != 0) {
+                    return countDiff;
+                }
+                return lastSelected.get(c2) - lastSelected.get(c1);
+            }
+        });
+        return services;
+    }
+
+    /**
+     * Picks the first likely services that are not bound already, as far
+     * as the budget allows, and posts binding them, and unbinding prebound
+     * services that are no longer among them. The memory check and the
+     * binds are made on mHandler, so they don't hold up the caller, which
+     * typically is about to handle the first APDU of a tap.
+     */
+    void prebindLocked(List<ComponentName> likelyServices,
+            Collection<ComponentName> boundServices) {
+        int budget = mActivityManager.isLowRamDevice() ?
+                MAX_PREBOUND_SERVICES_LOW_RAM : MAX_PREBOUND_SERVICES;
+        ArrayList<ComponentName> wanted = new ArrayList<ComponentName>(budget);
+        for (ComponentName service : likelyServices) {
+            if (wanted.size() == budget) {
+                break;
+            }
+            if (service != null && !wanted.contains(service) &&
+                    !boundServices.contains(service)) {
+                wanted.add(service);
+            }
+        }
+        mPendingPrebind = wanted;
+        mHandler.removeCallbacks(mPrebindRunnable);
+        mHandler.post(mPrebindRunnable);
+    }
+
+    void prebind() {
+        ActivityManager.MemoryInfo memoryInfo = new ActivityManager.MemoryInfo();
+        mActivityManager.getMemoryInfo(memoryInfo);
+        final ArrayList<PrebindConnection> toBind = new ArrayList<PrebindConnection>();
+        synchronized (mLock) {
+            ArrayList<ComponentName> wanted = mPendingPrebind;
+            mPendingPrebind = null;
+            if (wanted == null) {
+                return;
+            }
+            if (memoryInfo.lowMemory) {
+                Log.d(TAG, "Memory is low, not binding services ahead of a tap.");
+                return;
+            }
+            Iterator<PrebindConnection> it = mConnections.values().iterator();
+            while (it.hasNext()) {
+                PrebindConnection connection = it.next();
+                if (!wanted.contains(connection.mName) &&
+                        !mCallback.isServiceInUseLocked(connection.mName)) {
+                    if (DBG) Log.d(TAG, "Unbinding prebound service " + connection.mName);
+                    unbindLocked(connection);
+                    it.remove();
+                }
+            }
+            long now = SystemClock.elapsedRealtime();
+            for (ComponentName service : wanted) {
+                PrebindConnection connection = mConnections.get(service);
+                if (connection != null) {
+                    connection.mLastUsed = now;
+                    continue;
+                }
+                // Added before binding, so that a SELECT waits for it
+                connection = new PrebindConnection(service);
+                mConnections.put(service, connection);
+                toBind.add(connection);
+            }
+            if (!mConnections.isEmpty()) {
+                mHandler.removeCallbacks(mIdleUnbindRunnable);
+                mHandler.postDelayed(mIdleUnbindRunnable, IDLE_UNBIND_TIMEOUT_MS);
+            }
+        }
+        for (PrebindConnection connection : toBind) {
+            if (DBG) Log.d(TAG, "Binding service ahead of a tap: " + connection.mName);
+            Intent intent = new Intent(HostApduService.SERVICE_INTERFACE);
+            intent.setComponent(connection.mName);
+            boolean bound = mContext.bindServiceAsUser(intent, connection,
+                    Context.BIND_AUTO_CREATE, UserHandle.CURRENT);
+            synchronized (mLock) {
+                boolean wanted = mConnections.get(connection.mName) == connection;
+                connection.mBound = bound;
+                if (!bound) {
+                    Log.e(TAG, "Could not bind service " + connection.mName);
+                    if (wanted) {
+                        mConnections.remove(connection.mName);
+                        mCallback.onPrebindFailedLocked(connection.mName);
+                    }
+                } else if (!wanted) {
+                    // Unbound while it was being bound
+                    mContext.unbindService(connection);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the prebound service if it is connected, or null.
+     */
+    Messenger getServiceLocked(ComponentName service) {
+        PrebindConnection connection = mConnections.get(service);
+        if (connection == null || connection.mService == null) {
+            return null;
+        }
+        connection.mLastUsed = SystemClock.elapsedRealtime();
+        return connection.mService;
+    }
+
+    boolean isBindingLocked(ComponentName service) {
+        PrebindConnection connection = mConnections.get(service);
+        return connection != null && connection.mService == null;
+    }
+
+    ComponentName getServiceNameLocked(Messenger service) {
+        for (PrebindConnection connection : mConnections.values()) {
+            if (service.equals(connection.mService)) {
+                return connection.mName;
+            }
+        }
+        return null;
+    }
+
+    void unbindIdleServicesLocked() {
+        long now = SystemClock.elapsedRealtime();
+        long nextCheck = Long.MAX_VALUE;
+        Iterator<PrebindConnection> it = mConnections.values().iterator();
+        while (it.hasNext()) {
+            PrebindConnection connection = it.next();
+            if (mCallback.isServiceInUseLocked(connection.mName)) {
+                connection.mLastUsed = now;
+            }
+            long idleTime = now - connection.mLastUsed;
+            if (idleTime >= IDLE_UNBIND_TIMEOUT_MS) {
+                if (DBG) Log.d(TAG, "Unbinding idle prebound service " + connection.mName);
+                unbindLocked(connection);
+                it.remove();
+            } else {
+                nextCheck = Math.min(nextCheck, IDLE_UNBIND_TIMEOUT_MS - idleTime);
+            }
+        }
+        if (nextCheck != Long.MAX_VALUE) {
+            mHandler.postDelayed(mIdleUnbindRunnable, nextCheck);
+        }
+    }
+
+    void unbindAllLocked() {
+        mHandler.removeCallbacks(mIdleUnbindRunnable);
+        mHandler.removeCallbacks(mPrebindRunnable);
+        mPendingPrebind = null;
+        for (PrebindConnection connection : mConnections.values()) {
+            unbindLocked(connection);
+        }
+        mConnections.clear();
+    }
+
+    void unbindLocked(PrebindConnection connection) {
+        if (connection.mService != null) {
+            mCallback.onPrebindUnboundLocked(connection.mName, connection.mService, false);
+            connection.mService = null;
+        }
+        // Else if it is still being bound, the binding thread unbinds it
+        if (connection.mBound) {
+            mContext.unbindService(connection);
+            connection.mBound = false;
+        }
+    }
+
+    void clearHistoryLocked() {
+        mSelectionHistory.clear();
+    }
+
+    void dump(PrintWriter pw) {
+        synchronized (mLock) {
+            pw.println("    prebound: ");
+            for (PrebindConnection connection : mConnections.values()) {
+                pw.println("        " + connection.mName +
+                        (connection.mService != null ? "" : " (binding)"));
+            }
+            pw.println("    recently selected: " + getRecentServicesLocked());
+        }
+    }
+}
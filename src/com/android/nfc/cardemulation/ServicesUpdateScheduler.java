@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2015 NXP Semiconductors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.nfc.cardemulation;
+
+import android.content.ComponentName;
+import android.nfc.cardemulation.ApduServiceInfo;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Sits between RegisteredServicesCache and its callback, and coalesces
+ * service updates that arrive in a burst, such as during app updates,
+ * into a single one. That way the AID cache is resolved, and the routing
+ * table committed, once per burst instead of once per package.
+ *
+ * Only the updates passed to this Callback are coalesced; RegisteredServicesCache
+ * uses it for package broadcasts. An update is passed on when no other update
+ * arrived for the window, but no later than the maximum delay after the first
+ * update of the burst.
+ *
+ * Updates passed to {@link #mImmediateCallback}, such as those of dynamic AID
+ * registrations and user switches, are passed on before that callback returns,
+ * together with any pending updates, so that the callers see the AID cache
+ * updated when their call returns.
+ */
+final class ServicesUpdateScheduler implements RegisteredServicesCache.Callback {
+    static final String TAG = "ServicesUpdateScheduler";
+    static final boolean DBG = true;
+
+    static final long DEFAULT_WINDOW_MS = 100;
+    static final long DEFAULT_MAX_DELAY_MS = 500;
+
+    // The updates of one user that were not passed on yet
+    final class Batch implements Runnable {
+        final int userId;
+        final long firstUpdateTime;
+        // All services of the user, as of the latest update
+        List<ApduServiceInfo> services;
+        // Whether an update for all services was among the updates; if not,
+        // the updated and removed services of all updates are passed on.
+        boolean full;
+        final LinkedHashMap<ComponentName, ApduServiceInfo> updated =
+                new LinkedHashMap<ComponentName, ApduServiceInfo>();
+        final LinkedHashSet<ComponentName> removed = new LinkedHashSet<ComponentName>();
+        int updates;
+
+        Batch(int userId, long firstUpdateTime) {
+            this.userId = userId;
+            this.firstUpdateTime = firstUpdateTime;
+        }
+
+        @Override
+        public void run() {
+            synchronized (mDispatchLock) {
+                Update update;
+                synchronized (ServicesUpdateScheduler.this) {
+                    if (mPending != this) {
+                        // Already passed on with an immediate update
+                        return;
+                    }
+                    update = takePendingLocked();
+                }
+                dispatch(update);
+            }
+        }
+    }
+
+    // The updates of a batch as they are passed on; taken from the batch
+    // while holding the lock, after which the batch is not changed anymore.
+    static final class Update {
+        final int userId;
+        final int updates;
+        final List<ApduServiceInfo> services;
+        // null if all services were updated
+        final List<ApduServiceInfo> updated;
+        final List<ComponentName> removed;
+
+        Update(Batch batch) {
+            userId = batch.userId;
+            updates = batch.updates;
+            services = batch.services;
+            if (batch.full) {
+                updated = null;
+                removed = null;
+            } else {
+                updated = Collections.unmodifiableList(
+                        new ArrayList<ApduServiceInfo>(batch.updated.values()));
+                removed = Collections.unmodifiableList(
+                        new ArrayList<ComponentName>(batch.removed));
+            }
+        }
+    }
+
+    /**
+     * Passes updates on right away, after the pending ones.
+     */
+    final RegisteredServicesCache.Callback mImmediateCallback =
+            new RegisteredServicesCache.Callback() {
+        @Override
+        public void onServicesUpdated(int userId, List<ApduServiceInfo> services) {
+            update(userId, services, null, null, true);
+        }
+
+        @Override
+        public void onPackageServicesUpdated(int userId, List<ApduServiceInfo> services,
+                List<ApduServiceInfo> updated, List<ComponentName> removed) {
+            update(userId, services, updated, removed, true);
+        }
+    };
+
+    final RegisteredServicesCache.Callback mCallback;
+    final Handler mHandler = new Handler(Looper.getMainLooper());
+    final long mWindowMs;
+    final long mMaxDelayMs;
+
+    // Held while taking and passing on updates, so that they are passed on
+    // in the order they were taken.
+    final Object mDispatchLock = new Object();
+
+    // All variables below synchronized on this
+    Batch mPending;
+    // Metrics
+    int mUpdates;
+    int mBatches;
+    int mLargestBatch;
+
+    ServicesUpdateScheduler(RegisteredServicesCache.Callback callback, long windowMs,
+            long maxDelayMs) {
+        mCallback = callback;
+        mWindowMs = windowMs;
+        mMaxDelayMs = maxDelayMs;
+    }
+
+    @Override
+    public void onServicesUpdated(int userId, List<ApduServiceInfo> services) {
+        update(userId, services, null, null, false);
+    }
+
+    @Override
+    public void onPackageServicesUpdated(int userId, List<ApduServiceInfo> services,
+            List<ApduServiceInfo> updated, List<ComponentName> removed) {
+        update(userId, services, updated, removed, false);
+    }
+
+    /**
+     * Adds an update to the pending batch; updated and removed are null for
+     * an update of all services. Passes on the batch right away if immediate,
+     * or if the update is for another user than the batch.
+     */
+    void update(int userId, List<ApduServiceInfo> services, List<ApduServiceInfo> updated,
+            List<ComponentName> removed, boolean immediate) {
+        synchronized (mDispatchLock) {
+            Update otherUserUpdate = null;
+            Update update = null;
+            synchronized (this) {
+                if (mPending != null && mPending.userId != userId) {
+                    // Pass on the updates of the other user first
+                    otherUserUpdate = takePendingLocked();
+                }
+                if (mPending == null) {
+                    mPending = new Batch(userId, SystemClock.uptimeMillis());
+                }
+                Batch batch = mPending;
+                batch.services = services;
+                if (updated == null) {
+                    batch.full = true;
+                    batch.updated.clear();
+                    batch.removed.clear();
+                } else if (!batch.full) {
+                    for (ApduServiceInfo service : updated) {
+                        batch.removed.remove(service.getComponent());
+                        batch.updated.put(service.getComponent(), service);
+                    }
+                    for (ComponentName component : removed) {
+                        batch.updated.remove(component);
+                        batch.removed.add(component);
+                    }
+                }
+                mUpdates++;
+                batch.updates++;
+                if (immediate) {
+                    update = takePendingLocked();
+                } else {
+                    scheduleLocked(batch);
+                }
+            }
+            if (otherUserUpdate != null) {
+                dispatch(otherUserUpdate);
+            }
+            if (update != null) {
+                dispatch(update);
+            }
+        }
+    }
+
+    void scheduleLocked(Batch batch) {
+        long now = SystemClock.uptimeMillis();
+        long delay = Math.min(mWindowMs, batch.firstUpdateTime + mMaxDelayMs - now);
+        mHandler.removeCallbacks(batch);
+        mHandler.postDelayed(batch, Math.max(0, delay));
+    }
+
+    /**
+     * Takes the pending batch, after which no more updates are added to it.
+     */
+    Update takePendingLocked() {
+        Batch batch = mPending;
+        mPending = null;
+        mHandler.removeCallbacks(batch);
+        mBatches++;
+        mLargestBatch = Math.max(mLargestBatch, batch.updates);
+        return new Update(batch);
+    }
+
+    void dispatch(Update update) {
+        if (DBG) Log.d(TAG, "Passing on " + update.updates + " service update(s) of user " +
+                update.userId);
+        if (update.updated == null) {
+            mCallback.onServicesUpdated(update.userId, update.services);
+        } else {
+            mCallback.onPackageServicesUpdated(update.userId, update.services, update.updated,
+                    update.removed);
+        }
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("Service updates: " + mUpdates + " received, " + mBatches + " passed on (" +
+                (mUpdates - mBatches - (mPending != null ? mPending.updates : 0)) +
+                " coalesced), largest burst " + mLargestBatch);
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2015 NXP Semiconductors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.nfc.cardemulation;
+
+import android.content.ComponentName;
+import android.nfc.cardemulation.ApduServiceInfo;
+import android.os.Bundle;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Responses that HostApduServices registered for SELECT commands whose
+ * response never changes, such as the FCI of the PPSE. Those commands are
+ * answered without a round trip to the service.
+ *
+ * A SELECT answered from the cache is never delivered to the service, so
+ * it does not learn that it was selected. Only services that declare the
+ * {@link #META_DATA_STATIC_RESPONSES} meta-data as true may register
+ * responses.
+ *
+ * A bound service registers a response by sending MSG_SET_STATIC_RESPONSE
+ * with the complete command APDU and its response in the data Bundle, and
+ * removes all of them with MSG_CLEAR_STATIC_RESPONSES. The responses of a
+ * service are dropped when its package is updated or removed, and when its
+ * process dies. A service is parsed again when its package is updated,
+ * while registering dynamic AIDs updates it in place, so an update of all
+ * services drops the responses of the services that were parsed again.
+ *
+ * Not thread-safe; the caller synchronizes.
+ */
+final class StaticResponseCache {
+    static final String TAG = "StaticResponseCache";
+
+    static final String META_DATA_STATIC_RESPONSES = "com.android.nfc.static_select_responses";
+
+    static final int MSG_SET_STATIC_RESPONSE = 0x110;
+    static final int MSG_CLEAR_STATIC_RESPONSES = 0x111;
+
+    static final String KEY_COMMAND = "command";
+    static final String KEY_RESPONSE = "response";
+
+    static final int MAX_RESPONSES_PER_SERVICE = 8;
+
+    static final class ServiceResponses {
+        final ArrayList<byte[]> commands = new ArrayList<byte[]>();
+        final ArrayList<byte[]> responses = new ArrayList<byte[]>();
+    }
+
+    final HashMap<ComponentName, ServiceResponses> mResponses =
+            new HashMap<ComponentName, ServiceResponses>();
+    // The on-host services, as of the last services update
+    final HashMap<ComponentName, ApduServiceInfo> mServices =
+            new HashMap<ComponentName, ApduServiceInfo>();
+
+    /**
+     * Returns whether the meta-data of a service declares that it registers
+     * static responses.
+     */
+    static boolean isSupported(Bundle metaData) {
+        return metaData != null && metaData.getBoolean(META_DATA_STATIC_RESPONSES, false);
+    }
+
+    /**
+     * Registers the response for a SELECT command of the service, replacing
+     * an earlier one for the same command. Returns false if it was rejected.
+     */
+    boolean setResponse(ComponentName service, byte[] command, byte[] response) {
+        if (command == null || response == null || response.length < 2 ||
+                HostEmulationManager.findSelectAidLength(command) < 0) {
+            Log.e(TAG, "Static responses are only supported for SELECT commands");
+            return false;
+        }
+        if (!mServices.containsKey(service)) {
+            Log.e(TAG, "Unknown service " + service);
+            return false;
+        }
+        ServiceResponses serviceResponses = mResponses.get(service);
+        if (serviceResponses == null) {
+            serviceResponses = new ServiceResponses();
+            mResponses.put(service, serviceResponses);
+        }
+        int index = indexOf(serviceResponses, command);
+        if (index >= 0) {
+            serviceResponses.responses.set(index, response.clone());
+            return true;
+        }
+        if (serviceResponses.commands.size() == MAX_RESPONSES_PER_SERVICE) {
+            Log.e(TAG, "Too many static responses for " + service);
+            return false;
+        }
+        serviceResponses.commands.add(command.clone());
+        serviceResponses.responses.add(response.clone());
+        return true;
+    }
+
+    /**
+     * Returns the registered response of the service to the command, or null.
+     */
+    byte[] getResponse(ComponentName service, byte[] command) {
+        ServiceResponses serviceResponses = mResponses.get(service);
+        if (serviceResponses == null) {
+            return null;
+        }
+        int index = indexOf(serviceResponses, command);
+        return (index >= 0) ? serviceResponses.responses.get(index) : null;
+    }
+
+    static int indexOf(ServiceResponses serviceResponses, byte[] command) {
+        for (int i = 0; i < serviceResponses.commands.size(); i++) {
+            byte[] registered = serviceResponses.commands.get(i);
+            if (registered.length != command.length) {
+                continue;
+            }
+            int j = 0;
+            while (j < command.length && registered[j] == command[j]) {
+                j++;
+            }
+            if (j == command.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    void clear(ComponentName service) {
+        mResponses.remove(service);
+    }
+
+    void clearAll() {
+        mResponses.clear();
+    }
+
+    /**
+     * Drops the responses of the services that were removed or parsed again,
+     * as it is not known which packages were updated.
+     */
+    void onServicesUpdated(List<ApduServiceInfo> services) {
+        HashMap<ComponentName, ApduServiceInfo> oldServices =
+                new HashMap<ComponentName, ApduServiceInfo>(mServices);
+        updateServices(services);
+        for (Iterator<ComponentName> it = mResponses.keySet().iterator(); it.hasNext(); ) {
+            ComponentName component = it.next();
+            if (mServices.get(component) != oldServices.get(component)) {
+                Log.d(TAG, "Dropping static responses of " + component);
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Drops the responses of the services of an updated or removed package.
+     */
+    void onPackageServicesUpdated(List<ApduServiceInfo> services,
+            List<ApduServiceInfo> updated, List<ComponentName> removed) {
+        updateServices(services);
+        for (ApduServiceInfo service : updated) {
+            clear(service.getComponent());
+        }
+        for (ComponentName component : removed) {
+            clear(component);
+        }
+    }
+
+    void updateServices(List<ApduServiceInfo> services) {
+        mServices.clear();
+        for (ApduServiceInfo service : services) {
+            if (service.isOnHost()) {
+                mServices.put(service.getComponent(), service);
+            }
+        }
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("    static responses: ");
+        for (Map.Entry<ComponentName, ServiceResponses> entry : mResponses.entrySet()) {
+            ServiceResponses serviceResponses = entry.getValue();
+            for (byte[] command : serviceResponses.commands) {
+                pw.println("        " + entry.getKey() + ": " +
+                        AidKey.toHexString(command, 0, command.length));
+            }
+        }
+    }
+}
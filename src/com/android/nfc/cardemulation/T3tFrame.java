@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2015 NXP Semiconductors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.nfc.cardemulation;
+
+/**
+ * Decodes Type 3 Tag (Felica) command frames in place, without allocating.
+ *
+ * A frame starts with its length byte, followed by the command opcode and,
+ * for the commands that address a card, its 8 byte NFCID2. NFCID2s are
+ * handled as longs, most significant byte first, so that they can be
+ * looked up without converting them to strings.
+ */
+final class T3tFrame {
+    static final int NFCID2_LENGTH = 8;
+    static final int LENGTH_OFFSET = 0;
+    static final int OPCODE_OFFSET = 1;
+
+    /** NFC Forum / Felica commands */
+    static final int OPC_CHECK_CMD = 0x06;
+    static final int OPC_UPDATE_CMD = 0x08;
+
+    /** Felica commands (not specified in NFC-Forum Type 3 tag specifications) */
+    static final int OPC_POLL_CMD = 0x00;
+    static final int OPC_REQ_SERVICE_CMD = 0x02;
+    static final int OPC_REQ_RESPONSE_CMD = 0x04;
+    static final int OPC_REQ_SYSTEMCODE_CMD = 0x0C;
+
+    // Opcodes in this range take two bytes
+    static final int OPC_TWO_BYTE_FIRST = 0xC0;
+    static final int OPC_TWO_BYTE_LAST = 0xDF;
+
+    private T3tFrame() {
+    }
+
+    static boolean isValidOpcode(int opcode) {
+        switch (opcode) {
+            case OPC_CHECK_CMD:
+            case OPC_UPDATE_CMD:
+            case OPC_POLL_CMD:
+            case OPC_REQ_SERVICE_CMD:
+            case OPC_REQ_RESPONSE_CMD:
+            case OPC_REQ_SYSTEMCODE_CMD:
+                return true;
+            default:
+                return opcode >= OPC_TWO_BYTE_FIRST && opcode <= OPC_TWO_BYTE_LAST;
+        }
+    }
+
+    /**
+     * Returns the offset of the NFCID2 in the frame, or -1 if data is not a
+     * T3T command frame that carries an NFCID2.
+     */
+    static int findNfcid2Offset(byte[] data) {
+        if (data == null || data.length <= OPCODE_OFFSET ||
+                data.length != (data[LENGTH_OFFSET] & 0xFF)) {
+            return -1;
+        }
+        int opcode = data[OPCODE_OFFSET] & 0xFF;
+        if (!isValidOpcode(opcode)) {
+            return -1;
+        }
+        int offset = OPCODE_OFFSET + (opcode >= OPC_TWO_BYTE_FIRST ? 2 : 1);
+        if (data.length < offset + NFCID2_LENGTH) {
+            // Such as a polling command
+            return -1;
+        }
+        return offset;
+    }
+
+    static long getNfcid2(byte[] data, int offset) {
+        long nfcid2 = 0;
+        for (int i = 0; i < NFCID2_LENGTH; i++) {
+            nfcid2 = (nfcid2 << 8) | (data[offset + i] & 0xFF);
+        }
+        return nfcid2;
+    }
+
+    static boolean isValidNfcid2(String nfcid2) {
+        if (nfcid2 == null || nfcid2.length() != 2 * NFCID2_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < nfcid2.length(); i++) {
+            if (Character.digit(nfcid2.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parses a registered NFCID2; it must be valid, see
+     * {@link #isValidNfcid2(String)}.
+     */
+    static long parseNfcid2(String nfcid2) {
+        long value = 0;
+        for (int i = 0; i < nfcid2.length(); i++) {
+            value = (value << 4) | Character.digit(nfcid2.charAt(i), 16);
+        }
+        return value;
+    }
+}
@@ -17,68 +17,93 @@ package com.android.nfc.cardemulation;
 
 import android.util.Log;
 
-import java.util.Collections;
-import java.util.Hashtable;
-import java.util.List;
-import java.util.Iterator;
-import com.android.nfc.NfcService;
-import java.util.Set;
-import java.util.HashSet;
-import java.util.Map;
 import com.vzw.nfc.RouteEntry;
+
 import java.util.HashMap;
 
+/**
+ * The routing settings Verizon provisioned for off-host AIDs, keyed by
+ * their binary AID.
+ */
 public class VzwRoutingCache {
     private static final boolean DBG = false;
     private static final String TAG = "VzwRoutingCache";
 
-    // Cached routing table
-    // final private static Hashtable<String, RouteEntry> mVzwCache = new
-    // Hashtable<String, RouteEntry>(CAPACITY);
-    final HashMap<String, RouteEntry> mVzwCache = new HashMap<String, RouteEntry>();
+    /**
+     * Whether an AID is allowed, and its power state, in one lookup.
+     */
+    static final class Entry {
+        final AidKey aid;
+        final int route;
+        final int powerState;
+        final boolean allowed;
 
-    VzwRoutingCache() {
-    }
+        Entry(AidKey aid, int route, int powerState, boolean allowed) {
+            this.aid = aid;
+            this.route = route;
+            this.powerState = powerState;
+            this.allowed = allowed;
+        }
 
-    boolean addAid(byte[] aid, int route, int power, boolean isAllowed) {
-        RouteEntry elem = new RouteEntry(aid, power, route, isAllowed);
-        Log.d(TAG, "aid"
-                + toHexString(elem.getAid(), 0, elem.getAid().length)
-                .toUpperCase());
-        Log.d(TAG, "power " + power);
-        Log.d(TAG, "power state" + elem.getPowerState());
-        Log.d(TAG, "is allowed" + elem.isAllowed());
-        mVzwCache.put(toHexString(elem.getAid(), 0, elem.getAid().length)
-                .toUpperCase(), elem);
-        return true;
+        boolean isSameAs(Entry entry) {
+            return route == entry.route && powerState == entry.powerState &&
+                    allowed == entry.allowed;
+        }
     }
 
-    boolean IsAidAllowed(String aid) {
-        RouteEntry elem = (RouteEntry) mVzwCache.get(aid);
-        return elem.isAllowed();
-    }
+    // Synchronized on this
+    HashMap<AidKey, Entry> mEntries = new HashMap<AidKey, Entry>();
 
-    static String toHexString(byte[] buffer, int offset, int length) {
-        final char[] HEX_CHARS = "0123456789abcdef".toCharArray();
-        char[] chars = new char[2 * length];
-        for (int j = offset; j < offset + length; ++j) {
-            chars[2 * (j - offset)] = HEX_CHARS[(buffer[j] & 0xF0) >>> 4];
-            chars[2 * (j - offset) + 1] = HEX_CHARS[buffer[j] & 0x0F];
-        }
-        return new String(chars);
+    VzwRoutingCache() {
     }
 
-    int getPowerState(String aid) {
-        RouteEntry elem = (RouteEntry) mVzwCache.get(aid);
-        return elem.getPowerState();
+    /**
+     * Adds or replaces the settings of an AID. Returns whether they changed.
+     */
+    synchronized boolean addAid(byte[] aid, int route, int power, boolean isAllowed) {
+        Entry entry = new Entry(new AidKey(aid, 0, aid.length), route, power, isAllowed);
+        if (DBG) Log.d(TAG, "aid " + entry.aid + " route " + route + " power state " + power +
+                " is allowed " + isAllowed);
+        Entry previous = mEntries.put(entry.aid, entry);
+        return previous == null || !previous.isSameAs(entry);
+    }
 
+    /**
+     * Replaces all entries with the given ones. Returns whether any entry
+     * was added, changed or removed.
+     */
+    synchronized boolean setAids(RouteEntry[] entries) {
+        HashMap<AidKey, Entry> newEntries = new HashMap<AidKey, Entry>();
+        for (RouteEntry routeEntry : entries) {
+            byte[] aid = routeEntry.getAid();
+            Entry entry = new Entry(new AidKey(aid, 0, aid.length), routeEntry.getLocation(),
+                    routeEntry.getPowerState(), routeEntry.isAllowed());
+            newEntries.put(entry.aid, entry);
+        }
+        boolean changed = newEntries.size() != mEntries.size();
+        if (!changed) {
+            for (Entry entry : newEntries.values()) {
+                Entry previous = mEntries.get(entry.aid);
+                if (previous == null || !previous.isSameAs(entry)) {
+                    changed = true;
+                    break;
+                }
+            }
+        }
+        mEntries = newEntries;
+        if (DBG) Log.d(TAG, "setAids: " + mEntries.size() + " entries, changed " + changed);
+        return changed;
     }
 
-    boolean isAidPresent(String aid) {
-        return (mVzwCache.containsKey(aid));
+    /**
+     * Returns the entry for an AID from the AID cache; prefix AIDs use the
+     * entry of their bytes. Returns null if the AID is not provisioned.
+     */
+    synchronized Entry lookup(AidKey aid) {
+        return mEntries.get(aid.toExact());
     }
 
-    void clear() {
-        mVzwCache.clear();
+    synchronized int size() {
+        return mEntries.size();
     }
 }
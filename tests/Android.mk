@@ -29,3 +29,5 @@ LOCAL_CERTIFICATE := platform
 LOCAL_INSTRUMENTATION_FOR := NfcNci
 
 include $(BUILD_PACKAGE)
+
+include $(call all-makefiles-under,$(LOCAL_PATH))
@@ -0,0 +1,35 @@
+# Copyright (C) 2015 NXP Semiconductors
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#     http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+
+LOCAL_PATH:= $(call my-dir)
+include $(CLEAR_VARS)
+
+# Benchmarks are kept out of NfcTests, so that they only run when asked for.
+LOCAL_MODULE_TAGS := tests
+
+LOCAL_JAVA_LIBRARIES := android.test.runner
+
+LOCAL_SRC_FILES := $(call all-java-files-under, src)
+
+# Fixtures shared with NfcTests
+LOCAL_SRC_FILES += \
+        ../src/com/android/nfc/cardemulation/ApduServiceFixtures.java \
+        ../src/com/android/nfc/cardemulation/EmulatedRoutingTable.java
+
+LOCAL_PACKAGE_NAME := NfcBenchmarks
+LOCAL_CERTIFICATE := platform
+
+LOCAL_INSTRUMENTATION_FOR := NfcNci
+
+include $(BUILD_PACKAGE)
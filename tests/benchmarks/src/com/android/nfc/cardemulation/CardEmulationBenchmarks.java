@@ -0,0 +1,317 @@
+/*
+ * Copyright (C) 2015 NXP Semiconductors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.cardemulation;
+
+import android.content.ComponentName;
+import android.nfc.cardemulation.ApduServiceInfo;
+import android.nfc.cardemulation.CardEmulation;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Benchmarks SELECT resolution, AID cache rebuilds and routing table
+ * generation against synthetic service populations, from 10 to 2000
+ * services with a mix of exact and prefix AIDs, payment and other
+ * categories, and on-host and off-host services, and shadowed AID
+ * detection for up to 16000 AIDs.
+ *
+ * Results, including the allocations per operation, are logged under
+ * {@link #TAG}; run with
+ * "adb shell am instrument -w com.android.nfc.benchmarks/android.test.InstrumentationTestRunner".
+ */
+public class CardEmulationBenchmarks extends AndroidTestCase {
+    private static final String TAG = "CardEmulationBenchmarks";
+
+    private static final int[] POPULATIONS = {10, 100, 500, 2000};
+    // Percentage of AIDs registered as prefixes
+    private static final int[] PREFIX_PERCENTAGES = {0, 25};
+    private static final int PAYMENT_PERCENTAGE = 10;
+    private static final int OFF_HOST_PERCENTAGE = 30;
+    // Percentage of AIDs that another service registered as well
+    private static final int SHARED_AID_PERCENTAGE = 5;
+
+    private static final int ROUTE_HOST = ApduServiceFixtures.ROUTE_HOST;
+    private static final int ROUTE_ESE = ApduServiceFixtures.ROUTE_ESE;
+    private static final int ROUTE_UICC = ApduServiceFixtures.ROUTE_UICC;
+    // Large enough for every population, so that no AIDs are dropped
+    private static final int ROUTING_TABLE_SIZE = 1024 * 1024;
+
+    private static final String[] PAYMENT_AIDS = {"325041592E5359532E4444463031",
+            "A0000000031010", "A0000000041010", "A0000000043060", "A00000002501"};
+    private static final String[] SHADOWING_AID_BYTES = {"A0", "00", "03", "10", "F0"};
+
+    /** A synthetic service population and the AIDs a reader would SELECT. */
+    static final class Population {
+        final String name;
+        final ArrayList<ApduServiceInfo> services = new ArrayList<ApduServiceInfo>();
+        final ArrayList<byte[]> selectedAids = new ArrayList<byte[]>();
+
+        Population(String name) {
+            this.name = name;
+        }
+    }
+
+    /** Time and allocations of a number of runs of an operation. */
+    static final class Measurement {
+        final String name;
+        final int operations;
+        final long nanos;
+        final int allocCount;
+        final int allocSize;
+
+        Measurement(String name, int operations, long nanos, int allocCount, int allocSize) {
+            this.name = name;
+            this.operations = operations;
+            this.nanos = nanos;
+            this.allocCount = allocCount;
+            this.allocSize = allocSize;
+        }
+
+        @Override
+        public String toString() {
+            return name + ": " + (nanos / operations) + " ns/op, " +
+                    (operations * 1000000000L / Math.max(1, nanos)) + " ops/s, " +
+                    ((float) allocCount / operations) + " allocs/op, " +
+                    (allocSize / operations) + " bytes/op";
+        }
+    }
+
+    public void testSelectResolution() {
+        for (int size : POPULATIONS) {
+            for (int prefixPercentage : PREFIX_PERCENTAGES) {
+                Population population = createPopulation(size, prefixPercentage);
+                RegisteredAidCache cache = createCache(population);
+                final int rounds = Math.max(1, 20000 / population.selectedAids.size());
+                int resolved = 0;
+                // Warm up
+                for (byte[] aid : population.selectedAids) {
+                    cache.resolveAid(aid, 0, aid.length);
+                }
+                beginMeasurement();
+                for (int i = 0; i < rounds; i++) {
+                    for (byte[] aid : population.selectedAids) {
+                        if (cache.resolveAid(aid, 0, aid.length).services.size() > 0) {
+                            resolved++;
+                        }
+                    }
+                }
+                report(endMeasurement("SELECT resolution, " + population.name,
+                        rounds * population.selectedAids.size()));
+                assertTrue(resolved > 0);
+            }
+        }
+    }
+
+    public void testCacheRebuild() {
+        for (int size : POPULATIONS) {
+            for (int prefixPercentage : PREFIX_PERCENTAGES) {
+                Population population = createPopulation(size, prefixPercentage);
+                RegisteredAidCache cache = createCache(population);
+                final int rounds = Math.max(3, 2000 / size);
+                beginMeasurement();
+                for (int i = 0; i < rounds; i++) {
+                    rebuild(cache, population);
+                }
+                report(endMeasurement("Cache rebuild, " + population.name, rounds));
+                assertFalse(cache.mAidCache.isEmpty());
+            }
+        }
+    }
+
+    public void testRoutingTableGeneration() {
+        for (int size : POPULATIONS) {
+            for (int prefixPercentage : PREFIX_PERCENTAGES) {
+                Population population = createPopulation(size, prefixPercentage);
+                RegisteredAidCache cache = createCache(population);
+                HashMap<AidKey, AidElement> aidMap = createRoutingEntries(cache);
+                AidRouteSolver solver = new AidRouteSolver(
+                        AidRoutingManager.AID_MATCHING_EXACT_OR_PREFIX,
+                        AidRoutingManager.AID_MATCHING_K, ROUTE_UICC, ROUTING_TABLE_SIZE);
+                EmulatedRoutingTable table = new EmulatedRoutingTable(
+                        AidRoutingManager.AID_MATCHING_EXACT_OR_PREFIX, ROUTING_TABLE_SIZE);
+                final int rounds = Math.max(3, 2000 / size);
+                beginMeasurement();
+                for (int i = 0; i < rounds; i++) {
+                    AidRouteSolver.Plan plan = solver.solve(aidMap, ROUTE_HOST);
+                    // As AidRoutingManager commits them
+                    ArrayList<AidElement> entries = new ArrayList<AidElement>(plan.entries);
+                    Collections.sort(entries);
+                    table.setDefaultRoute((plan.defaultRoute << 3) |
+                            EmulatedRoutingTable.POWER_SWITCH_ON, 0, 0);
+                    assertTrue(table.updateAidRouting(AidElement.packEntries(
+                            new ArrayList<AidElement>(), entries), true));
+                    table.commitRouting();
+                }
+                report(endMeasurement("Routing table generation, " + population.name +
+                        ", " + aidMap.size() + " routed AIDs", rounds));
+            }
+        }
+    }
+
+    public void testShadowedAidDetection() {
+        for (int count = 1000; count <= 16000; count *= 2) {
+            Random random = new Random(count);
+            HashMap<AidKey, Integer> routeForAid = new HashMap<AidKey, Integer>();
+            while (routeForAid.size() < count) {
+                // Few distinct bytes, so that many AIDs start with another
+                StringBuilder aid = new StringBuilder("A000");
+                int length = 3 + random.nextInt(12);
+                for (int i = 0; i < length; i++) {
+                    aid.append(SHADOWING_AID_BYTES[random.nextInt(SHADOWING_AID_BYTES.length)]);
+                }
+                if (random.nextInt(4) == 0) {
+                    aid.append('*');
+                }
+                routeForAid.put(AidKey.parse(aid.toString()), random.nextInt(3));
+            }
+            final int rounds = Math.max(3, 200000 / count);
+            int shadowed = 0;
+            beginMeasurement();
+            for (int i = 0; i < rounds; i++) {
+                // As AidRouteSolver.solve() does
+                AidKey[] sortedAids = routeForAid.keySet().toArray(new AidKey[count]);
+                Arrays.sort(sortedAids);
+                shadowed += AidRoutingManager.findShadowedAids(sortedAids, routeForAid,
+                        ROUTE_HOST).size();
+            }
+            report(endMeasurement("Shadowed AID detection, " + count + " AIDs", rounds));
+            assertTrue(shadowed > 0);
+        }
+    }
+
+    private Population createPopulation(int size, int prefixPercentage) {
+        Random random = new Random(size * 100 + prefixPercentage);
+        Population population = new Population(size + " services, " + prefixPercentage +
+                "% prefix AIDs");
+        ArrayList<String> registeredAids = new ArrayList<String>();
+        for (int i = 0; i < size; i++) {
+            boolean payment = random.nextInt(100) < PAYMENT_PERCENTAGE;
+            boolean onHost = random.nextInt(100) >= OFF_HOST_PERCENTAGE;
+            ArrayList<String> aids = new ArrayList<String>();
+            int aidCount = 1 + random.nextInt(4);
+            for (int j = 0; j < aidCount; j++) {
+                String aid;
+                if (payment && j == 0) {
+                    aid = PAYMENT_AIDS[random.nextInt(PAYMENT_AIDS.length)];
+                } else if (!registeredAids.isEmpty() &&
+                        random.nextInt(100) < SHARED_AID_PERCENTAGE) {
+                    aid = registeredAids.get(random.nextInt(registeredAids.size()));
+                } else {
+                    aid = createAid(random);
+                    if (random.nextInt(100) < prefixPercentage) {
+                        aid += "*";
+                    }
+                }
+                if (!aids.contains(aid)) {
+                    aids.add(aid);
+                    registeredAids.add(aid);
+                }
+            }
+            String packageName = "com.android.nfc.benchmark" + i;
+            population.services.add(ApduServiceFixtures.createService(
+                    new ComponentName(packageName, packageName + ".Service"), onHost,
+                    payment ? CardEmulation.CATEGORY_PAYMENT : CardEmulation.CATEGORY_OTHER,
+                    aids, random.nextBoolean() ? ROUTE_ESE : ROUTE_UICC, 10000 + i));
+        }
+        // Every registered AID, a longer AID for prefixes, and as many misses
+        for (String aid : registeredAids) {
+            boolean isPrefix = aid.endsWith("*");
+            String selectedAid = isPrefix ? aid.substring(0, aid.length() - 1) + "01" : aid;
+            population.selectedAids.add(ApduServiceFixtures.aidToBytes(selectedAid));
+            population.selectedAids.add(ApduServiceFixtures.aidToBytes(createAid(random)));
+        }
+        return population;
+    }
+
+    private String createAid(Random random) {
+        StringBuilder aid = new StringBuilder("A0");
+        int length = 4 + random.nextInt(12);
+        for (int i = 0; i < length; i++) {
+            aid.append(String.format("%02X", random.nextInt(256)));
+        }
+        return aid.toString();
+    }
+
+    private RegisteredAidCache createCache(Population population) {
+        // NFC is not enabled in the cache, so it never touches the controller
+        RegisteredAidCache cache = new RegisteredAidCache(getContext(),
+                ApduServiceFixtures.createRoutingManager());
+        rebuild(cache, population);
+        return cache;
+    }
+
+    private void rebuild(RegisteredAidCache cache, Population population) {
+        synchronized (cache.mLock) {
+            cache.generateServiceMapLocked(population.services);
+            cache.generateAidCacheLocked();
+        }
+    }
+
+    /**
+     * Returns the AIDs RegisteredAidCache.updateRoutingLocked() would route,
+     * leaving out the power states, which do not affect the routing table
+     * size.
+     */
+    private HashMap<AidKey, AidElement> createRoutingEntries(RegisteredAidCache cache) {
+        HashMap<AidKey, AidElement> aidMap = new HashMap<AidKey, AidElement>();
+        synchronized (cache.mLock) {
+            for (Map.Entry<String, RegisteredAidCache.AidResolveInfo> aidEntry :
+                    cache.mAidCache.entrySet()) {
+                RegisteredAidCache.AidResolveInfo resolveInfo = aidEntry.getValue();
+                if (!resolveInfo.mustRoute || resolveInfo.services.isEmpty()) {
+                    continue;
+                }
+                ApduServiceInfo service = resolveInfo.defaultService;
+                int route = (service == null || service.isOnHost()) ? ROUTE_HOST :
+                        service.getSEInfo().getSeId();
+                aidMap.put(resolveInfo.aid, new AidElement(resolveInfo.aid,
+                        AidElement.ROUTE_WIEGHT_OTHER, route,
+                        EmulatedRoutingTable.POWER_SWITCH_ON));
+            }
+        }
+        return aidMap;
+    }
+
+    private long mStartNanos;
+
+    private void beginMeasurement() {
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        Debug.resetThreadAllocSize();
+        mStartNanos = SystemClock.elapsedRealtimeNanos();
+    }
+
+    private Measurement endMeasurement(String name, int operations) {
+        long nanos = SystemClock.elapsedRealtimeNanos() - mStartNanos;
+        Debug.stopAllocCounting();
+        return new Measurement(name, operations, nanos, Debug.getThreadAllocCount(),
+                Debug.getThreadAllocSize());
+    }
+
+    private void report(Measurement measurement) {
+        Log.d(TAG, measurement.toString());
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2015 NXP Semiconductors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.cardemulation;
+
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+/**
+ * Tests {@link AidKey}, and that it orders AIDs like the hex Strings the
+ * AID cache is keyed by.
+ */
+public class AidKeyTests extends AndroidTestCase {
+    private static final String[] AID_BYTES = {"A0", "00", "03", "10", "7F", "F0"};
+
+    public void testParse() {
+        AidKey aid = AidKey.parse("a000000003*");
+        assertTrue(aid.isPrefix());
+        assertEquals(5, aid.length());
+        assertEquals("A000000003*", aid.toString());
+        assertFalse(aid.equals(AidKey.parse("A000000003")));
+        assertEquals(AidKey.parse("A000000003"), aid.toExact());
+        assertTrue(AidKey.parse("A0000000031010").startsWith(aid));
+        assertNull(AidKey.parse("A00000000X"));
+        assertNull(AidKey.parse("A00000003"));
+        assertNull(AidKey.parse("A00000003*"));
+    }
+
+    public void testOrderMatchesHexStrings() {
+        Random random = new Random(0);
+        ArrayList<String> aids = new ArrayList<String>();
+        for (int i = 0; i < 500; i++) {
+            StringBuilder aid = new StringBuilder();
+            int length = 1 + random.nextInt(6);
+            for (int j = 0; j < length; j++) {
+                aid.append(AID_BYTES[random.nextInt(AID_BYTES.length)]);
+            }
+            if (random.nextBoolean()) {
+                aid.append('*');
+            }
+            aids.add(aid.toString());
+        }
+        ArrayList<AidKey> keys = new ArrayList<AidKey>();
+        for (String aid : aids) {
+            keys.add(AidKey.parse(aid));
+        }
+        Collections.sort(aids);
+        Collections.sort(keys);
+        for (int i = 0; i < aids.size(); i++) {
+            assertEquals(aids.get(i), keys.get(i).toString());
+        }
+    }
+}
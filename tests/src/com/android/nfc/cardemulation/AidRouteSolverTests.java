@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2015 NXP Semiconductors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.cardemulation;
+
+import android.test.AndroidTestCase;
+
+import java.util.HashMap;
+
+/**
+ * Tests how {@link AidRouteSolver} fills an AID routing table that is too small.
+ */
+public class AidRouteSolverTests extends AndroidTestCase {
+    private static final int ROUTE_HOST = 0x00;
+    private static final int ROUTE_ESE = 0x01;
+    private static final int ROUTE_UICC = 0x02;
+    private static final int POWER = 0x01;
+
+    public void testKeepsCurrentDefaultRouteWhenAllFit() {
+        HashMap<AidKey, AidElement> aidMap = new HashMap<AidKey, AidElement>();
+        put(aidMap, "A000000003", AidElement.ROUTE_WIEGHT_OTHER, ROUTE_ESE);
+        put(aidMap, "A000000004", AidElement.ROUTE_WIEGHT_OTHER, ROUTE_UICC);
+
+        AidRouteSolver.Plan plan = createSolver(100).solve(aidMap, ROUTE_HOST);
+        assertTrue(plan.fits());
+        assertEquals(ROUTE_HOST, plan.defaultRoute);
+        assertEquals(2, plan.entries.size());
+    }
+
+    public void testPicksDefaultRouteThatFitsAll() {
+        HashMap<AidKey, AidElement> aidMap = new HashMap<AidKey, AidElement>();
+        put(aidMap, "A000000001", AidElement.ROUTE_WIEGHT_OTHER, ROUTE_HOST);
+        put(aidMap, "A000000002", AidElement.ROUTE_WIEGHT_OTHER, ROUTE_UICC);
+        put(aidMap, "A000000003", AidElement.ROUTE_WIEGHT_OTHER, ROUTE_UICC);
+        put(aidMap, "A000000004", AidElement.ROUTE_WIEGHT_OTHER, ROUTE_UICC);
+
+        // Each entry takes 9 bytes, so only one entry fits
+        AidRouteSolver.Plan plan = createSolver(9).solve(aidMap, ROUTE_HOST);
+        assertTrue(plan.fits());
+        assertEquals(ROUTE_UICC, plan.defaultRoute);
+        assertEquals("A000000001", plan.entries.get(0).getAid());
+    }
+
+    public void testDropsLowestWeightFirst() {
+        HashMap<AidKey, AidElement> aidMap = new HashMap<AidKey, AidElement>();
+        put(aidMap, "A000000001", AidElement.ROUTE_WIEGHT_FOREGROUND, ROUTE_HOST);
+        put(aidMap, "A000000002", AidElement.ROUTE_WIEGHT_OTHER, ROUTE_HOST);
+        put(aidMap, "A000000003", AidElement.ROUTE_WIEGHT_FOREGROUND, ROUTE_ESE);
+        put(aidMap, "A000000004", AidElement.ROUTE_WIEGHT_OTHER, ROUTE_ESE);
+        put(aidMap, "A000000005", AidElement.ROUTE_WIEGHT_PAYMENT, ROUTE_UICC);
+        put(aidMap, "A000000006", AidElement.ROUTE_WIEGHT_PAYMENT, ROUTE_UICC);
+
+        // Whatever the default route, two of the four entries do not fit
+        AidRouteSolver.Plan plan = createSolver(18).solve(aidMap, ROUTE_HOST);
+        assertFalse(plan.fits());
+        assertEquals(ROUTE_UICC, plan.defaultRoute);
+        assertEquals(2, plan.droppedAids.size());
+        assertTrue(plan.droppedAids.contains(AidKey.parse("A000000002")));
+        assertTrue(plan.droppedAids.contains(AidKey.parse("A000000004")));
+    }
+
+    public void testDoesNotModifyInput() {
+        HashMap<AidKey, AidElement> aidMap = new HashMap<AidKey, AidElement>();
+        AidElement elem = put(aidMap, "A000000003*", AidElement.ROUTE_WIEGHT_OTHER, -1);
+
+        AidRouteSolver.Plan plan = new AidRouteSolver(AidRoutingManager.AID_MATCHING_PREFIX_ONLY,
+                AidRoutingManager.AID_MATCHING_L, ROUTE_ESE, 100).solve(aidMap, ROUTE_HOST);
+        assertEquals("A000000003", plan.entries.get(0).getAid());
+        assertEquals(ROUTE_ESE, plan.entries.get(0).getRouteLocation());
+        assertEquals("A000000003*", elem.getAid());
+        assertEquals(-1, elem.getRouteLocation());
+    }
+
+    private AidRouteSolver createSolver(int tableSize) {
+        return new AidRouteSolver(AidRoutingManager.AID_MATCHING_EXACT_OR_PREFIX,
+                AidRoutingManager.AID_MATCHING_L, ROUTE_ESE, tableSize);
+    }
+
+    private AidElement put(HashMap<AidKey, AidElement> aidMap, String aid, int weight,
+            int route) {
+        AidElement elem = new AidElement(aid, weight, route, POWER);
+        aidMap.put(elem.getAidKey(), elem);
+        return elem;
+    }
+}
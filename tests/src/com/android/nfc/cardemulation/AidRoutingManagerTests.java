@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2015 NXP Semiconductors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.cardemulation;
+
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Tests the shadowed AID detection of {@link AidRoutingManager}.
+ */
+public class AidRoutingManagerTests extends AndroidTestCase {
+    private static final int DEFAULT_ROUTE = 0x00;
+    private static final String[] AID_BYTES = {"A0", "00", "03", "10", "F0"};
+
+    public void testNoShadowedAids() {
+        HashMap<String, Integer> routeForAid = new HashMap<String, Integer>();
+        routeForAid.put("A000000003", 0x02);
+        routeForAid.put("A0000000041010", DEFAULT_ROUTE);
+        routeForAid.put("A000000004*", DEFAULT_ROUTE);
+
+        assertTrue(findShadowedAids(routeForAid).isEmpty());
+    }
+
+    public void testShadowedAids() {
+        HashMap<String, Integer> routeForAid = new HashMap<String, Integer>();
+        routeForAid.put("F000000004", 0x02);
+        routeForAid.put("F0000000041010", DEFAULT_ROUTE);
+        routeForAid.put("F000000004101001", DEFAULT_ROUTE);
+        routeForAid.put("F000000005", DEFAULT_ROUTE);
+
+        HashSet<String> shadowedAids = new HashSet<String>(findShadowedAids(routeForAid));
+        assertEquals(2, shadowedAids.size());
+        assertTrue(shadowedAids.contains("F0000000041010"));
+        assertTrue(shadowedAids.contains("F000000004101001"));
+    }
+
+    public void testMatchesPairwiseCheck() {
+        Random random = new Random(0);
+        for (int i = 0; i < 200; i++) {
+            HashMap<String, Integer> routeForAid = generateRoutes(random, 1 + random.nextInt(40));
+            assertEquals(new HashSet<String>(findShadowedAidsPairwise(routeForAid)),
+                    new HashSet<String>(findShadowedAids(routeForAid)));
+        }
+    }
+
+    public void testMatchesPairwiseCheckWithManyAids() {
+        // CardEmulationBenchmarks measures how this scales
+        Random random = new Random(0);
+        for (int count = 100; count <= 400; count *= 2) {
+            HashMap<String, Integer> routeForAid = generateRoutes(random, count);
+            HashSet<String> shadowedAids = new HashSet<String>(findShadowedAids(routeForAid));
+            assertFalse(shadowedAids.isEmpty());
+            assertEquals(new HashSet<String>(findShadowedAidsPairwise(routeForAid)),
+                    shadowedAids);
+            // Shadowed AIDs are on the default route, behind a prefix on another
+            for (String aid : shadowedAids) {
+                assertEquals(DEFAULT_ROUTE, (int) routeForAid.get(aid));
+            }
+        }
+    }
+
+    private ArrayList<String> findShadowedAids(Map<String, Integer> routeForAid) {
+        HashMap<AidKey, Integer> keyedRouteForAid = new HashMap<AidKey, Integer>();
+        for (Map.Entry<String, Integer> aidEntry : routeForAid.entrySet()) {
+            keyedRouteForAid.put(AidKey.parse(aidEntry.getKey()), aidEntry.getValue());
+        }
+        AidKey[] sortedAids = keyedRouteForAid.keySet().toArray(
+                new AidKey[keyedRouteForAid.size()]);
+        Arrays.sort(sortedAids);
+        ArrayList<String> shadowedAids = new ArrayList<String>();
+        for (AidKey aid : AidRoutingManager.findShadowedAids(sortedAids, keyedRouteForAid,
+                DEFAULT_ROUTE)) {
+            shadowedAids.add(aid.toString());
+        }
+        return shadowedAids;
+    }
+
+    // The check configureRouting() used to do
+    private ArrayList<String> findShadowedAidsPairwise(Map<String, Integer> routeForAid) {
+        ArrayList<String> shadowedAids = new ArrayList<String>();
+        for (Map.Entry<String, Integer> defaultEntry : routeForAid.entrySet()) {
+            if (defaultEntry.getValue() != DEFAULT_ROUTE) {
+                continue;
+            }
+            String defaultRouteAid = defaultEntry.getKey();
+            for (Map.Entry<String, Integer> aidEntry : routeForAid.entrySet()) {
+                if (defaultRouteAid.startsWith(aidEntry.getKey()) &&
+                        aidEntry.getValue() != DEFAULT_ROUTE) {
+                    shadowedAids.add(defaultRouteAid);
+                    break;
+                }
+            }
+        }
+        return shadowedAids;
+    }
+
+    private HashMap<String, Integer> generateRoutes(Random random, int count) {
+        HashMap<String, Integer> routeForAid = new HashMap<String, Integer>();
+        while (routeForAid.size() < count) {
+            StringBuilder aid = new StringBuilder("A000");
+            int length = 3 + random.nextInt(12);
+            for (int i = 0; i < length; i++) {
+                aid.append(AID_BYTES[random.nextInt(AID_BYTES.length)]);
+            }
+            if (random.nextInt(4) == 0) {
+                aid.append('*');
+            }
+            routeForAid.put(aid.toString(), random.nextInt(3));
+        }
+        return routeForAid;
+    }
+}
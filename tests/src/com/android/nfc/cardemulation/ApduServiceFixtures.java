@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2015 NXP Semiconductors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.cardemulation;
+
+import android.content.ComponentName;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.ResolveInfo;
+import android.content.pm.ServiceInfo;
+import android.graphics.drawable.Drawable;
+import android.nfc.cardemulation.AidGroup;
+import android.nfc.cardemulation.ApduServiceInfo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Creates APDU services and AID caches for tests and benchmarks, without
+ * parsing any manifests or talking to the NFC controller.
+ */
+final class ApduServiceFixtures {
+    static final int ROUTE_HOST = 0x00;
+    static final int ROUTE_ESE = 0x01;
+    static final int ROUTE_UICC = 0x02;
+
+    private ApduServiceFixtures() {
+    }
+
+    /**
+     * Returns a service that registered aids in category as one dynamic
+     * AID group; seId is only used for off-host services.
+     */
+    static ApduServiceInfo createService(ComponentName component, boolean onHost,
+            String category, List<String> aids, int seId, int uid) {
+        ResolveInfo resolveInfo = new ResolveInfo();
+        resolveInfo.serviceInfo = new ServiceInfo();
+        resolveInfo.serviceInfo.applicationInfo = new ApplicationInfo();
+        resolveInfo.serviceInfo.packageName = component.getPackageName();
+        resolveInfo.serviceInfo.name = component.getClassName();
+        ArrayList<AidGroup> aidGroups = new ArrayList<AidGroup>();
+        aidGroups.add(new AidGroup(new ArrayList<String>(aids), category));
+        ApduServiceInfo.ESeInfo seInfo = new ApduServiceInfo.ESeInfo(onHost ? -1 : seId,
+                onHost ? 0 : EmulatedRoutingTable.POWER_SWITCH_ON);
+        return new ApduServiceInfo(resolveInfo, onHost, component.getClassName(), null,
+                aidGroups, false, 0, uid, seInfo, null, (Drawable) null, true);
+    }
+
+    /**
+     * Returns the bytes of a hex AID, or no bytes if it is not valid.
+     */
+    static byte[] aidToBytes(String aid) {
+        AidKey aidKey = AidKey.parse(aid);
+        return aidKey != null ? aidKey.getBytes() : new byte[0];
+    }
+
+    /**
+     * Returns a routing manager for a controller that matches exact and
+     * prefix AIDs, and has room for every AID.
+     */
+    static AidRoutingManager createRoutingManager() {
+        return new AidRoutingManager(ROUTE_HOST, ROUTE_ESE,
+                AidRoutingManager.AID_MATCHING_EXACT_OR_PREFIX,
+                AidRoutingManager.AID_MATCHING_L, 1024 * 1024);
+    }
+}
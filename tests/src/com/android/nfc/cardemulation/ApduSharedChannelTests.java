@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2015 NXP Semiconductors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.cardemulation;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.RemoteException;
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Tests negotiating {@link ApduSharedChannel}, writing commands to its ring,
+ * and falling back to sending APDUs the regular way.
+ */
+public class ApduSharedChannelTests extends AndroidTestCase {
+    static final int APDU_LENGTH = 0x3000;
+
+    /** Keeps the messages sent to the service instead of handling them. */
+    static final class RecordingHandler extends Handler {
+        final ArrayList<Message> mMessages = new ArrayList<Message>();
+
+        RecordingHandler() {
+            super(Looper.getMainLooper());
+        }
+
+        @Override
+        public boolean sendMessageAtTime(Message msg, long uptimeMillis) {
+            mMessages.add(msg);
+            return true;
+        }
+
+        Message takeLast() {
+            return mMessages.remove(mMessages.size() - 1);
+        }
+    }
+
+    RecordingHandler mServiceHandler;
+    Messenger mService;
+    Messenger mReplyTo;
+    ApduSharedChannel mChannel;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServiceHandler = new RecordingHandler();
+        mService = new Messenger(mServiceHandler);
+        mReplyTo = new Messenger(new RecordingHandler());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mChannel != null) {
+            mChannel.close();
+        }
+        super.tearDown();
+    }
+
+    static byte[] apdu(int length, int fill) {
+        byte[] data = new byte[length];
+        Arrays.fill(data, (byte) fill);
+        return data;
+    }
+
+    void openChannel() {
+        mChannel = ApduSharedChannel.offer(mService, mReplyTo);
+        assertNotNull(mChannel);
+        assertTrue(mChannel.onOpened(mReplyTo));
+        mServiceHandler.mMessages.clear();
+    }
+
+    /** Sends the command and returns its offset in the command half, or -1. */
+    int sendCommand(byte[] data) throws RemoteException {
+        if (!mChannel.sendCommand(data, mReplyTo)) {
+            return -1;
+        }
+        Message msg = mServiceHandler.takeLast();
+        assertEquals(ApduSharedChannel.MSG_COMMAND_APDU, msg.what);
+        assertEquals(data.length, msg.arg2);
+        return msg.arg1;
+    }
+
+    public void testIsSupported() {
+        assertFalse(ApduSharedChannel.isSupported(null));
+        Bundle metaData = new Bundle();
+        assertFalse(ApduSharedChannel.isSupported(metaData));
+        metaData.putBoolean(ApduSharedChannel.META_DATA_SHARED_CHANNEL, true);
+        assertTrue(ApduSharedChannel.isSupported(metaData));
+    }
+
+    public void testNegotiation() throws Exception {
+        mChannel = ApduSharedChannel.offer(mService, mReplyTo);
+        assertNotNull(mChannel);
+        Message open = mServiceHandler.takeLast();
+        assertEquals(ApduSharedChannel.MSG_OPEN_CHANNEL, open.what);
+        assertSame(mReplyTo, open.replyTo);
+
+        // Until the service accepts, commands go the regular way
+        assertFalse(mChannel.sendCommand(apdu(16, 1), mReplyTo));
+        mChannel.onResponse();
+        assertTrue(mServiceHandler.mMessages.isEmpty());
+
+        // MSG_CHANNEL_OPENED hands the memory to the service, once
+        assertTrue(mChannel.onOpened(mReplyTo));
+        Message memory = mServiceHandler.takeLast();
+        assertEquals(ApduSharedChannel.MSG_CHANNEL_MEMORY, memory.what);
+        assertSame(mReplyTo, memory.replyTo);
+        Bundle data = memory.getData();
+        assertNotNull(data.getParcelable(ApduSharedChannel.KEY_MEMORY));
+        assertEquals(ApduSharedChannel.REGION_SIZE,
+                data.getInt(ApduSharedChannel.KEY_REGION_SIZE, 0));
+        assertTrue(mChannel.onOpened(mReplyTo));
+        assertTrue(mServiceHandler.mMessages.isEmpty());
+
+        byte[] command = apdu(16, 0x5A);
+        assertEquals(0, sendCommand(command));
+        byte[] written = new byte[command.length];
+        mChannel.mMemory.readBytes(written, 0, 0, written.length);
+        assertTrue(Arrays.equals(command, written));
+    }
+
+    public void testReadResponse() throws Exception {
+        openChannel();
+        byte[] response = new byte[] {0x6F, 0x00, (byte) 0x90, 0x00};
+        mChannel.mMemory.writeBytes(response, 0, ApduSharedChannel.REGION_SIZE + 8,
+                response.length);
+        assertTrue(Arrays.equals(response, mChannel.readResponse(8, response.length)));
+
+        // Locations outside the response half are rejected
+        assertNull(mChannel.readResponse(-1, 2));
+        assertNull(mChannel.readResponse(0, 0));
+        assertNull(mChannel.readResponse(ApduSharedChannel.REGION_SIZE - 1, 2));
+    }
+
+    public void testRingWrapsAround() throws Exception {
+        openChannel();
+        assertEquals(0, sendCommand(apdu(APDU_LENGTH, 1)));
+        mChannel.onResponse();
+        assertEquals(APDU_LENGTH, sendCommand(apdu(APDU_LENGTH, 2)));
+        mChannel.onResponse();
+        // Does not fit after the previous command, so goes to the start
+        assertEquals(0, sendCommand(apdu(APDU_LENGTH, 3)));
+        mChannel.onResponse();
+        assertEquals(APDU_LENGTH, sendCommand(apdu(APDU_LENGTH, 4)));
+    }
+
+    public void testFallsBackToMessenger() throws Exception {
+        openChannel();
+        // Does not fit in a half
+        assertEquals(-1, sendCommand(apdu(ApduSharedChannel.REGION_SIZE + 1, 1)));
+        mChannel.onResponse();
+
+        // Would overwrite the first command, which was not acknowledged
+        assertEquals(0, sendCommand(apdu(APDU_LENGTH, 2)));
+        assertEquals(APDU_LENGTH, sendCommand(apdu(APDU_LENGTH, 3)));
+        assertEquals(-1, sendCommand(apdu(APDU_LENGTH, 4)));
+
+        // Responses are acknowledged in order, including the one to the
+        // command that was sent the regular way
+        mChannel.onResponse();
+        assertEquals(0, sendCommand(apdu(APDU_LENGTH, 5)));
+        mChannel.onResponse();
+        mChannel.onResponse();
+        mChannel.onResponse();
+        assertEquals(APDU_LENGTH, sendCommand(apdu(APDU_LENGTH, 6)));
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2015 NXP Semiconductors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.cardemulation;
+
+import android.content.ComponentName;
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests reading back, recovery and compaction of {@link DynamicAidsJournal}.
+ */
+public class DynamicAidsJournalTests extends AndroidTestCase {
+    static final ComponentName SERVICE = new ComponentName("com.example", "com.example.Hce");
+
+    File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = File.createTempFile("dynamic_aids", ".journal");
+        mFile.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        new File(mFile.getPath() + ".bak").delete();
+        super.tearDown();
+    }
+
+    public void testReadBackRecords() {
+        DynamicAidsJournal journal = new DynamicAidsJournal(mFile);
+        assertTrue(journal.append(DynamicAidsJournal.Record.putGroup(10001, SERVICE, "payment",
+                Arrays.asList("A0000000041010", "A0000000031010"))));
+        assertTrue(journal.append(DynamicAidsJournal.Record.removeGroup(10001, SERVICE,
+                "other")));
+        assertTrue(journal.append(DynamicAidsJournal.Record.removeService(10001, SERVICE)));
+
+        List<DynamicAidsJournal.Record> records = new DynamicAidsJournal(mFile).read();
+        assertEquals(3, records.size());
+        DynamicAidsJournal.Record put = records.get(0);
+        assertEquals(DynamicAidsJournal.OP_PUT_GROUP, put.op);
+        assertEquals(10001, put.uid);
+        assertEquals(SERVICE, put.component);
+        assertEquals("payment", put.category);
+        assertEquals(Arrays.asList("A0000000041010", "A0000000031010"), put.aids);
+        assertEquals(DynamicAidsJournal.OP_REMOVE_GROUP, records.get(1).op);
+        assertEquals("other", records.get(1).category);
+        assertEquals(DynamicAidsJournal.OP_REMOVE_SERVICE, records.get(2).op);
+    }
+
+    public void testInterruptedCompactionIsRecovered() throws Exception {
+        DynamicAidsJournal journal = new DynamicAidsJournal(mFile);
+        assertTrue(journal.append(DynamicAidsJournal.Record.putGroup(10001, SERVICE, "payment",
+                Arrays.asList("A0000000041010"))));
+        assertTrue(journal.append(DynamicAidsJournal.Record.putGroup(10001, SERVICE, "other",
+                Arrays.asList("F00102030405"))));
+        // A compaction that crashed after the journal was moved to the backup,
+        // before the new journal was written
+        assertTrue(mFile.renameTo(new File(mFile.getPath() + ".bak")));
+
+        journal = new DynamicAidsJournal(mFile);
+        assertTrue(journal.exists());
+        assertEquals(2, journal.read().size());
+        assertTrue(journal.append(DynamicAidsJournal.Record.removeService(10001, SERVICE)));
+        assertEquals(3, new DynamicAidsJournal(mFile).read().size());
+    }
+
+    public void testInterruptedCompactionIsRecoveredOnAppend() throws Exception {
+        DynamicAidsJournal journal = new DynamicAidsJournal(mFile);
+        assertTrue(journal.append(DynamicAidsJournal.Record.putGroup(10001, SERVICE, "payment",
+                Arrays.asList("A0000000041010"))));
+        assertTrue(mFile.renameTo(new File(mFile.getPath() + ".bak")));
+
+        journal = new DynamicAidsJournal(mFile);
+        assertTrue(journal.append(DynamicAidsJournal.Record.removeService(10001, SERVICE)));
+        assertEquals(2, new DynamicAidsJournal(mFile).read().size());
+    }
+
+    public void testTornRecordIsDropped() throws Exception {
+        DynamicAidsJournal journal = new DynamicAidsJournal(mFile);
+        assertTrue(journal.append(DynamicAidsJournal.Record.putGroup(10001, SERVICE, "payment",
+                Arrays.asList("A0000000041010"))));
+        long length = mFile.length();
+        assertTrue(journal.append(DynamicAidsJournal.Record.putGroup(10001, SERVICE, "other",
+                Arrays.asList("F00102030405"))));
+        // Cut the second record in half, as a crash during the append would
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        file.setLength(length + (mFile.length() - length) / 2);
+        file.close();
+
+        journal = new DynamicAidsJournal(mFile);
+        assertEquals(1, journal.read().size());
+        assertEquals(length, mFile.length());
+        // Appends after the recovery are readable
+        assertTrue(journal.append(DynamicAidsJournal.Record.removeService(10001, SERVICE)));
+        assertEquals(2, new DynamicAidsJournal(mFile).read().size());
+    }
+
+    public void testCompaction() {
+        DynamicAidsJournal journal = new DynamicAidsJournal(mFile);
+        for (int i = 0; i <= DynamicAidsJournal.COMPACT_MIN_RECORDS; i++) {
+            assertTrue(journal.append(DynamicAidsJournal.Record.putGroup(10001, SERVICE,
+                    "payment", Arrays.asList("A0000000041010"))));
+        }
+        assertTrue(journal.needsCompaction(1));
+        ArrayList<DynamicAidsJournal.Record> live = new ArrayList<DynamicAidsJournal.Record>();
+        live.add(DynamicAidsJournal.Record.putGroup(10001, SERVICE, "payment",
+                Arrays.asList("A0000000041010")));
+        assertTrue(journal.compact(live));
+        assertFalse(journal.needsCompaction(1));
+        assertEquals(1, new DynamicAidsJournal(mFile).read().size());
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2015 NXP Semiconductors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.cardemulation;
+
+import com.android.nfc.DeviceHost;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Java model of the listen mode AID routing table of the controller, so that
+ * routing can be checked without hardware.
+ *
+ * It implements the AID routing methods of {@link DeviceHost} with the same
+ * signatures, and answers which route a SELECT would hit with
+ * {@link #resolveSelect(byte[], int)}. Like the controller, it:
+ * <ul>
+ * <li>matches entries in the order they were added; re-adding an AID
+ * updates its entry in place,
+ * <li>matches entries exact, as a prefix if added as one, or always as a
+ * prefix, depending on the AidRoutingManager.AID_MATCHING_* mode,
+ * <li>accounts every entry as AID_HDR_LENGTH plus the AID length bytes,
+ * and refuses entries beyond {@link #getAidTableSize()},
+ * <li>only routes with the table as of the last {@link #commitRouting()}.
+ * </ul>
+ * Power states use the bits RegisteredAidCache sets: switched on, switched
+ * off and battery off, where the switched on entries are only active on the
+ * lock screen with {@link #POWER_SCREEN_LOCK} and with the screen off with
+ * {@link #POWER_SCREEN_OFF}.
+ */
+class EmulatedRoutingTable {
+    static final int POWER_SWITCH_ON = 0x01;
+    static final int POWER_SWITCH_OFF = 0x02;
+    static final int POWER_BATTERY_OFF = 0x04;
+    static final int POWER_SCREEN_LOCK = 0x40;
+    static final int POWER_SCREEN_OFF = 0x80;
+
+    // Device states a SELECT can arrive in
+    static final int STATE_ON_UNLOCKED = 0;
+    static final int STATE_ON_LOCKED = 1;
+    static final int STATE_ON_SCREEN_OFF = 2;
+    static final int STATE_SWITCH_OFF = 3;
+    static final int STATE_BATTERY_OFF = 4;
+
+    // Returned when a SELECT would not be routed anywhere
+    static final int ROUTE_NONE = -1;
+
+    static final class Entry {
+        final byte[] aid;
+        final int route;
+        final int powerState;
+        final boolean isPrefix;
+
+        Entry(byte[] aid, int route, int powerState, boolean isPrefix) {
+            this.aid = aid;
+            this.route = route;
+            this.powerState = powerState;
+            this.isPrefix = isPrefix;
+        }
+
+        int getSize() {
+            return AidRouteSolver.AID_HDR_LENGTH + aid.length;
+        }
+
+        @Override
+        public String toString() {
+            return AidKey.toHexString(aid, 0, aid.length) + (isPrefix ? "*" : "") + " -> " +
+                    route + " (power 0x" + Integer.toHexString(powerState) + ")";
+        }
+    }
+
+    final int mAidMatchingSupport;
+    final int mTableSize;
+
+    // The table being programmed, and the one the controller routes with
+    final ArrayList<Entry> mEntries = new ArrayList<Entry>();
+    List<Entry> mCommittedEntries = new ArrayList<Entry>();
+    int mUsedSize;
+
+    int mDefaultRoute;
+    int mCommittedDefaultRoute;
+
+    // Calls made to the controller
+    int mCalls;
+    int mCommits;
+
+    EmulatedRoutingTable(int aidMatchingSupport, int tableSize) {
+        mAidMatchingSupport = aidMatchingSupport;
+        mTableSize = tableSize;
+        // Host, powered on
+        mDefaultRoute = mCommittedDefaultRoute = POWER_SWITCH_ON;
+    }
+
+    public boolean routeAid(byte[] aid, int route, int powerState, boolean isprefix) {
+        mCalls++;
+        return addEntry(new Entry(aid.clone(), route, powerState & 0xFF, isprefix));
+    }
+
+    public boolean unrouteAid(byte[] aid) {
+        mCalls++;
+        return removeEntry(aid);
+    }
+
+    public boolean updateAidRouting(byte[] aidEntries, boolean clearTable) {
+        mCalls++;
+        if (clearTable) {
+            clear();
+        }
+        int offset = 0;
+        while (offset < aidEntries.length) {
+            if (aidEntries.length - offset < DeviceHost.AID_ENTRY_HDR_LENGTH ||
+                    aidEntries.length - offset - DeviceHost.AID_ENTRY_HDR_LENGTH <
+                    (aidEntries[offset + 3] & 0xFF)) {
+                return false;
+            }
+            int op = aidEntries[offset];
+            int length = aidEntries[offset + 3] & 0xFF;
+            byte[] aid = Arrays.copyOfRange(aidEntries, offset + DeviceHost.AID_ENTRY_HDR_LENGTH,
+                    offset + DeviceHost.AID_ENTRY_HDR_LENGTH + length);
+            boolean result;
+            if (op == DeviceHost.AID_ENTRY_REMOVE) {
+                result = removeEntry(aid);
+            } else {
+                result = addEntry(new Entry(aid, aidEntries[offset + 1] & 0xFF,
+                        aidEntries[offset + 2] & 0xFF, op == DeviceHost.AID_ENTRY_ADD_PREFIX));
+            }
+            if (!result) {
+                // As the native code, stop at the first failure
+                return false;
+            }
+            offset += DeviceHost.AID_ENTRY_HDR_LENGTH + length;
+        }
+        return true;
+    }
+
+    public boolean clearAidTable() {
+        mCalls++;
+        clear();
+        return true;
+    }
+
+    public int getAidTableSize() {
+        return mTableSize;
+    }
+
+    public int getRemainingAidTableSize() {
+        return mTableSize - mUsedSize;
+    }
+
+    /**
+     * Takes the default route as NfcService passes it: the route in bits 3
+     * and 4, and the power state in the low bits. Protocol and technology
+     * routes are not modelled.
+     */
+    public boolean setDefaultRoute(int defaultRouteEntry, int defaultProtoRouteEntry,
+            int defaultTechRouteEntry) {
+        mCalls++;
+        mDefaultRoute = defaultRouteEntry;
+        return true;
+    }
+
+    public void commitRouting() {
+        mCommits++;
+        mCommittedEntries = new ArrayList<Entry>(mEntries);
+        mCommittedDefaultRoute = mDefaultRoute;
+    }
+
+    void clear() {
+        mEntries.clear();
+        mUsedSize = 0;
+    }
+
+    boolean addEntry(Entry entry) {
+        int index = indexOf(entry.aid);
+        int oldSize = (index >= 0) ? mEntries.get(index).getSize() : 0;
+        if (mUsedSize - oldSize + entry.getSize() > mTableSize) {
+            return false;
+        }
+        if (index >= 0) {
+            mEntries.set(index, entry);
+        } else {
+            mEntries.add(entry);
+        }
+        mUsedSize += entry.getSize() - oldSize;
+        return true;
+    }
+
+    boolean removeEntry(byte[] aid) {
+        int index = indexOf(aid);
+        if (index < 0) {
+            return false;
+        }
+        mUsedSize -= mEntries.remove(index).getSize();
+        return true;
+    }
+
+    int indexOf(byte[] aid) {
+        for (int i = 0; i < mEntries.size(); i++) {
+            if (Arrays.equals(mEntries.get(i).aid, aid)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    List<Entry> getCommittedEntries() {
+        return mCommittedEntries;
+    }
+
+    /**
+     * Returns the entry a SELECT of aid hits in the given device state, or
+     * null if it falls through to the default route.
+     */
+    Entry findEntry(byte[] aid, int state) {
+        for (Entry entry : mCommittedEntries) {
+            if (matches(entry, aid) && isActive(entry.powerState, state)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the route a SELECT of aid goes to in the given device state,
+     * or ROUTE_NONE.
+     */
+    int resolveSelect(byte[] aid, int state) {
+        Entry entry = findEntry(aid, state);
+        if (entry != null) {
+            return entry.route;
+        }
+        int defaultPowerState = mCommittedDefaultRoute & 0x07;
+        if (state == STATE_ON_LOCKED || state == STATE_ON_SCREEN_OFF) {
+            // Screen states do not apply to the default route
+            state = STATE_ON_UNLOCKED;
+        }
+        return isActive(defaultPowerState, state) ? (mCommittedDefaultRoute & 0x18) >> 3 :
+                ROUTE_NONE;
+    }
+
+    int resolveSelect(String aid, int state) {
+        return resolveSelect(ApduServiceFixtures.aidToBytes(aid), state);
+    }
+
+    boolean matches(Entry entry, byte[] aid) {
+        boolean prefix = entry.isPrefix;
+        if (mAidMatchingSupport == AidRoutingManager.AID_MATCHING_EXACT_ONLY) {
+            prefix = false;
+        } else if (mAidMatchingSupport == AidRoutingManager.AID_MATCHING_PREFIX_ONLY) {
+            prefix = true;
+        }
+        if (prefix ? aid.length < entry.aid.length : aid.length != entry.aid.length) {
+            return false;
+        }
+        for (int i = 0; i < entry.aid.length; i++) {
+            if (entry.aid[i] != aid[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static boolean isActive(int powerState, int state) {
+        switch (state) {
+            case STATE_ON_UNLOCKED:
+                return (powerState & POWER_SWITCH_ON) != 0;
+            case STATE_ON_LOCKED:
+                return (powerState & POWER_SWITCH_ON) != 0 &&
+                        (powerState & POWER_SCREEN_LOCK) != 0;
+            case STATE_ON_SCREEN_OFF:
+                return (powerState & POWER_SWITCH_ON) != 0 &&
+                        (powerState & POWER_SCREEN_OFF) != 0;
+            case STATE_SWITCH_OFF:
+                return (powerState & POWER_SWITCH_OFF) != 0;
+            case STATE_BATTERY_OFF:
+                return (powerState & POWER_BATTERY_OFF) != 0;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Routing table (" + mUsedSize + "/" + mTableSize + " bytes): " + mEntries;
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2015 NXP Semiconductors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.cardemulation;
+
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Tests {@link EmulatedRoutingTable}, and checks with it that the routing
+ * tables planned by {@link AidRouteSolver} route every AID as intended.
+ */
+public class EmulatedRoutingTableTests extends AndroidTestCase {
+    private static final int ROUTE_HOST = 0x00;
+    private static final int ROUTE_ESE = 0x01;
+    private static final int ROUTE_UICC = 0x02;
+    private static final int POWER_ON = EmulatedRoutingTable.POWER_SWITCH_ON;
+    private static final String[] AID_BYTES = {"A0", "00", "03", "10", "F0"};
+
+    public void testMatchingModes() {
+        EmulatedRoutingTable exactOrPrefix = createTable(
+                AidRoutingManager.AID_MATCHING_EXACT_OR_PREFIX, 100);
+        EmulatedRoutingTable exactOnly = createTable(
+                AidRoutingManager.AID_MATCHING_EXACT_ONLY, 100);
+        EmulatedRoutingTable prefixOnly = createTable(
+                AidRoutingManager.AID_MATCHING_PREFIX_ONLY, 100);
+        for (EmulatedRoutingTable table : new EmulatedRoutingTable[] {exactOrPrefix, exactOnly,
+                prefixOnly}) {
+            apply(table, new AidElement("A000000004*", 1, ROUTE_UICC, POWER_ON),
+                    new AidElement("A000000003", 1, ROUTE_ESE, POWER_ON));
+        }
+        int on = EmulatedRoutingTable.STATE_ON_UNLOCKED;
+
+        assertEquals(ROUTE_UICC, exactOrPrefix.resolveSelect("A0000000041010", on));
+        assertEquals(ROUTE_HOST, exactOrPrefix.resolveSelect("A0000000031010", on));
+        assertEquals(ROUTE_ESE, exactOrPrefix.resolveSelect("A000000003", on));
+
+        assertEquals(ROUTE_HOST, exactOnly.resolveSelect("A0000000041010", on));
+        assertEquals(ROUTE_UICC, exactOnly.resolveSelect("A000000004", on));
+
+        assertEquals(ROUTE_ESE, prefixOnly.resolveSelect("A0000000031010", on));
+    }
+
+    public void testFirstEntryWins() {
+        EmulatedRoutingTable table = createTable(
+                AidRoutingManager.AID_MATCHING_EXACT_OR_PREFIX, 100);
+        apply(table, new AidElement("A000000004*", 1, ROUTE_UICC, POWER_ON),
+                new AidElement("A0000000041010", 1, ROUTE_ESE, POWER_ON));
+        assertEquals(ROUTE_UICC, table.resolveSelect("A0000000041010",
+                EmulatedRoutingTable.STATE_ON_UNLOCKED));
+    }
+
+    public void testPowerStates() {
+        EmulatedRoutingTable table = createTable(
+                AidRoutingManager.AID_MATCHING_EXACT_OR_PREFIX, 100);
+        apply(table, new AidElement("A000000001", 1, ROUTE_ESE, POWER_ON),
+                new AidElement("A000000002", 1, ROUTE_ESE,
+                        POWER_ON | EmulatedRoutingTable.POWER_SCREEN_LOCK),
+                new AidElement("A000000003", 1, ROUTE_ESE,
+                        POWER_ON | EmulatedRoutingTable.POWER_SCREEN_OFF),
+                new AidElement("A000000004", 1, ROUTE_ESE,
+                        EmulatedRoutingTable.POWER_SWITCH_OFF));
+        int locked = EmulatedRoutingTable.STATE_ON_LOCKED;
+        int screenOff = EmulatedRoutingTable.STATE_ON_SCREEN_OFF;
+        int off = EmulatedRoutingTable.STATE_SWITCH_OFF;
+
+        assertEquals(ROUTE_HOST, table.resolveSelect("A000000001", locked));
+        assertEquals(ROUTE_ESE, table.resolveSelect("A000000002", locked));
+        assertEquals(ROUTE_HOST, table.resolveSelect("A000000002", screenOff));
+        assertEquals(ROUTE_ESE, table.resolveSelect("A000000003", screenOff));
+        assertEquals(ROUTE_ESE, table.resolveSelect("A000000004", off));
+        // The default route is only powered when switched on
+        assertEquals(EmulatedRoutingTable.ROUTE_NONE, table.resolveSelect("A000000001", off));
+    }
+
+    public void testTableSize() {
+        // Each entry takes 9 bytes
+        EmulatedRoutingTable table = createTable(
+                AidRoutingManager.AID_MATCHING_EXACT_OR_PREFIX, 20);
+        byte[] aid = ApduServiceFixtures.aidToBytes("A000000001");
+        assertTrue(table.routeAid(aid, ROUTE_ESE, POWER_ON, false));
+        // Updating an entry in place takes no extra space
+        assertTrue(table.routeAid(aid, ROUTE_UICC, POWER_ON, false));
+        assertTrue(table.routeAid(ApduServiceFixtures.aidToBytes("A000000002"), ROUTE_ESE, POWER_ON,
+                false));
+        assertEquals(2, table.getRemainingAidTableSize());
+        assertFalse(table.routeAid(ApduServiceFixtures.aidToBytes("A000000003"), ROUTE_ESE, POWER_ON,
+                false));
+        assertTrue(table.unrouteAid(aid));
+        assertEquals(11, table.getRemainingAidTableSize());
+        // Nothing is routed before the commit
+        assertEquals(ROUTE_HOST, table.resolveSelect("A000000002",
+                EmulatedRoutingTable.STATE_ON_UNLOCKED));
+    }
+
+    public void testPlannedRoutingRoutesAsIntended() {
+        Random random = new Random(0);
+        for (int i = 0; i < 100; i++) {
+            HashMap<String, AidElement> aidMap = new HashMap<String, AidElement>();
+            HashMap<AidKey, AidElement> routingEntries = new HashMap<AidKey, AidElement>();
+            int count = 1 + random.nextInt(30);
+            while (aidMap.size() < count) {
+                StringBuilder aid = new StringBuilder("A000");
+                int length = 3 + random.nextInt(8);
+                for (int j = 0; j < length; j++) {
+                    aid.append(AID_BYTES[random.nextInt(AID_BYTES.length)]);
+                }
+                String exactAid = aid.toString();
+                if (random.nextInt(4) == 0) {
+                    aid.append('*');
+                }
+                if (aidMap.containsKey(exactAid) || aidMap.containsKey(exactAid + "*")) {
+                    // The controller has one entry per AID, prefix or not
+                    continue;
+                }
+                AidElement elem = new AidElement(aid.toString(), AidElement.ROUTE_WIEGHT_OTHER,
+                        random.nextInt(3), POWER_ON);
+                aidMap.put(aid.toString(), elem);
+                routingEntries.put(elem.getAidKey(), elem);
+            }
+            AidRouteSolver.Plan plan = new AidRouteSolver(
+                    AidRoutingManager.AID_MATCHING_EXACT_OR_PREFIX,
+                    AidRoutingManager.AID_MATCHING_K, ROUTE_UICC, 1000).solve(routingEntries,
+                    ROUTE_HOST);
+            assertTrue(plan.fits());
+
+            EmulatedRoutingTable table = createTable(
+                    AidRoutingManager.AID_MATCHING_EXACT_OR_PREFIX, 1000);
+            table.setDefaultRoute((plan.defaultRoute << 3) | POWER_ON, 0, 0);
+            ArrayList<AidElement> entries = new ArrayList<AidElement>(plan.entries);
+            // As AidRoutingManager commits them
+            Collections.sort(entries);
+            apply(table, entries.toArray(new AidElement[entries.size()]));
+
+            for (Map.Entry<String, AidElement> aidEntry : aidMap.entrySet()) {
+                String aid = aidEntry.getKey();
+                if (aid.endsWith("*")) {
+                    // No other AID starts with FE
+                    aid = aid.substring(0, aid.length() - 1) + "FE";
+                }
+                if (isShadowedByPrefixAid(aidMap, aidEntry.getKey(), aid, plan.defaultRoute)) {
+                    // The solver only adds entries for AIDs that an exact
+                    // AID on another route shadows.
+                    continue;
+                }
+                assertEquals(aid + " in " + table, aidEntry.getValue().getRouteLocation(),
+                        table.resolveSelect(aid, EmulatedRoutingTable.STATE_ON_UNLOCKED));
+            }
+        }
+    }
+
+    /**
+     * Returns whether a shorter prefix AID on another route than the default
+     * route matches a SELECT of aid, meant for registeredAid.
+     */
+    private boolean isShadowedByPrefixAid(Map<String, AidElement> aidMap, String registeredAid,
+            String aid, int defaultRoute) {
+        if (aidMap.get(registeredAid).getRouteLocation() != defaultRoute) {
+            return false;
+        }
+        int length = registeredAid.endsWith("*") ? registeredAid.length() - 1 :
+                registeredAid.length();
+        for (Map.Entry<String, AidElement> aidEntry : aidMap.entrySet()) {
+            String prefix = aidEntry.getKey();
+            if (prefix.endsWith("*") && prefix.length() - 1 < length &&
+                    aidEntry.getValue().getRouteLocation() != defaultRoute &&
+                    aid.startsWith(prefix.substring(0, prefix.length() - 1))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private EmulatedRoutingTable createTable(int aidMatchingSupport, int tableSize) {
+        return new EmulatedRoutingTable(aidMatchingSupport, tableSize);
+    }
+
+    private void apply(EmulatedRoutingTable table, AidElement... routes) {
+        ArrayList<AidElement> addedRoutes = new ArrayList<AidElement>();
+        Collections.addAll(addedRoutes, routes);
+        assertTrue(table.updateAidRouting(
+                AidElement.packEntries(new ArrayList<AidElement>(), addedRoutes), true));
+        table.commitRouting();
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2015 NXP Semiconductors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.cardemulation;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Tests the latency histograms of {@link HceLatencyTracer}.
+ */
+public class HceLatencyTracerTests extends AndroidTestCase {
+
+    public void testBucketBoundsContainValue() {
+        // Up to 2^26 us, above which everything goes in the last bucket
+        for (long micros = 0; micros < (1L << 26); micros = micros * 3 / 2 + 1) {
+            int bucket = HceLatencyTracer.Histogram.bucketOf(micros);
+            assertTrue(micros < HceLatencyTracer.Histogram.upperBoundOf(bucket));
+            if (bucket > 0) {
+                assertTrue(micros >= HceLatencyTracer.Histogram.upperBoundOf(bucket - 1));
+            }
+        }
+        assertEquals(HceLatencyTracer.Histogram.BUCKETS - 1,
+                HceLatencyTracer.Histogram.bucketOf(Long.MAX_VALUE));
+    }
+
+    public void testPercentiles() {
+        HceLatencyTracer.Histogram histogram = new HceLatencyTracer.Histogram();
+        for (int i = 1; i <= 100; i++) {
+            // 1 ms to 100 ms
+            histogram.add(i * 1000L);
+        }
+        assertWithinBucket(50000, histogram.getPercentile(50));
+        assertWithinBucket(95000, histogram.getPercentile(95));
+        assertWithinBucket(99000, histogram.getPercentile(99));
+    }
+
+    private void assertWithinBucket(long expected, long actual) {
+        // Buckets are a quarter of a power of two wide
+        assertTrue(actual > expected);
+        assertTrue(actual <= expected + expected / 2);
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2015 NXP Semiconductors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.cardemulation;
+
+import android.test.AndroidTestCase;
+
+import com.android.nfc.DeviceHost;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Tests the NFCID2 routing entries packed by {@link Nfcid2RoutingCache}.
+ */
+public class Nfcid2RoutingCacheTests extends AndroidTestCase {
+    static final String NFCID2 = "02FE000102030485";
+
+    public void testPackEntries() {
+        Nfcid2Element removed = new Nfcid2Element("02FE0A0B0C0D0E0F", "FFFF", null,
+                false, false);
+        Nfcid2Element added = new Nfcid2Element(NFCID2, "88B4", "0102", false, false);
+        byte[] entries = Nfcid2RoutingCache.packEntries(Collections.singletonList(removed),
+                Collections.singletonList(added));
+
+        assertEquals(2 * DeviceHost.NFCID2_ENTRY_HDR_LENGTH + 2, entries.length);
+        assertEquals(DeviceHost.NFCID2_ENTRY_REMOVE, entries[0]);
+        assertEquals(0x0F, entries[8]);
+        int offset = DeviceHost.NFCID2_ENTRY_HDR_LENGTH;
+        assertEquals(DeviceHost.NFCID2_ENTRY_ADD, entries[offset]);
+        assertTrue(Arrays.equals(new byte[] {0x02, (byte)0xFE, 0x00, 0x01, 0x02, 0x03, 0x04,
+                (byte)0x85}, Arrays.copyOfRange(entries, offset + 1, offset + 9)));
+        assertEquals((byte)0x88, entries[offset + 9]);
+        assertEquals((byte)0xB4, entries[offset + 10]);
+        assertEquals(2, entries[offset + 11]);
+        assertEquals(0x02, entries[offset + 13]);
+    }
+
+    public void testRoutesLike() {
+        Nfcid2Element element = new Nfcid2Element(NFCID2, "88B4", "0102", false, false);
+        assertTrue(element.isValid());
+        assertTrue(element.routesLike(new Nfcid2Element(NFCID2.toLowerCase(), "88b4", "0102",
+                false, true)));
+        assertFalse(element.routesLike(new Nfcid2Element(NFCID2, "FFFF", "0102", false,
+                false)));
+        assertFalse(new Nfcid2Element(NFCID2, "88B", null, false, false).isValid());
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2015 NXP Semiconductors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.cardemulation;
+
+import android.content.ComponentName;
+import android.nfc.cardemulation.ApduServiceInfo;
+import android.nfc.cardemulation.CardEmulation;
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+
+/**
+ * Tests the lookups PreferredServices makes in {@link RegisteredAidCache}.
+ */
+public class RegisteredAidCacheTests extends AndroidTestCase {
+    private static final ComponentName PAYMENT =
+            new ComponentName("com.example.payment", "com.example.payment.Service");
+    private static final ComponentName LOYALTY =
+            new ComponentName("com.example.loyalty", "com.example.loyalty.Service");
+    private static final ComponentName TRANSIT =
+            new ComponentName("com.example.transit", "com.example.transit.Service");
+
+    public void testFindAidHandledAsPayment() {
+        RegisteredAidCache cache = new RegisteredAidCache(getContext(),
+                ApduServiceFixtures.createRoutingManager());
+        ArrayList<ApduServiceInfo> services = new ArrayList<ApduServiceInfo>();
+        services.add(createService(PAYMENT, CardEmulation.CATEGORY_PAYMENT,
+                "A0000000041010", "A0000000043060"));
+        services.add(createService(LOYALTY, CardEmulation.CATEGORY_OTHER,
+                "F0010203040506", "A0000000043060"));
+        services.add(createService(TRANSIT, CardEmulation.CATEGORY_OTHER,
+                "F0010203040507"));
+        synchronized (cache.mLock) {
+            cache.generateServiceMapLocked(services);
+            cache.generateAidCacheLocked();
+        }
+        // No payment default yet
+        assertNull(cache.findAidHandledAsPayment(LOYALTY, PAYMENT));
+
+        cache.onPreferredPaymentServiceChanged(PAYMENT);
+        assertEquals("A0000000043060", cache.findAidHandledAsPayment(LOYALTY, PAYMENT));
+        assertNull(cache.findAidHandledAsPayment(TRANSIT, PAYMENT));
+        assertNull(cache.findAidHandledAsPayment(LOYALTY, null));
+
+        // Services that are gone have no AIDs
+        services.remove(0);
+        synchronized (cache.mLock) {
+            cache.regenerateAidCacheLocked(cache.updateServiceMapLocked(services));
+        }
+        assertNull(cache.findAidHandledAsPayment(LOYALTY, PAYMENT));
+    }
+
+    public void testFindAidHandledAsPaymentUnderPrefix() {
+        RegisteredAidCache cache = new RegisteredAidCache(getContext(),
+                ApduServiceFixtures.createRoutingManager());
+        ArrayList<ApduServiceInfo> services = new ArrayList<ApduServiceInfo>();
+        services.add(createService(PAYMENT, CardEmulation.CATEGORY_PAYMENT, "A000000003*"));
+        services.add(createService(LOYALTY, CardEmulation.CATEGORY_OTHER, "A0000000031010"));
+        services.add(createService(TRANSIT, CardEmulation.CATEGORY_OTHER, "F0010203040507"));
+        synchronized (cache.mLock) {
+            cache.generateServiceMapLocked(services);
+            cache.generateAidCacheLocked();
+        }
+        cache.onPreferredPaymentServiceChanged(PAYMENT);
+        // The AID of LOYALTY is covered by the prefix of the payment default
+        assertEquals("A0000000031010", cache.findAidHandledAsPayment(LOYALTY, PAYMENT));
+        assertNull(cache.findAidHandledAsPayment(TRANSIT, PAYMENT));
+    }
+
+    public void testUpdateReplacesUnchangedService() {
+        RegisteredAidCache cache = new RegisteredAidCache(getContext(),
+                ApduServiceFixtures.createRoutingManager());
+        ArrayList<ApduServiceInfo> services = new ArrayList<ApduServiceInfo>();
+        services.add(createService(LOYALTY, CardEmulation.CATEGORY_OTHER, "F0010203040506"));
+        synchronized (cache.mLock) {
+            cache.generateServiceMapLocked(services);
+            cache.generateAidCacheLocked();
+        }
+        // Same AIDs, but possibly a new label, icon or banner
+        ApduServiceInfo reparsed = createService(LOYALTY, CardEmulation.CATEGORY_OTHER,
+                "F0010203040506");
+        services.set(0, reparsed);
+        synchronized (cache.mLock) {
+            HashSet<String> resolveRoots = cache.updateServiceMapLocked(services);
+            // Swapped in without resolving the AIDs again
+            assertTrue(resolveRoots.isEmpty());
+            cache.regenerateAidCacheLocked(resolveRoots);
+            assertSame(reparsed, cache.mServiceRegistrations.get(LOYALTY).service);
+            assertSame(reparsed, cache.mAidCache.get("F0010203040506").services.get(0));
+        }
+        assertSame(reparsed, cache.resolveAid("F0010203040506").services.get(0));
+    }
+
+    public void testResolveAid() {
+        RegisteredAidCache cache = new RegisteredAidCache(getContext(),
+                ApduServiceFixtures.createRoutingManager());
+        ArrayList<ApduServiceInfo> services = new ArrayList<ApduServiceInfo>();
+        services.add(createService(LOYALTY, CardEmulation.CATEGORY_OTHER, "F0010203040506"));
+        synchronized (cache.mLock) {
+            cache.generateServiceMapLocked(services);
+            cache.generateAidCacheLocked();
+        }
+        // Hex digits match regardless of case
+        assertEquals(1, cache.resolveAid("f0010203040506").services.size());
+
+        RegisteredAidCache.AidResolveInfo unknown = cache.resolveAid("F0010203040507");
+        assertTrue(unknown.services.isEmpty());
+        try {
+            unknown.services.add(services.get(0));
+            fail("The empty result is shared, and must not be changed");
+        } catch (UnsupportedOperationException e) {
+        }
+    }
+
+    private ApduServiceInfo createService(ComponentName component, String category,
+            String... aids) {
+        return ApduServiceFixtures.createService(component, true, category, Arrays.asList(aids),
+                -1, 10000);
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2015 NXP Semiconductors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.cardemulation;
+
+import android.content.ComponentName;
+import android.nfc.cardemulation.ApduServiceInfo;
+import android.nfc.cardemulation.CardEmulation;
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests registering, looking up and dropping of {@link StaticResponseCache}
+ * responses.
+ */
+public class StaticResponseCacheTests extends AndroidTestCase {
+    static final ComponentName PAYMENT = new ComponentName("com.example.pay", "com.example.Pay");
+    static final ComponentName TRANSIT = new ComponentName("com.example.ride", "com.example.Ride");
+    static final byte[] OK = new byte[] {(byte) 0x90, 0x00};
+
+    StaticResponseCache mCache;
+    ApduServiceInfo mPayment;
+    ApduServiceInfo mTransit;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCache = new StaticResponseCache();
+        mPayment = createService(PAYMENT);
+        mTransit = createService(TRANSIT);
+        mCache.onServicesUpdated(Arrays.asList(mPayment, mTransit));
+    }
+
+    static ApduServiceInfo createService(ComponentName component) {
+        return ApduServiceFixtures.createService(component, true,
+                CardEmulation.CATEGORY_OTHER, Arrays.asList("A0000000041010"), -1, 10001);
+    }
+
+    static byte[] select(String aid) {
+        byte[] aidBytes = ApduServiceFixtures.aidToBytes(aid);
+        byte[] command = new byte[5 + aidBytes.length];
+        command[1] = (byte) 0xA4;
+        command[2] = 0x04;
+        command[4] = (byte) aidBytes.length;
+        System.arraycopy(aidBytes, 0, command, 5, aidBytes.length);
+        return command;
+    }
+
+    public void testSetResponse() {
+        byte[] fci = new byte[] {0x6F, 0x00, (byte) 0x90, 0x00};
+        assertTrue(mCache.setResponse(PAYMENT, select("325041592E5359532E4444463031"), fci));
+        // Registered responses are copied
+        fci[0] = 0;
+        assertTrue(Arrays.equals(new byte[] {0x6F, 0x00, (byte) 0x90, 0x00},
+                mCache.getResponse(PAYMENT, select("325041592E5359532E4444463031"))));
+        assertNull(mCache.getResponse(PAYMENT, select("A0000000041010")));
+        assertNull(mCache.getResponse(TRANSIT, select("325041592E5359532E4444463031")));
+
+        // A later response for the same command replaces the earlier one
+        assertTrue(mCache.setResponse(PAYMENT, select("325041592E5359532E4444463031"), OK));
+        assertTrue(Arrays.equals(OK,
+                mCache.getResponse(PAYMENT, select("325041592E5359532E4444463031"))));
+    }
+
+    public void testSetResponseRejectsInvalid() {
+        byte[] readBinary = new byte[] {0x00, (byte) 0xB0, 0x00, 0x00, 0x00};
+        assertFalse(mCache.setResponse(PAYMENT, readBinary, OK));
+        assertFalse(mCache.setResponse(PAYMENT, null, OK));
+        assertFalse(mCache.setResponse(PAYMENT, select("A0000000041010"), null));
+        // A response needs at least the status word
+        assertFalse(mCache.setResponse(PAYMENT, select("A0000000041010"), new byte[] {0x6F}));
+        // A SELECT whose AID is longer than the command
+        byte[] truncated = Arrays.copyOf(select("A0000000041010"), 8);
+        assertFalse(mCache.setResponse(PAYMENT, truncated, OK));
+
+        ComponentName unknown = new ComponentName("com.example", "com.example.Unknown");
+        assertFalse(mCache.setResponse(unknown, select("A0000000041010"), OK));
+        assertNull(mCache.getResponse(PAYMENT, select("A0000000041010")));
+    }
+
+    public void testSetResponseRejectsOffHostService() {
+        ApduServiceInfo offHost = ApduServiceFixtures.createService(TRANSIT, false,
+                CardEmulation.CATEGORY_OTHER, Arrays.asList("A0000000041010"),
+                ApduServiceFixtures.ROUTE_ESE, 10001);
+        mCache.onServicesUpdated(Arrays.asList(mPayment, offHost));
+        assertFalse(mCache.setResponse(TRANSIT, select("A0000000041010"), OK));
+    }
+
+    public void testResponsesPerServiceAreLimited() {
+        for (int i = 0; i < StaticResponseCache.MAX_RESPONSES_PER_SERVICE; i++) {
+            assertTrue(mCache.setResponse(PAYMENT, select("A00000000410" + i + "0"), OK));
+        }
+        assertFalse(mCache.setResponse(PAYMENT, select("A0000000041090"), OK));
+        assertNull(mCache.getResponse(PAYMENT, select("A0000000041090")));
+
+        // Replacing a response does not need room, and other services
+        // have their own limit
+        assertTrue(mCache.setResponse(PAYMENT, select("A0000000041000"),
+                new byte[] {0x6A, (byte) 0x82}));
+        assertTrue(mCache.setResponse(TRANSIT, select("A0000000041090"), OK));
+
+        // Clearing makes room again
+        mCache.clear(PAYMENT);
+        assertNull(mCache.getResponse(PAYMENT, select("A0000000041000")));
+        assertTrue(mCache.setResponse(PAYMENT, select("A0000000041090"), OK));
+    }
+
+    public void testUpdateKeepsResponsesOfUnchangedServices() {
+        assertTrue(mCache.setResponse(PAYMENT, select("A0000000041010"), OK));
+        assertTrue(mCache.setResponse(TRANSIT, select("A0000000041010"), OK));
+
+        // Registering dynamic AIDs passes the same instances again
+        mCache.onServicesUpdated(Arrays.asList(mPayment, mTransit));
+        assertNotNull(mCache.getResponse(PAYMENT, select("A0000000041010")));
+        assertNotNull(mCache.getResponse(TRANSIT, select("A0000000041010")));
+
+        // The transit service was parsed again, the payment service removed
+        ApduServiceInfo transit = createService(TRANSIT);
+        mCache.onServicesUpdated(Arrays.asList(transit));
+        assertNull(mCache.getResponse(PAYMENT, select("A0000000041010")));
+        assertNull(mCache.getResponse(TRANSIT, select("A0000000041010")));
+        assertFalse(mCache.setResponse(PAYMENT, select("A0000000041010"), OK));
+        assertTrue(mCache.setResponse(TRANSIT, select("A0000000041010"), OK));
+    }
+
+    public void testPackageUpdateDropsResponsesOfPackage() {
+        assertTrue(mCache.setResponse(PAYMENT, select("A0000000041010"), OK));
+        assertTrue(mCache.setResponse(TRANSIT, select("A0000000041010"), OK));
+
+        ApduServiceInfo payment = createService(PAYMENT);
+        List<ApduServiceInfo> updated = new ArrayList<ApduServiceInfo>();
+        updated.add(payment);
+        mCache.onPackageServicesUpdated(Arrays.asList(payment, mTransit), updated,
+                Collections.<ComponentName>emptyList());
+        assertNull(mCache.getResponse(PAYMENT, select("A0000000041010")));
+        assertNotNull(mCache.getResponse(TRANSIT, select("A0000000041010")));
+
+        mCache.onPackageServicesUpdated(Arrays.asList(payment),
+                Collections.<ApduServiceInfo>emptyList(), Arrays.asList(TRANSIT));
+        assertNull(mCache.getResponse(TRANSIT, select("A0000000041010")));
+        assertFalse(mCache.setResponse(TRANSIT, select("A0000000041010"), OK));
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2015 NXP Semiconductors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.cardemulation;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Tests decoding of Felica command frames by {@link T3tFrame}.
+ */
+public class T3tFrameTests extends AndroidTestCase {
+    static final byte[] NFCID2 = {0x02, (byte)0xFE, 0x00, 0x01, 0x02, 0x03, 0x04, (byte)0x85};
+
+    public void testCheckCommand() {
+        // LEN, CHECK, NFCID2, 1 service, service code, 1 block, block list element
+        byte[] frame = new byte[16];
+        frame[0] = (byte) frame.length;
+        frame[1] = 0x06;
+        System.arraycopy(NFCID2, 0, frame, 2, NFCID2.length);
+        frame[10] = 0x01;
+        frame[11] = 0x0B;
+        frame[12] = 0x00;
+        frame[13] = 0x01;
+        frame[14] = (byte) 0x80;
+        frame[15] = 0x00;
+
+        int offset = T3tFrame.findNfcid2Offset(frame);
+        assertEquals(2, offset);
+        assertEquals(T3tFrame.parseNfcid2("02FE000102030485"), T3tFrame.getNfcid2(frame, offset));
+    }
+
+    public void testRejectedFrames() {
+        // Polling carries no NFCID2
+        assertEquals(-1, T3tFrame.findNfcid2Offset(new byte[] {0x06, 0x00, (byte)0xFF,
+                (byte)0xFF, 0x01, 0x00}));
+        // Length byte does not match
+        byte[] frame = new byte[10];
+        frame[0] = 11;
+        frame[1] = 0x06;
+        assertEquals(-1, T3tFrame.findNfcid2Offset(frame));
+        // Unknown opcode
+        frame[0] = 10;
+        frame[1] = 0x10;
+        assertEquals(-1, T3tFrame.findNfcid2Offset(frame));
+        assertFalse(T3tFrame.isValidNfcid2("02FE00010203048"));
+        assertFalse(T3tFrame.isValidNfcid2("02FE0001020304XY"));
+        assertTrue(T3tFrame.isValidNfcid2("02fe000102030485"));
+    }
+}
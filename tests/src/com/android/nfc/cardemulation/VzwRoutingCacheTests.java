@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2015 NXP Semiconductors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.cardemulation;
+
+import android.test.AndroidTestCase;
+
+import com.vzw.nfc.RouteEntry;
+
+/**
+ * Tests lookups and incremental updates of {@link VzwRoutingCache}.
+ */
+public class VzwRoutingCacheTests extends AndroidTestCase {
+    static final byte[] AID_1 = {(byte)0xA0, 0x00, 0x00, 0x00, 0x04, 0x10, 0x10};
+    static final byte[] AID_2 = {(byte)0xA0, 0x00, 0x00, 0x00, 0x03};
+
+    public void testLookup() {
+        VzwRoutingCache cache = new VzwRoutingCache();
+        assertTrue(cache.addAid(AID_1, 2, 0x81, true));
+        assertTrue(cache.addAid(AID_2, 2, 0x01, false));
+
+        VzwRoutingCache.Entry entry = cache.lookup(AidKey.parse("A0000000041010"));
+        assertNotNull(entry);
+        assertTrue(entry.allowed);
+        assertEquals(0x81, entry.powerState);
+        // Prefix AIDs and lower case resolve to the same entry
+        assertSame(entry, cache.lookup(AidKey.parse("a0000000041010*")));
+        assertFalse(cache.lookup(AidKey.parse("A000000003")).allowed);
+        assertNull(cache.lookup(AidKey.parse("A00000000410")));
+        assertNull(cache.lookup(AidKey.parse("A0000000041010FF")));
+    }
+
+    public void testSetAids() {
+        VzwRoutingCache cache = new VzwRoutingCache();
+        RouteEntry[] entries = {
+                new RouteEntry(AID_1, 0x81, 2, true),
+                new RouteEntry(AID_2, 0x01, 2, true)
+        };
+        assertTrue(cache.setAids(entries));
+        assertEquals(2, cache.size());
+        // Same list again
+        assertFalse(cache.setAids(entries));
+
+        assertTrue(cache.setAids(new RouteEntry[] {new RouteEntry(AID_1, 0x01, 2, true)}));
+        assertEquals(1, cache.size());
+        assertEquals(0x01, cache.lookup(AidKey.parse("A0000000041010")).powerState);
+        assertNull(cache.lookup(AidKey.parse("A000000003")));
+    }
+}